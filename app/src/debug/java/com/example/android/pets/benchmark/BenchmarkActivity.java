@@ -0,0 +1,132 @@
+package com.example.android.pets.benchmark;
+
+import android.content.OperationApplicationException;
+import android.os.Bundle;
+import android.support.v7.app.AppCompatActivity;
+import android.util.JsonWriter;
+import android.util.Log;
+import android.widget.TextView;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+
+/**
+ * Debug-only screen that runs one benchmark suite off the main thread and writes its results
+ * as JSON to the log and to benchmark-<suite>.json in the app's external files directory.
+ *
+ * adb shell am start -n com.example.android.pets/.benchmark.BenchmarkActivity -e suite wal
+ * adb shell am start -n com.example.android.pets/.benchmark.BenchmarkActivity -e suite provider --eia rows 1000,100000
+ * adb shell am start -n com.example.android.pets/.benchmark.BenchmarkActivity -e suite load --eia rows 1000000 --ei rate 2000
+ * adb shell am start -n com.example.android.pets/.benchmark.BenchmarkActivity -e suite sync --eia rows 100000 --ei changes 1000
+ */
+public class BenchmarkActivity extends AppCompatActivity {
+
+    public static final String LOG_TAG = BenchmarkActivity.class.getSimpleName();
+
+    /** Intent extra naming the suite to run */
+    public static final String EXTRA_SUITE = "suite";
+
+    /** Intent extra holding the table sizes measured by the provider suite, or the size of the load and sync suites' table */
+    public static final String EXTRA_ROWS = "rows";
+
+    /** Intent extras of the load suite: operations per second (0 for no limit), run time in
+     * seconds, percentage of reads, number of threads and generator seed */
+    public static final String EXTRA_RATE = "rate";
+    public static final String EXTRA_SECONDS = "seconds";
+    public static final String EXTRA_READ_PERCENT = "read_percent";
+    public static final String EXTRA_THREADS = "threads";
+    public static final String EXTRA_SEED = "seed";
+
+    /** Intent extra of the sync suite: number of changes made between the first and second sync */
+    public static final String EXTRA_CHANGES = "changes";
+
+    private TextView mResultView;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        mResultView = new TextView(this);
+        setContentView(mResultView);
+
+        String suite = getIntent().getStringExtra(EXTRA_SUITE);
+        final String name = suite == null ? "wal" : suite;
+        mResultView.setText("Running " + name + " benchmark...");
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final String result = runSuite(name);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mResultView.setText(result);
+                    }
+                });
+            }
+        }, "benchmark").start();
+    }
+
+    private String runSuite(String name) {
+        StringWriter result = new StringWriter();
+        JsonWriter json = new JsonWriter(result);
+        json.setIndent("  ");
+        try {
+            switch (name) {
+                case "wal":
+                    WalBenchmark.run(this, json);
+                    break;
+                case "provider":
+                    int[] sizes = getIntent().getIntArrayExtra(EXTRA_ROWS);
+                    ProviderBenchmark.run(this, sizes == null ? ProviderBenchmark.DEFAULT_SIZES : sizes, json);
+                    break;
+                case "load":
+                    LoadDriver.run(this, loadConfig(), json);
+                    break;
+                case "sync":
+                    int[] rows = getIntent().getIntArrayExtra(EXTRA_ROWS);
+                    SyncBenchmark.run(this, rows == null || rows.length == 0 ? SyncBenchmark.DEFAULT_ROWS : rows[0],
+                            getIntent().getIntExtra(EXTRA_CHANGES, SyncBenchmark.DEFAULT_CHANGES),
+                            getIntent().getLongExtra(EXTRA_SEED, SyncBenchmark.DEFAULT_SEED), json);
+                    break;
+                default:
+                    return "Unknown benchmark suite " + name;
+            }
+            json.close();
+            writeResult(name, result.toString());
+        } catch (IOException | InterruptedException | OperationApplicationException | IllegalArgumentException e) {
+            Log.e(LOG_TAG, "Benchmark " + name + " failed", e);
+            return "Benchmark " + name + " failed: " + e;
+        }
+        Log.i(LOG_TAG, result.toString());
+        return result.toString();
+    }
+
+    private LoadDriver.Config loadConfig() {
+        LoadDriver.Config config = new LoadDriver.Config();
+        int[] rows = getIntent().getIntArrayExtra(EXTRA_ROWS);
+        if (rows != null && rows.length > 0)
+            config.rows = rows[0];
+        config.rate = getIntent().getIntExtra(EXTRA_RATE, config.rate);
+        config.seconds = getIntent().getIntExtra(EXTRA_SECONDS, config.seconds);
+        config.readPercent = getIntent().getIntExtra(EXTRA_READ_PERCENT, config.readPercent);
+        config.threads = getIntent().getIntExtra(EXTRA_THREADS, config.threads);
+        config.seed = getIntent().getLongExtra(EXTRA_SEED, config.seed);
+        return config;
+    }
+
+    private void writeResult(String name, String result) throws IOException {
+        File directory = getExternalFilesDir(null);
+        if (directory == null)
+            return;
+        OutputStreamWriter out = new OutputStreamWriter(
+                new FileOutputStream(new File(directory, "benchmark-" + name + ".json")), "UTF-8");
+        try {
+            out.write(result);
+        } finally {
+            out.close();
+        }
+    }
+}
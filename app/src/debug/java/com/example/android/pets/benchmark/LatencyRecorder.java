@@ -0,0 +1,70 @@
+package com.example.android.pets.benchmark;
+
+import android.util.JsonWriter;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Collects the latency samples of one benchmarked operation and reports them as percentiles.
+ */
+final class LatencyRecorder {
+
+    private long[] mSamples;
+    private int mCount;
+    private boolean mSorted;
+
+    LatencyRecorder(int expectedSamples) {
+        mSamples = new long[Math.max(16, expectedSamples)];
+    }
+
+    /**
+     * Record one sample, in nanoseconds.
+     */
+    void record(long nanos) {
+        if (mCount == mSamples.length)
+            mSamples = Arrays.copyOf(mSamples, mCount * 2);
+        mSamples[mCount++] = nanos;
+        mSorted = false;
+    }
+
+    /**
+     * Record every sample of another recorder, such as the one of another thread.
+     */
+    void addAll(LatencyRecorder other) {
+        for (int i = 0; i < other.mCount; i++)
+            record(other.mSamples[i]);
+    }
+
+    int count() {
+        return mCount;
+    }
+
+    /**
+     * Return the sample below which the given fraction of the samples fall, in nanoseconds.
+     */
+    long percentile(double fraction) {
+        if (mCount == 0)
+            return 0;
+        if (!mSorted) {
+            Arrays.sort(mSamples, 0, mCount);
+            mSorted = true;
+        }
+        int index = (int) Math.ceil(fraction * mCount) - 1;
+        return mSamples[Math.min(mCount - 1, Math.max(0, index))];
+    }
+
+    /**
+     * Write the sample count and the latency percentiles, in microseconds, as a JSON object.
+     */
+    void writeTo(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("count").value(mCount);
+        writer.name("p50_us").value(percentile(0.50) / 1000);
+        writer.name("p90_us").value(percentile(0.90) / 1000);
+        writer.name("p99_us").value(percentile(0.99) / 1000);
+        writer.name("p999_us").value(percentile(0.999) / 1000);
+        writer.name("max_us").value(percentile(1.0) / 1000);
+        writer.endObject();
+    }
+}
@@ -0,0 +1,302 @@
+package com.example.android.pets.benchmark;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.PetGenerator;
+import com.example.android.pets.data.PetPacker;
+import com.example.android.pets.data.PetProvider;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Seeds a private {@link PetProvider} with generated pets and then drives it with a mix of
+ * reads and writes from several threads at a fixed rate, reporting the throughput reached and
+ * the latency of each kind of operation.
+ *
+ * Operations are scheduled at fixed intervals, and latency is measured from when an operation
+ * was due rather than from when it started. An operation delayed by a slow one before it
+ * counts that delay, so stalls show up in the tail latency instead of lowering the rate. A rate
+ * of 0 runs the operations back to back and measures each on its own.
+ *
+ * Pets come from a {@link PetGenerator} with the given seed, and each thread picks operations
+ * and rows from its own seeded random sequence, so runs with the same parameters issue the
+ * same operations. The provider runs on a scratch database named benchmark-load-*.
+ */
+final class LoadDriver {
+
+    static final int DEFAULT_ROWS = 100000;
+    static final int DEFAULT_RATE = 500;
+    static final int DEFAULT_SECONDS = 30;
+    static final int DEFAULT_READ_PERCENT = 90;
+    static final int DEFAULT_THREADS = 4;
+    static final long DEFAULT_SEED = 42;
+
+    private static final String LOG_TAG = LoadDriver.class.getSimpleName();
+    private static final String DATABASE_PREFIX = "benchmark-load-";
+    private static final int SEED_BATCH = 5000;
+    private static final int PAGE_SIZE = 50;
+
+    // Kinds of operation, in the order of OPERATION_NAMES. Reads are split 60/35/5 between
+    // single pets, pages and searches, and writes 40/40/20 between inserts, updates and deletes.
+    private static final int ITEM_READ = 0;
+    private static final int PAGE_READ = 1;
+    private static final int SEARCH = 2;
+    private static final int INSERT = 3;
+    private static final int UPDATE = 4;
+    private static final int DELETE = 5;
+    private static final String[] OPERATION_NAMES = {
+            "item_read", "page_read", "search", "insert", "update", "delete" };
+
+    private static final String[] PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT };
+
+    /**
+     * Parameters of one run.
+     */
+    static final class Config {
+        int rows = DEFAULT_ROWS;
+        /** Operations per second over all threads, or 0 for as many as possible */
+        int rate = DEFAULT_RATE;
+        int seconds = DEFAULT_SECONDS;
+        int readPercent = DEFAULT_READ_PERCENT;
+        int threads = DEFAULT_THREADS;
+        long seed = DEFAULT_SEED;
+    }
+
+    private LoadDriver() {}
+
+    static void run(Context context, Config config, JsonWriter json) throws IOException, InterruptedException {
+        if (config.rows < 1 || config.rate < 0 || config.seconds < 1 || config.threads < 1
+                || config.readPercent < 0 || config.readPercent > 100)
+            throw new IllegalArgumentException("Invalid load parameters");
+
+        ScratchContext scratch = new ScratchContext(context, DATABASE_PREFIX);
+        scratch.deleteDatabase(PetDbHelper.DATABASE_NAME);
+        PetProvider provider = new PetProvider();
+        provider.attachInfo(scratch, null);
+        try {
+            PetGenerator generator = new PetGenerator(config.seed);
+            long seedStart = System.nanoTime();
+            for (int seeded = 0; seeded < config.rows; seeded += SEED_BATCH) {
+                PetPacker.Writer writer = new PetPacker.Writer(SEED_BATCH * 48);
+                generator.pack(writer, seeded, Math.min(SEED_BATCH, config.rows - seeded));
+                Bundle extras = new Bundle();
+                extras.putByteArray(PetContract.EXTRA_PACKED, writer.toByteArray());
+                provider.call(PetContract.METHOD_WRITE_PACKED, null, extras);
+            }
+            long seedNanos = System.nanoTime() - seedStart;
+            Log.i(LOG_TAG, "Seeded " + config.rows + " pets in " + seedNanos / 1000000 + "ms");
+
+            // The scratch database is new, so the seeded pets have IDs 1 to rows
+            AtomicLong maxId = new AtomicLong(config.rows);
+            AtomicLong nextPet = new AtomicLong(config.rows);
+            long start = System.nanoTime();
+            long end = start + config.seconds * 1000000000L;
+            Worker[] workers = new Worker[config.threads];
+            Thread[] threads = new Thread[config.threads];
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = new Worker(provider, config, i, start, end, maxId, nextPet);
+                threads[i] = new Thread(workers[i], "load-" + i);
+                threads[i].start();
+            }
+            for (Thread thread : threads)
+                thread.join();
+            long elapsed = System.nanoTime() - start;
+
+            LatencyRecorder total = new LatencyRecorder(0);
+            LatencyRecorder[] operations = new LatencyRecorder[OPERATION_NAMES.length];
+            long errors = 0;
+            for (int op = 0; op < operations.length; op++) {
+                operations[op] = new LatencyRecorder(0);
+                for (Worker worker : workers)
+                    operations[op].addAll(worker.mLatency[op]);
+                total.addAll(operations[op]);
+            }
+            for (Worker worker : workers)
+                errors += worker.mErrors;
+
+            json.beginObject();
+            json.name("suite").value("load");
+            json.name("sdk").value(Build.VERSION.SDK_INT);
+            json.name("rows").value(config.rows);
+            json.name("seed").value(config.seed);
+            json.name("threads").value(config.threads);
+            json.name("read_percent").value(config.readPercent);
+            json.name("target_ops_per_s").value(config.rate);
+            json.name("seed_ms").value(seedNanos / 1000000);
+            json.name("duration_ms").value(elapsed / 1000000);
+            json.name("ops_per_s").value(total.count() / (elapsed / 1e9));
+            json.name("errors").value(errors);
+            json.name("latency");
+            total.writeTo(json);
+            json.name("operations").beginObject();
+            for (int op = 0; op < operations.length; op++) {
+                json.name(OPERATION_NAMES[op]);
+                operations[op].writeTo(json);
+            }
+            json.endObject();
+            json.endObject();
+        } finally {
+            provider.shutdown();
+            scratch.deleteDatabase(PetDbHelper.DATABASE_NAME);
+        }
+    }
+
+    /**
+     * Issues one thread's share of the operations, each thread due at evenly spaced times
+     * offset from the others.
+     */
+    private static final class Worker implements Runnable {
+
+        private final PetProvider mProvider;
+        private final int mReadPercent;
+        private final long mIntervalNanos;
+        private final long mFirstDue;
+        private final long mEnd;
+        private final AtomicLong mMaxId;
+        private final AtomicLong mNextPet;
+        private final Random mRandom;
+        private final PetGenerator mGenerator;
+        private final ContentValues mWeight = new ContentValues();
+
+        final LatencyRecorder[] mLatency = new LatencyRecorder[OPERATION_NAMES.length];
+        long mErrors;
+
+        Worker(PetProvider provider, Config config, int index, long start, long end,
+               AtomicLong maxId, AtomicLong nextPet) {
+            mProvider = provider;
+            mReadPercent = config.readPercent;
+            mIntervalNanos = config.rate == 0 ? 0 : 1000000000L * config.threads / config.rate;
+            mFirstDue = start + mIntervalNanos * index / config.threads;
+            mEnd = end;
+            mMaxId = maxId;
+            mNextPet = nextPet;
+            mRandom = new Random(config.seed + index);
+            mGenerator = new PetGenerator(config.seed);
+            int expected = config.rate == 0 ? 1024 : (int) Math.min(1 << 20, (long) config.rate * config.seconds / config.threads);
+            for (int op = 0; op < mLatency.length; op++)
+                mLatency[op] = new LatencyRecorder(expected / mLatency.length);
+        }
+
+        @Override
+        public void run() {
+            long due = mFirstDue;
+            while (true) {
+                long now = System.nanoTime();
+                if (mIntervalNanos > 0) {
+                    if (due >= mEnd)
+                        return;
+                    if (due > now) {
+                        try {
+                            Thread.sleep((due - now) / 1000000, (int) ((due - now) % 1000000));
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                } else {
+                    if (now >= mEnd)
+                        return;
+                    due = now;
+                }
+
+                int op = pickOperation();
+                try {
+                    if (!perform(op))
+                        mErrors++;
+                } catch (RuntimeException e) {
+                    Log.w(LOG_TAG, OPERATION_NAMES[op] + " failed", e);
+                    mErrors++;
+                }
+                mLatency[op].record(System.nanoTime() - due);
+                due += mIntervalNanos;
+            }
+        }
+
+        private int pickOperation() {
+            int percent = mRandom.nextInt(100);
+            if (mRandom.nextInt(100) < mReadPercent)
+                return percent < 60 ? ITEM_READ : percent < 95 ? PAGE_READ : SEARCH;
+            return percent < 40 ? INSERT : percent < 80 ? UPDATE : DELETE;
+        }
+
+        /**
+         * Run one operation. Return false if the provider rejected it.
+         */
+        private boolean perform(int op) {
+            switch (op) {
+                case ITEM_READ:
+                    return read(mProvider.query(randomPetUri(), PROJECTION, null, null, null));
+                case PAGE_READ:
+                    return read(mProvider.query(PetEntry.buildPageUri(PetEntry._ID, null, randomId() - 1, PAGE_SIZE),
+                            PROJECTION, null, null, null));
+                case SEARCH:
+                    Uri search = PetEntry.SEARCH_URI.buildUpon()
+                            .appendQueryParameter(PetEntry.QUERY_PARAMETER_SEARCH,
+                                    mGenerator.generate(mRandom.nextInt(Integer.MAX_VALUE)).name())
+                            .appendQueryParameter(PetEntry.QUERY_PARAMETER_LIMIT, String.valueOf(PAGE_SIZE))
+                            .build();
+                    return read(mProvider.query(search, PROJECTION, null, null, null));
+                case INSERT:
+                    Uri uri = mProvider.insert(PetEntry.CONTENT_URI, mGenerator.generate(mNextPet.getAndIncrement()).toValues());
+                    if (uri == null)
+                        return false;
+                    long id = ContentUris.parseId(uri);
+                    for (long max = mMaxId.get(); id > max && !mMaxId.compareAndSet(max, id); max = mMaxId.get()) {
+                        // Another thread inserted a pet; compare again
+                    }
+                    return true;
+                case UPDATE:
+                    // The pet may have been deleted, which updates nothing but is not an error
+                    mWeight.put(PetEntry.COLUMN_PET_WEIGHT, mRandom.nextInt(60));
+                    return mProvider.update(randomPetUri(), mWeight, null, null) >= 0;
+                default:
+                    return mProvider.delete(randomPetUri(), null, null) >= 0;
+            }
+        }
+
+        private long randomId() {
+            return 1 + (long) (mRandom.nextDouble() * mMaxId.get());
+        }
+
+        private Uri randomPetUri() {
+            return ContentUris.withAppendedId(PetEntry.CONTENT_URI, randomId());
+        }
+
+        /**
+         * Touch every row of a cursor the way a list would, then close it.
+         */
+        private static boolean read(Cursor cursor) {
+            if (cursor == null)
+                return false;
+            try {
+                while (cursor.moveToNext()) {
+                    cursor.getLong(0);
+                    cursor.getString(1);
+                    cursor.getString(2);
+                    cursor.getInt(3);
+                    cursor.getInt(4);
+                }
+            } finally {
+                cursor.close();
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package com.example.android.pets.benchmark;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Debug;
+import android.util.JsonWriter;
+
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.PetPacker;
+import com.example.android.pets.data.PetProvider;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Drives a private {@link PetProvider} instance through its single-row, list and batch paths
+ * at several table sizes, and reports throughput, latency percentiles and allocations for each.
+ *
+ * The provider runs on scratch databases named benchmark-provider-*, so the app's own pets are
+ * left alone. On a device, allocations are read from the runtime's process-wide counter, which
+ * exists from Android 6.0; on older releases they are reported as -1. On the JVM under
+ * Robolectric they are read from HotSpot's per-thread counter for the benchmark thread, which
+ * runs every measured call.
+ */
+final class ProviderBenchmark {
+
+    /** Table sizes measured when the intent does not name any */
+    static final int[] DEFAULT_SIZES = { 1000, 100000, 1000000 };
+
+    private static final String DATABASE_PREFIX = "benchmark-provider-";
+    private static final int OPERATIONS = 2000;
+    private static final int SEED_BATCH = 5000;
+    private static final int BATCH_SIZE = 500;
+    private static final int BATCHES = 20;
+    private static final int SEARCHES = 200;
+    private static final int PAGE_SIZE = 50;
+    private static final int BREEDS = 100;
+
+    private static final String[] PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT };
+
+    /** HotSpot's ThreadMXBean and its getThreadAllocatedBytes(long), looked up once off Android */
+    private static Object sThreadBean;
+    private static Method sThreadAllocatedBytes;
+    private static boolean sThreadBeanLookedUp;
+
+    private ProviderBenchmark() {}
+
+    static void run(Context context, int[] sizes, JsonWriter json)
+            throws IOException, OperationApplicationException {
+        json.beginObject();
+        json.name("suite").value("provider");
+        json.name("sdk").value(Build.VERSION.SDK_INT);
+        json.name("runs").beginArray();
+        for (int size : sizes)
+            runSize(context, size, json);
+        json.endArray();
+        json.endObject();
+    }
+
+    private static void runSize(Context context, int size, JsonWriter json)
+            throws IOException, OperationApplicationException {
+        ScratchContext scratch = new ScratchContext(context, DATABASE_PREFIX);
+        scratch.deleteDatabase(PetDbHelper.DATABASE_NAME);
+        PetProvider provider = new PetProvider();
+        provider.attachInfo(scratch, null);
+        Random random = new Random(42);
+
+        json.beginObject();
+        json.name("rows").value(size);
+        json.name("operations").beginObject();
+
+        // Seed the table through the batch path, which is also measured
+        Measurement seed = new Measurement(size / SEED_BATCH + 1, SEED_BATCH);
+        for (int inserted = 0; inserted < size; ) {
+            ContentValues[] values = new ContentValues[Math.min(SEED_BATCH, size - inserted)];
+            for (int i = 0; i < values.length; i++)
+                values[i] = pet(inserted + i);
+            long begin = System.nanoTime();
+            provider.bulkInsert(PetEntry.CONTENT_URI, values);
+            seed.record(System.nanoTime() - begin);
+            inserted += values.length;
+        }
+        seed.finish();
+        seed.writeTo(json, "seed_bulk_insert");
+
+        long[] insertedIds = new long[OPERATIONS];
+        Measurement insert = new Measurement(OPERATIONS, 1);
+        for (int i = 0; i < OPERATIONS; i++) {
+            ContentValues values = pet(size + i);
+            long begin = System.nanoTime();
+            Uri uri = provider.insert(PetEntry.CONTENT_URI, values);
+            insert.record(System.nanoTime() - begin);
+            insertedIds[i] = uri == null ? -1 : ContentUris.parseId(uri);
+        }
+        insert.finish();
+        insert.writeTo(json, "insert");
+
+        Measurement itemRead = new Measurement(OPERATIONS, 1);
+        for (int i = 0; i < OPERATIONS; i++) {
+            Uri uri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, 1 + random.nextInt(size));
+            long begin = System.nanoTime();
+            Cursor cursor = provider.query(uri, PROJECTION, null, null, null);
+            read(cursor);
+            itemRead.record(System.nanoTime() - begin);
+        }
+        itemRead.finish();
+        itemRead.writeTo(json, "item_read");
+
+        Measurement pageRead = new Measurement(OPERATIONS, PAGE_SIZE);
+        for (int i = 0; i < OPERATIONS; i++) {
+            Uri uri = PetEntry.buildPageUri(PetEntry._ID, null, random.nextInt(size), PAGE_SIZE);
+            long begin = System.nanoTime();
+            Cursor cursor = provider.query(uri, PROJECTION, null, null, null);
+            read(cursor);
+            pageRead.record(System.nanoTime() - begin);
+        }
+        pageRead.finish();
+        pageRead.writeTo(json, "page_read");
+
+        Measurement filteredRead = new Measurement(OPERATIONS, PAGE_SIZE);
+        String selection = PetEntry.COLUMN_PET_BREED + "=?";
+        String[] selectionArgs = new String[1];
+        for (int i = 0; i < OPERATIONS; i++) {
+            Uri uri = PetEntry.buildPageUri(PetEntry._ID, null, 0, PAGE_SIZE);
+            selectionArgs[0] = breed(random.nextInt(BREEDS));
+            long begin = System.nanoTime();
+            Cursor cursor = provider.query(uri, PROJECTION, selection, selectionArgs, null);
+            read(cursor);
+            filteredRead.record(System.nanoTime() - begin);
+        }
+        filteredRead.finish();
+        filteredRead.writeTo(json, "filtered_page_read");
+
+        // Searches rank every match, so run fewer of them
+        Measurement search = new Measurement(SEARCHES, PAGE_SIZE);
+        for (int i = 0; i < SEARCHES; i++) {
+            Uri uri = PetEntry.SEARCH_URI.buildUpon()
+                    .appendQueryParameter(PetEntry.QUERY_PARAMETER_SEARCH, String.valueOf(random.nextInt(size)))
+                    .appendQueryParameter(PetEntry.QUERY_PARAMETER_LIMIT, String.valueOf(PAGE_SIZE))
+                    .build();
+            long begin = System.nanoTime();
+            Cursor cursor = provider.query(uri, PROJECTION, null, null, null);
+            read(cursor);
+            search.record(System.nanoTime() - begin);
+        }
+        search.finish();
+        search.writeTo(json, "search");
+
+        Measurement update = new Measurement(OPERATIONS, 1);
+        ContentValues weight = new ContentValues();
+        for (int i = 0; i < OPERATIONS; i++) {
+            Uri uri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, 1 + random.nextInt(size));
+            weight.put(PetEntry.COLUMN_PET_WEIGHT, random.nextInt(60));
+            long begin = System.nanoTime();
+            provider.update(uri, weight, null, null);
+            update.record(System.nanoTime() - begin);
+        }
+        update.finish();
+        update.writeTo(json, "update");
+
+        Measurement delete = new Measurement(OPERATIONS, 1);
+        for (long id : insertedIds) {
+            Uri uri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, id);
+            long begin = System.nanoTime();
+            provider.delete(uri, null, null);
+            delete.record(System.nanoTime() - begin);
+        }
+        delete.finish();
+        delete.writeTo(json, "delete");
+
+        Measurement bulkInsert = new Measurement(BATCHES, BATCH_SIZE);
+        for (int batch = 0; batch < BATCHES; batch++) {
+            ContentValues[] values = new ContentValues[BATCH_SIZE];
+            for (int i = 0; i < BATCH_SIZE; i++)
+                values[i] = pet(size + OPERATIONS + batch * BATCH_SIZE + i);
+            long begin = System.nanoTime();
+            provider.bulkInsert(PetEntry.CONTENT_URI, values);
+            bulkInsert.record(System.nanoTime() - begin);
+        }
+        bulkInsert.finish();
+        bulkInsert.writeTo(json, "bulk_insert");
+
+        // The packed paths, which skip ContentValues and cursors on the caller's side
+        Measurement writePacked = new Measurement(BATCHES, BATCH_SIZE);
+        for (int batch = 0; batch < BATCHES; batch++) {
+            long begin = System.nanoTime();
+            PetPacker.Writer writer = new PetPacker.Writer();
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                int pet = size + OPERATIONS + (BATCHES + batch) * BATCH_SIZE + i;
+                writer.add("Pet " + pet, breed(pet % BREEDS), pet % 3, pet % 60);
+            }
+            Bundle extras = new Bundle();
+            extras.putByteArray(PetContract.EXTRA_PACKED, writer.toByteArray());
+            provider.call(PetContract.METHOD_WRITE_PACKED, null, extras);
+            writePacked.record(System.nanoTime() - begin);
+        }
+        writePacked.finish();
+        writePacked.writeTo(json, "write_packed");
+
+        Measurement queryPacked = new Measurement(OPERATIONS, PAGE_SIZE);
+        Bundle pageExtras = new Bundle();
+        pageExtras.putInt(PetContract.EXTRA_LIMIT, PAGE_SIZE);
+        for (int i = 0; i < OPERATIONS; i++) {
+            pageExtras.putLong(PetContract.EXTRA_AFTER_ID, random.nextInt(size));
+            long begin = System.nanoTime();
+            Bundle page = provider.call(PetContract.METHOD_QUERY_PACKED, null, pageExtras);
+            PetPacker.Reader reader = new PetPacker.Reader(page.getByteArray(PetContract.EXTRA_PACKED));
+            while (reader.next()) {
+                reader.id();
+                reader.name();
+            }
+            queryPacked.record(System.nanoTime() - begin);
+        }
+        queryPacked.finish();
+        queryPacked.writeTo(json, "query_packed");
+
+        Measurement applyBatch = new Measurement(BATCHES, BATCH_SIZE);
+        for (int batch = 0; batch < BATCHES; batch++) {
+            ArrayList<ContentProviderOperation> operations = new ArrayList<>(BATCH_SIZE);
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                operations.add(ContentProviderOperation
+                        .newUpdate(ContentUris.withAppendedId(PetEntry.CONTENT_URI, 1 + random.nextInt(size)))
+                        .withValue(PetEntry.COLUMN_PET_WEIGHT, random.nextInt(60))
+                        .build());
+            }
+            long begin = System.nanoTime();
+            provider.applyBatch(operations);
+            applyBatch.record(System.nanoTime() - begin);
+        }
+        applyBatch.finish();
+        applyBatch.writeTo(json, "apply_batch_update");
+
+        json.endObject();
+        json.name("row_cache_hit_rate")
+                .value(provider.call(PetContract.METHOD_CACHE_STATS, null, null)
+                        .getDouble(PetContract.EXTRA_ROW_CACHE_HIT_RATE));
+        json.endObject();
+
+        provider.shutdown();
+        scratch.deleteDatabase(PetDbHelper.DATABASE_NAME);
+    }
+
+    private static ContentValues pet(int i) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Pet " + i);
+        values.put(PetEntry.COLUMN_PET_BREED, breed(i % BREEDS));
+        values.put(PetEntry.COLUMN_PET_GENDER, i % 3);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, i % 60);
+        return values;
+    }
+
+    private static String breed(int i) {
+        return "Breed " + i;
+    }
+
+    /**
+     * Touch every row of a cursor the way a list would, then close it.
+     */
+    private static void read(Cursor cursor) {
+        if (cursor == null)
+            return;
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getLong(0);
+                cursor.getString(1);
+                cursor.getString(2);
+                cursor.getInt(3);
+                cursor.getInt(4);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return the bytes allocated so far, by the process on a device or by the calling thread on
+     * a desktop JVM, or -1 if the runtime does not say.
+     */
+    private static long allocatedBytes() {
+        // Both Dalvik and ART call themselves Dalvik
+        if (!"Dalvik".equals(System.getProperty("java.vm.name")))
+            return threadAllocatedBytes();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M)
+            return -1;
+        String value = Debug.getRuntimeStat("art.gc.bytes-allocated");
+        try {
+            return value == null ? -1 : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Return the bytes allocated by the calling thread from HotSpot's
+     * com.sun.management.ThreadMXBean, or -1 if the JVM has none. It is reached through
+     * reflection, since android.jar has no java.lang.management.
+     */
+    private static synchronized long threadAllocatedBytes() {
+        try {
+            if (!sThreadBeanLookedUp) {
+                sThreadBeanLookedUp = true;
+                sThreadBean = Class.forName("java.lang.management.ManagementFactory")
+                        .getMethod("getThreadMXBean").invoke(null);
+                sThreadAllocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+                        .getMethod("getThreadAllocatedBytes", long.class);
+            }
+            if (sThreadAllocatedBytes == null)
+                return -1;
+            return (Long) sThreadAllocatedBytes.invoke(sThreadBean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            // Not HotSpot, or allocation counting is turned off
+            sThreadAllocatedBytes = null;
+            return -1;
+        }
+    }
+
+    /**
+     * Latency, throughput and allocations of one measured operation.
+     */
+    private static final class Measurement {
+
+        private final LatencyRecorder mLatency;
+        private final int mRowsPerOperation;
+        private final long mAllocatedAtStart;
+        private final long mStart;
+        private long mElapsed;
+        private long mAllocated;
+
+        Measurement(int operations, int rowsPerOperation) {
+            mLatency = new LatencyRecorder(operations);
+            mRowsPerOperation = rowsPerOperation;
+            mAllocatedAtStart = allocatedBytes();
+            mStart = System.nanoTime();
+        }
+
+        void record(long nanos) {
+            mLatency.record(nanos);
+        }
+
+        void finish() {
+            mElapsed = System.nanoTime() - mStart;
+            long allocated = allocatedBytes();
+            mAllocated = allocated < 0 || mAllocatedAtStart < 0 ? -1 : allocated - mAllocatedAtStart;
+        }
+
+        void writeTo(JsonWriter json, String name) throws IOException {
+            int count = mLatency.count();
+            double seconds = mElapsed / 1e9;
+            json.name(name).beginObject();
+            json.name("count").value(count);
+            json.name("duration_ms").value(mElapsed / 1000000);
+            json.name("ops_per_s").value(seconds == 0 ? 0 : count / seconds);
+            json.name("rows_per_s").value(seconds == 0 ? 0 : (double) count * mRowsPerOperation / seconds);
+            json.name("latency");
+            mLatency.writeTo(json);
+            json.name("allocated_bytes").value(mAllocated);
+            json.name("allocated_bytes_per_op").value(mAllocated < 0 || count == 0 ? -1 : mAllocated / count);
+            json.name("allocated_mb_per_s")
+                    .value(mAllocated < 0 || seconds == 0 ? -1 : mAllocated / seconds / (1024 * 1024));
+            json.endObject();
+        }
+    }
+}
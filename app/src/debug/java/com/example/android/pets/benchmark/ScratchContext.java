@@ -0,0 +1,43 @@
+package com.example.android.pets.benchmark;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.database.DatabaseErrorHandler;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.File;
+
+/**
+ * Context that keeps the databases of a benchmarked provider apart from the app's by
+ * prefixing their names.
+ */
+public final class ScratchContext extends ContextWrapper {
+
+    private final String mPrefix;
+
+    public ScratchContext(Context base, String prefix) {
+        super(base);
+        mPrefix = prefix;
+    }
+
+    @Override
+    public File getDatabasePath(String name) {
+        return super.getDatabasePath(mPrefix + name);
+    }
+
+    @Override
+    public SQLiteDatabase openOrCreateDatabase(String name, int mode, SQLiteDatabase.CursorFactory factory) {
+        return super.openOrCreateDatabase(mPrefix + name, mode, factory);
+    }
+
+    @Override
+    public SQLiteDatabase openOrCreateDatabase(String name, int mode, SQLiteDatabase.CursorFactory factory,
+                                               DatabaseErrorHandler errorHandler) {
+        return super.openOrCreateDatabase(mPrefix + name, mode, factory, errorHandler);
+    }
+
+    @Override
+    public boolean deleteDatabase(String name) {
+        return super.deleteDatabase(mPrefix + name);
+    }
+}
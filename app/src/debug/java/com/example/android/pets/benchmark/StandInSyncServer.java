@@ -0,0 +1,286 @@
+package com.example.android.pets.benchmark;
+
+import android.content.ContentValues;
+import android.util.JsonReader;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetSyncEngine;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * In-process stand-in for the sync server of {@link PetSyncEngine}, listening on the loopback
+ * interface, so syncs can be measured and tested without a network.
+ *
+ * It speaks just enough HTTP/1.1 for the engine: one POST per connection, with a
+ * Content-Length body that may be gzipped. Pets are kept in memory by uuid. Every change it
+ * receives gets the next sequence number and replaces the pet's previous change, so the last
+ * writer wins and a device that asks from a sequence number gets the latest state of each pet
+ * changed since, less its own changes.
+ */
+public final class StandInSyncServer implements Closeable {
+
+    private static final String LOG_TAG = StandInSyncServer.class.getSimpleName();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /** Longest request line or header accepted */
+    private static final int MAX_LINE = 8192;
+
+    private static final class Change {
+        final long seq;
+        final String device;
+        final ContentValues row;
+
+        Change(long seq, String device, ContentValues row) {
+            this.seq = seq;
+            this.device = device;
+            this.row = row;
+        }
+    }
+
+    private final ServerSocket mSocket;
+    private final Thread mAcceptor;
+
+    /** Latest change of each pet by uuid, and the same changes by sequence number */
+    private final Map<String, Change> mChanges = new HashMap<>();
+    private final TreeMap<Long, Change> mBySeq = new TreeMap<>();
+    private long mSeq;
+    private int mRequests;
+
+    public StandInSyncServer() throws IOException {
+        mSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mAcceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "sync-server");
+        mAcceptor.start();
+    }
+
+    public URL url() throws IOException {
+        return new URL("http", "127.0.0.1", mSocket.getLocalPort(), "/sync");
+    }
+
+    public synchronized int requestCount() {
+        return mRequests;
+    }
+
+    /**
+     * Number of pets the server knows, deleted ones included.
+     */
+    public synchronized int petCount() {
+        return mChanges.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSocket.close();
+        try {
+            mAcceptor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void accept() {
+        while (!mSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = mSocket.accept();
+            } catch (IOException e) {
+                // Closed
+                return;
+            }
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch (IOException | RuntimeException e) {
+                        Log.w(LOG_TAG, "Sync request failed", e);
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            // Nothing left to do with it
+                        }
+                    }
+                }
+            }, "sync-connection").start();
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        String requestLine = readLine(in);
+        int length = -1;
+        boolean gzipped = false;
+        boolean acceptsGzip = false;
+        for (String header = readLine(in); !header.isEmpty(); header = readLine(in)) {
+            int colon = header.indexOf(':');
+            if (colon < 0)
+                continue;
+            String name = header.substring(0, colon).trim().toLowerCase(Locale.US);
+            String value = header.substring(colon + 1).trim();
+            if (name.equals("content-length"))
+                length = Integer.parseInt(value);
+            else if (name.equals("content-encoding"))
+                gzipped = value.equalsIgnoreCase("gzip");
+            else if (name.equals("accept-encoding"))
+                acceptsGzip = value.toLowerCase(Locale.US).contains("gzip");
+        }
+
+        OutputStream out = socket.getOutputStream();
+        if (!requestLine.startsWith("POST ") || length < 0) {
+            respond(out, "400 Bad Request", new byte[0], false);
+            return;
+        }
+        byte[] body = new byte[length];
+        for (int read = 0; read < length; ) {
+            int n = in.read(body, read, length - read);
+            if (n < 0)
+                throw new IOException("Request body ends after " + read + " of " + length + " bytes");
+            read += n;
+        }
+        if (gzipped)
+            body = PetSyncEngine.readFully(new GZIPInputStream(new ByteArrayInputStream(body)));
+
+        byte[] answer = exchange(body);
+        respond(out, "200 OK", acceptsGzip ? PetSyncEngine.gzip(answer) : answer, acceptsGzip);
+    }
+
+    /**
+     * Store the changes of one request and answer with the changes of other devices.
+     */
+    private byte[] exchange(byte[] body) throws IOException {
+        String device = null;
+        long since = 0;
+        int limit = PetContract.SYNC_MAX_ROWS;
+        List<ContentValues> changes = new ArrayList<>();
+        JsonReader json = new JsonReader(new InputStreamReader(new ByteArrayInputStream(body), UTF_8));
+        try {
+            json.beginObject();
+            while (json.hasNext()) {
+                switch (json.nextName()) {
+                    case "device":
+                        device = json.nextString();
+                        break;
+                    case "since":
+                        since = json.nextLong();
+                        break;
+                    case "limit":
+                        limit = Math.min(json.nextInt(), PetContract.SYNC_MAX_ROWS);
+                        break;
+                    case "changes":
+                        changes = PetSyncEngine.readChanges(json);
+                        break;
+                    default:
+                        json.skipValue();
+                        break;
+                }
+            }
+            json.endObject();
+        } finally {
+            json.close();
+        }
+        if (device == null)
+            throw new IOException("Sync request names no device");
+
+        List<ContentValues> rows = new ArrayList<>();
+        long seq = since;
+        boolean more = false;
+        synchronized (this) {
+            mRequests++;
+            for (ContentValues row : changes) {
+                String uuid = row.getAsString(PetEntry.COLUMN_UUID);
+                Change previous = mChanges.get(uuid);
+                // No other device can know a pet deleted before it was ever synced
+                if (previous == null && Boolean.TRUE.equals(row.getAsBoolean(PetEntry.COLUMN_DELETED)))
+                    continue;
+                if (previous != null)
+                    mBySeq.remove(previous.seq);
+                Change change = new Change(++mSeq, device, row);
+                mChanges.put(uuid, change);
+                mBySeq.put(change.seq, change);
+            }
+            for (Change change : mBySeq.tailMap(since, false).values()) {
+                if (change.device.equals(device))
+                    continue;
+                if (rows.size() == limit) {
+                    more = true;
+                    break;
+                }
+                rows.add(change.row);
+                seq = change.seq;
+            }
+            if (!more)
+                seq = mSeq;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + rows.size() * 96);
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(bytes, UTF_8));
+        writer.beginObject();
+        writer.name("seq").value(seq);
+        writer.name("more").value(more);
+        writer.name("changes");
+        PetSyncEngine.writeChanges(writer, rows.toArray(new ContentValues[rows.size()]));
+        writer.endObject();
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    private static void respond(OutputStream out, String status, byte[] body, boolean gzipped) throws IOException {
+        StringBuilder head = new StringBuilder("HTTP/1.1 ").append(status).append("\r\n")
+                .append("Content-Type: application/json; charset=utf-8\r\n")
+                .append("Content-Length: ").append(body.length).append("\r\n");
+        if (gzipped)
+            head.append("Content-Encoding: gzip\r\n");
+        head.append("Connection: close\r\n\r\n");
+        out.write(head.toString().getBytes(ASCII));
+        out.write(body);
+        out.flush();
+    }
+
+    /**
+     * Read one CRLF-terminated line of the request head.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0)
+                throw new IOException("Request head ends early");
+            if (c != '\r')
+                line.append((char) c);
+            if (line.length() > MAX_LINE)
+                throw new IOException("Request line too long");
+        }
+        return line.toString();
+    }
+}
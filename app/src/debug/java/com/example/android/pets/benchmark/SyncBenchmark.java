@@ -0,0 +1,160 @@
+package com.example.android.pets.benchmark;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.PetGenerator;
+import com.example.android.pets.data.PetPacker;
+import com.example.android.pets.data.PetProvider;
+import com.example.android.pets.data.PetSyncEngine;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Syncs two private {@link PetProvider}s, standing in for two devices, through a
+ * {@link StandInSyncServer} on the loopback interface, and reports the payload sizes, request
+ * counts and times of each sync.
+ *
+ * Device A is seeded with generated pets and synced to the server, then device B pulls them
+ * all. A then makes a number of random inserts, updates and deletes, pushes only those, and
+ * B pulls them; a last sync with nothing changed measures the cost of asking. The suite ends by
+ * checking that both devices hold the same pets. The providers run on scratch databases named
+ * benchmark-sync-a-* and benchmark-sync-b-*.
+ */
+final class SyncBenchmark {
+
+    static final int DEFAULT_ROWS = 10000;
+    static final int DEFAULT_CHANGES = 100;
+    static final long DEFAULT_SEED = 42;
+
+    private static final String LOG_TAG = SyncBenchmark.class.getSimpleName();
+    private static final int SEED_BATCH = 5000;
+
+    private static final String[] PROJECTION = {
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT };
+
+    private SyncBenchmark() {}
+
+    static void run(Context context, int rows, int changes, long seed, JsonWriter json) throws IOException {
+        if (rows < 1 || changes < 0)
+            throw new IllegalArgumentException("Invalid sync parameters");
+
+        ScratchContext scratchA = new ScratchContext(context, "benchmark-sync-a-");
+        ScratchContext scratchB = new ScratchContext(context, "benchmark-sync-b-");
+        scratchA.deleteDatabase(PetDbHelper.DATABASE_NAME);
+        scratchB.deleteDatabase(PetDbHelper.DATABASE_NAME);
+        PetProvider a = new PetProvider();
+        a.attachInfo(scratchA, null);
+        PetProvider b = new PetProvider();
+        b.attachInfo(scratchB, null);
+        StandInSyncServer server = new StandInSyncServer();
+        try {
+            PetSyncEngine syncA = new PetSyncEngine(a, server.url());
+            PetSyncEngine syncB = new PetSyncEngine(b, server.url());
+
+            PetGenerator generator = new PetGenerator(seed);
+            for (int seeded = 0; seeded < rows; seeded += SEED_BATCH) {
+                PetPacker.Writer writer = new PetPacker.Writer(SEED_BATCH * 48);
+                generator.pack(writer, seeded, Math.min(SEED_BATCH, rows - seeded));
+                Bundle extras = new Bundle();
+                extras.putByteArray(PetContract.EXTRA_PACKED, writer.toByteArray());
+                a.call(PetContract.METHOD_WRITE_PACKED, null, extras);
+            }
+
+            json.beginObject();
+            json.name("suite").value("sync");
+            json.name("sdk").value(Build.VERSION.SDK_INT);
+            json.name("rows").value(rows);
+            json.name("changes").value(changes);
+            json.name("seed").value(seed);
+            json.name("syncs").beginObject();
+            write(json, "initial_push", syncA.sync());
+            write(json, "initial_pull", syncB.sync());
+
+            // The scratch database is new, so the seeded pets have IDs 1 to rows
+            Random random = new Random(seed);
+            ContentValues weight = new ContentValues();
+            long inserted = rows;
+            for (int i = 0; i < changes; i++) {
+                int percent = random.nextInt(100);
+                long id = 1 + random.nextInt(rows);
+                if (percent < 20) {
+                    a.insert(PetEntry.CONTENT_URI, generator.generate(inserted++).toValues());
+                } else if (percent < 80) {
+                    weight.put(PetEntry.COLUMN_PET_WEIGHT, random.nextInt(60));
+                    a.update(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id), weight, null, null);
+                } else {
+                    a.delete(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id), null, null);
+                }
+            }
+            write(json, "delta_push", syncA.sync());
+            write(json, "delta_pull", syncB.sync());
+            write(json, "idle", syncB.sync());
+            json.endObject();
+
+            List<String> petsA = pets(a);
+            List<String> petsB = pets(b);
+            boolean consistent = petsA.equals(petsB);
+            if (!consistent)
+                Log.e(LOG_TAG, "Devices differ after sync: " + petsA.size() + " and " + petsB.size() + " pets");
+            json.name("pets").value(petsA.size());
+            json.name("server_pets").value(server.petCount());
+            json.name("server_requests").value(server.requestCount());
+            json.name("consistent").value(consistent);
+            json.endObject();
+        } finally {
+            server.close();
+            a.shutdown();
+            b.shutdown();
+            scratchA.deleteDatabase(PetDbHelper.DATABASE_NAME);
+            scratchB.deleteDatabase(PetDbHelper.DATABASE_NAME);
+        }
+    }
+
+    private static void write(JsonWriter json, String name, PetSyncEngine.Result result) throws IOException {
+        Log.i(LOG_TAG, name + ": " + result);
+        json.name(name).beginObject();
+        json.name("pushed").value(result.pushed);
+        json.name("pulled").value(result.pulled);
+        json.name("rejected").value(result.rejected);
+        json.name("requests").value(result.requests);
+        json.name("bytes_sent").value(result.bytesSent);
+        json.name("raw_bytes_sent").value(result.rawBytesSent);
+        json.name("bytes_received").value(result.bytesReceived);
+        json.name("raw_bytes_received").value(result.rawBytesReceived);
+        json.name("duration_ms").value(result.millis);
+        json.endObject();
+    }
+
+    /**
+     * Return the live pets of the provider as sorted strings, since _IDs differ between devices.
+     */
+    private static List<String> pets(PetProvider provider) {
+        List<String> pets = new ArrayList<>();
+        Cursor cursor = provider.query(PetEntry.CONTENT_URI, PROJECTION, null, null, null);
+        try {
+            while (cursor.moveToNext())
+                pets.add(cursor.getString(0) + "|" + cursor.getString(1) + "|" + cursor.getInt(2) + "|" + cursor.getInt(3));
+        } finally {
+            cursor.close();
+        }
+        Collections.sort(pets);
+        return pets;
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.android.pets.benchmark;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.JsonWriter;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetDbHelper;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures single-row and list read latency while another thread keeps inserting pets, once
+ * with the rollback journal and once with write-ahead logging, on a scratch copy of the schema.
+ */
+final class WalBenchmark {
+
+    private static final String DATABASE_NAME = "benchmark-wal.db";
+    private static final int SEED_ROWS = 10000;
+    private static final int READS = 2000;
+    private static final int PAGE_SIZE = 50;
+
+    private WalBenchmark() {}
+
+    static void run(Context context, JsonWriter json) throws IOException, InterruptedException {
+        json.beginObject();
+        json.name("suite").value("wal");
+        json.name("seed_rows").value(SEED_ROWS);
+        json.name("runs").beginArray();
+        runJournalMode(context, false, json);
+        runJournalMode(context, true, json);
+        json.endArray();
+        json.endObject();
+    }
+
+    private static void runJournalMode(Context context, boolean writeAheadLogging, JsonWriter json)
+            throws IOException, InterruptedException {
+        context.deleteDatabase(DATABASE_NAME);
+        PetDbHelper helper = new PetDbHelper(context, DATABASE_NAME, writeAheadLogging);
+        final SQLiteDatabase db = helper.getWritableDatabase();
+        seed(db);
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicLong writes = new AtomicLong();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ContentValues values = new ContentValues();
+                values.put(PetEntry.COLUMN_PET_NAME, "Writer");
+                values.put(PetEntry.COLUMN_BREED_ID, 1);
+                values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+                values.put(PetEntry.COLUMN_PET_WEIGHT, 5);
+                while (!stop.get()) {
+                    db.insert(PetEntry.TABLE_NAME, null, values);
+                    writes.incrementAndGet();
+                }
+            }
+        }, "wal-benchmark-writer");
+
+        LatencyRecorder itemReads = new LatencyRecorder(READS);
+        LatencyRecorder listReads = new LatencyRecorder(READS);
+        Random random = new Random(42);
+        String[] itemArgs = new String[1];
+        String[] listArgs = new String[1];
+
+        writer.start();
+        long start = System.nanoTime();
+        for (int i = 0; i < READS; i++) {
+            itemArgs[0] = String.valueOf(1 + random.nextInt(SEED_ROWS));
+            long begin = System.nanoTime();
+            Cursor cursor = db.query(PetEntry.VIEW_NAME, null, PetEntry._ID + "=?", itemArgs,
+                    null, null, null);
+            cursor.moveToFirst();
+            cursor.close();
+            itemReads.record(System.nanoTime() - begin);
+
+            listArgs[0] = String.valueOf(random.nextInt(SEED_ROWS - PAGE_SIZE));
+            begin = System.nanoTime();
+            cursor = db.query(PetEntry.VIEW_NAME, null, PetEntry._ID + ">?", listArgs,
+                    null, null, PetEntry._ID, String.valueOf(PAGE_SIZE));
+            cursor.getCount();
+            cursor.close();
+            listReads.record(System.nanoTime() - begin);
+        }
+        long elapsed = System.nanoTime() - start;
+        stop.set(true);
+        writer.join();
+
+        helper.close();
+        context.deleteDatabase(DATABASE_NAME);
+
+        json.beginObject();
+        json.name("journal").value(writeAheadLogging ? "wal" : "rollback");
+        json.name("duration_ms").value(elapsed / 1000000);
+        json.name("concurrent_writes").value(writes.get());
+        json.name("item_read");
+        itemReads.writeTo(json);
+        json.name("list_read");
+        listReads.writeTo(json);
+        json.endObject();
+    }
+
+    private static void seed(SQLiteDatabase db) {
+        SQLiteStatement insertBreed = db.compileStatement("INSERT INTO " + PetEntry.BREEDS_TABLE_NAME + " ("
+                + PetEntry.COLUMN_BREED_ID + ", " + PetEntry.COLUMN_PET_BREED + ") VALUES (?, ?)");
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + PetEntry.TABLE_NAME + " ("
+                + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_BREED_ID + ", "
+                + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + ") VALUES (?, ?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < 100; i++) {
+                insertBreed.bindLong(1, i + 1);
+                insertBreed.bindString(2, "Breed " + i);
+                insertBreed.executeInsert();
+            }
+            for (int i = 0; i < SEED_ROWS; i++) {
+                insert.bindString(1, "Pet " + i);
+                insert.bindLong(2, i % 100 + 1);
+                insert.bindLong(3, i % 3);
+                insert.bindLong(4, i % 60);
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+            insertBreed.close();
+        }
+    }
+}
@@ -28,16 +28,19 @@ import android.support.design.widget.FloatingActionButton;
 import android.support.v4.content.Loader;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
 import android.widget.Toast;
 
+import com.example.android.pets.data.PetCatalogSnapshot;
 import com.example.android.pets.data.PetContract.PetEntry;
 import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.PetGenerator;
+import com.example.android.pets.data.PetWriteQueue;
 
 import java.util.List;
 
@@ -48,7 +51,11 @@ public class CatalogActivity extends AppCompatActivity implements android.app.Lo
 
     public static int URL_LOADER = 0;
     public static final String LOG_TAG = CatalogActivity.class.getSimpleName();
-    PetCursorAdapter cursorAdapter;
+    /** Seed of the generated dummy pets, and how many were inserted since the app started */
+    private static final long DUMMY_DATA_SEED = 1;
+    private static long sDummyPets;
+    PetRecyclerAdapter petAdapter;
+    View emptyView;
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -64,28 +71,37 @@ public class CatalogActivity extends AppCompatActivity implements android.app.Lo
             }
         });
 
-        // Find the ListView which will be populated with the pet data
-        ListView lv = (ListView) findViewById(R.id.list);
-        // Find and set empty view on the ListView, so that it only shows when the list has 0 items.
-        View empty_view = findViewById(R.id.empty_view);
-        lv.setEmptyView(empty_view);
-
-        // Find ListView to populate
-        lv = (ListView) findViewById(R.id.list);
-        // Setup cursorAdapter using null as it will be initialized by LoaderManager
-        cursorAdapter = new PetCursorAdapter(this,null);
-        // Attach cursor adapter to the ListView
-        lv.setAdapter(cursorAdapter);
-
-        // Setup the item click listener
-        lv.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        // Find the RecyclerView which will be populated with the pet data
+        RecyclerView rv = (RecyclerView) findViewById(R.id.list);
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        rv.setLayoutManager(layoutManager);
+        // Find the empty view, so that it only shows when the list has 0 items.
+        emptyView = findViewById(R.id.empty_view);
+
+        // Setup the adapter with the item click listener; its cursor is provided by LoaderManager
+        petAdapter = new PetRecyclerAdapter(this, new PetRecyclerAdapter.OnPetClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
+            public void onPetClick(long id) {
                 Intent i = new Intent(CatalogActivity.this,EditorActivity.class);
                 i.setData(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id));
                 startActivity(i);
             }
         });
+        // Attach the adapter to the RecyclerView
+        rv.setAdapter(petAdapter);
+
+        // Fetch the next page of pets when the list is scrolled close to its end
+        rv.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                int itemCount = petAdapter.getItemCount();
+                if (itemCount > 0 && layoutManager.findLastVisibleItemPosition() >= itemCount - PagedPetLoader.PAGE_SIZE / 2) {
+                    android.content.Loader<Cursor> loader = getLoaderManager().getLoader(URL_LOADER);
+                    if (loader != null)
+                        ((PagedPetLoader) loader).loadNextPage();
+                }
+            }
+        });
 
         // Prepare the loader.  Either re-connect with an existing one or start a new one.
         getLoaderManager().initLoader(URL_LOADER,null,this);
@@ -104,21 +120,21 @@ public class CatalogActivity extends AppCompatActivity implements android.app.Lo
         // Create and/or open a database to write to it
         //SQLiteDatabase db = mDbHelper.getWritableDatabase();
 
-        // Create a new map of values where column names are keys
-        ContentValues values = new ContentValues();
-        values.put(PetEntry.COLUMN_PET_NAME,"Toto");
-        values.put(PetEntry.COLUMN_PET_BREED,"Terrier");
-        values.put(PetEntry.COLUMN_PET_GENDER,PetEntry.GENDER_MALE);
-        values.put(PetEntry.COLUMN_PET_WEIGHT,7);
+        // Create a new map of values where column names are keys, for the next generated pet
+        ContentValues values = new PetGenerator(DUMMY_DATA_SEED).generate(sDummyPets++).toValues();
 
         //long newRowId = db.insert(PetEntry.TABLE_NAME,null,values);
-        Uri newRowUri = getContentResolver().insert(PetEntry.CONTENT_URI,values);
-        long newRowId = ContentUris.parseId(newRowUri);
-        if(newRowId == -1){
-            Toast.makeText(this,"Could not insert dummy data into the database",Toast.LENGTH_SHORT).show();
-        }else{
-            Toast.makeText(this,"Dummy data inserted with row id "+newRowId,Toast.LENGTH_SHORT).show();
-        }
+        PetWriteQueue.get(this).insert(values, new PetWriteQueue.Callback<Uri>() {
+            @Override
+            public void onComplete(Uri newRowUri) {
+                Toast.makeText(CatalogActivity.this,"Dummy data inserted with row id "+ContentUris.parseId(newRowUri),Toast.LENGTH_SHORT).show();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                Toast.makeText(CatalogActivity.this,"Could not insert dummy data into the database",Toast.LENGTH_SHORT).show();
+            }
+        });
     }
 
     private void deleteAllPets(){
@@ -126,11 +142,19 @@ public class CatalogActivity extends AppCompatActivity implements android.app.Lo
         // SQLiteDatabase db = mDbHelper.getWritableDatabase();
 
         // Deletes all entries in the table
-        int deletedRows = getContentResolver().delete(PetEntry.CONTENT_URI, null, null);
+        PetWriteQueue.get(this).deleteAll(new PetWriteQueue.Callback<Integer>() {
+            @Override
+            public void onComplete(Integer deletedRows) {
+                if(deletedRows >0){
+                    Toast.makeText(CatalogActivity.this,deletedRows+" rows deleted !",Toast.LENGTH_SHORT).show();
+                }
+            }
 
-        if(deletedRows >0){
-            Toast.makeText(this,deletedRows+" rows deleted !",Toast.LENGTH_SHORT).show();
-        }
+            @Override
+            public void onFailure(Exception e) {
+                Toast.makeText(CatalogActivity.this,"Could not delete the pets",Toast.LENGTH_SHORT).show();
+            }
+        });
     }
 
     private void showDeleteConfirmationDialog() {
@@ -182,12 +206,19 @@ public class CatalogActivity extends AppCompatActivity implements android.app.Lo
     // This is called when a new Loader needs to be created.
     @Override
     public android.content.Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
-        // Now create and return a CursorLoader that will take care of
+        // Now create and return a PagedPetLoader that will take care of
         // creating a Cursor for the data being displayed.
-        // The CursorLoader finds our PetProvider using the CONTENT_URI
-        // and calls the query method whenever needed
+        // It pages through our PetProvider using the CONTENT_URI
+        // and fetches more pets as the list is scrolled. On a cold start it first shows
+        // the pets saved in the catalog snapshot, until the current ones are loaded.
         Log.v(LOG_TAG,"onCreateLoader called !");
-        return new CursorLoader(this,PetEntry.CONTENT_URI,null,null,null,null);
+        String[] projection = {
+                PetEntry._ID,
+                PetEntry.COLUMN_PET_NAME,
+                PetEntry.COLUMN_PET_BREED,
+                PetEntry.COLUMN_PET_GENDER,
+                PetEntry.COLUMN_PET_WEIGHT };
+        return new PagedPetLoader(this,projection,PetCatalogSnapshot.file(this));
     }
 
     @Override
@@ -195,7 +226,8 @@ public class CatalogActivity extends AppCompatActivity implements android.app.Lo
         // Swap the new cursor in.  (The framework will take care of closing the
         // old cursor once we return.)
         Log.v(LOG_TAG,"onLoadFinished called !");
-        cursorAdapter.swapCursor(cursor);
+        petAdapter.swapCursor(cursor);
+        updateEmptyView();
     }
 
     @Override
@@ -204,6 +236,11 @@ public class CatalogActivity extends AppCompatActivity implements android.app.Lo
         // above is about to be closed.  We need to make sure we are no
         // longer using it.
         Log.v(LOG_TAG,"onLoaderReset called !");
-        cursorAdapter.swapCursor(null);
+        petAdapter.swapCursor(null);
+    }
+
+    // Show the empty view only when there are no pets to list
+    private void updateEmptyView() {
+        emptyView.setVisibility(petAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
     }
 }
@@ -41,9 +41,11 @@ import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.example.android.pets.data.PetConflictException;
 import com.example.android.pets.data.PetContract;
 import com.example.android.pets.data.PetContract.PetEntry;
 import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.PetWriteQueue;
 
 import java.util.List;
 
@@ -77,6 +79,12 @@ public class EditorActivity extends AppCompatActivity implements android.app.Loa
     Uri intentUri;
     private boolean mPetHasChanged=false;
 
+    /** True while a save or delete is queued, so repeated taps do not write twice */
+    private boolean mWriting = false;
+
+    /** Version of the pet the fields were loaded from, or -1 for a new pet */
+    private long mVersion = -1;
+
     private View.OnTouchListener mTouchListener = new View.OnTouchListener() {
         @Override
         public boolean onTouch(View view, MotionEvent motionEvent) {
@@ -259,33 +267,62 @@ public class EditorActivity extends AppCompatActivity implements android.app.Loa
             return;
         }
 
-        Uri newRowUri;
-        int rowsAffected;
+        if(mWriting)
+            return;
+
+        // The write runs on the write queue's thread; the editor closes once it succeeded
         if(intentUri == null)
         {
-            newRowUri = getContentResolver().insert(PetEntry.CONTENT_URI,values);
-            if(newRowUri == null){
-                Toast.makeText(this,"Error inserting in the database.",Toast.LENGTH_SHORT).show();
-            }else {
-                long newRowId = ContentUris.parseId(newRowUri);
-                Toast.makeText(this,"Pet Row inserted with id : "+newRowId,Toast.LENGTH_SHORT).show();
-                // Close the editor activity on successful insertion
-                finish();
-            }
+            mWriting = true;
+            PetWriteQueue.get(this).insert(values, new PetWriteQueue.Callback<Uri>() {
+                @Override
+                public void onComplete(Uri newRowUri) {
+                    long newRowId = ContentUris.parseId(newRowUri);
+                    Toast.makeText(EditorActivity.this,"Pet Row inserted with id : "+newRowId,Toast.LENGTH_SHORT).show();
+                    // Close the editor activity on successful insertion
+                    finish();
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    mWriting = false;
+                    Toast.makeText(EditorActivity.this,"Error inserting in the database.",Toast.LENGTH_SHORT).show();
+                }
+            });
         }
         else
         {
             if(mPetHasChanged) {
-                String selection = PetEntry._ID + "=?";
-                String[] selectionArgs = new String[]{String.valueOf(ContentUris.parseId(intentUri))};
-                rowsAffected = getContentResolver().update(intentUri, values, selection, selectionArgs);
-                if (rowsAffected == 0)
-                    Toast.makeText(this, "Error updating the row in database.", Toast.LENGTH_SHORT).show();
-                else {
-                    long updatedRowId = ContentUris.parseId(intentUri);
-                    Toast.makeText(this, "Updated row id " + updatedRowId + " in database.", Toast.LENGTH_SHORT).show();
-                    finish();
-                }
+                mWriting = true;
+                final long petId = ContentUris.parseId(intentUri);
+                PetWriteQueue.Callback<Integer> callback = new PetWriteQueue.Callback<Integer>() {
+                    @Override
+                    public void onComplete(Integer rowsAffected) {
+                        if (rowsAffected == 0) {
+                            onFailure(null);
+                            return;
+                        }
+                        Toast.makeText(EditorActivity.this, "Updated row id " + petId + " in database.", Toast.LENGTH_SHORT).show();
+                        finish();
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        mWriting = false;
+                        if (e instanceof PetConflictException) {
+                            // Keep the user's values; saving again overwrites the newer version
+                            mVersion = ((PetConflictException) e).getCurrentVersion();
+                            Toast.makeText(EditorActivity.this, "Pet was changed elsewhere. Save again to overwrite it with your changes.", Toast.LENGTH_LONG).show();
+                            return;
+                        }
+                        Toast.makeText(EditorActivity.this, "Error updating the row in database.", Toast.LENGTH_SHORT).show();
+                    }
+                };
+                // Only saved if nobody changed the pet since it was loaded
+                if (mVersion >= 0)
+                    PetWriteQueue.get(this).update(petId, mVersion, values, callback);
+                else
+                    PetWriteQueue.get(this).update(petId, values, callback);
             }else{
                 Toast.makeText(this, "Nothing updated in database.", Toast.LENGTH_SHORT).show();
                 finish();
@@ -294,16 +331,29 @@ public class EditorActivity extends AppCompatActivity implements android.app.Loa
     }
 
     private void deletePet(){
+        if(mWriting)
+            return;
+        mWriting = true;
 
         // Deletes the received pet Uri from the table
-        int deletedRows = getContentResolver().delete(intentUri, null, null);
+        final long petId = ContentUris.parseId(intentUri);
+        PetWriteQueue.get(this).delete(petId, new PetWriteQueue.Callback<Integer>() {
+            @Override
+            public void onComplete(Integer deletedRows) {
+                if (deletedRows == 0) {
+                    onFailure(null);
+                    return;
+                }
+                Toast.makeText(EditorActivity.this, "Pet deleted with row id " + petId, Toast.LENGTH_SHORT).show();
+                finish();
+            }
 
-        if(deletedRows >0) {
-            Toast.makeText(this, "Pet deleted with row id " + ContentUris.parseId(intentUri), Toast.LENGTH_SHORT).show();
-            finish();
-        }
-        else
-            Toast.makeText(this,"Error in deleting pet",Toast.LENGTH_SHORT).show();
+            @Override
+            public void onFailure(Exception e) {
+                mWriting = false;
+                Toast.makeText(EditorActivity.this,"Error in deleting pet",Toast.LENGTH_SHORT).show();
+            }
+        });
     }
 
     @Override
@@ -352,7 +402,8 @@ public class EditorActivity extends AppCompatActivity implements android.app.Loa
                 PetEntry.COLUMN_PET_NAME,
                 PetEntry.COLUMN_PET_BREED,
                 PetEntry.COLUMN_PET_GENDER,
-                PetEntry.COLUMN_PET_WEIGHT };
+                PetEntry.COLUMN_PET_WEIGHT,
+                PetEntry.COLUMN_PET_VERSION };
         return new CursorLoader(this, intentUri, projection,null,null,null);
     }
 
@@ -360,6 +411,11 @@ public class EditorActivity extends AppCompatActivity implements android.app.Loa
     public void onLoadFinished(android.content.Loader<Cursor> loader, Cursor cursor) {
 
         if(cursor.moveToFirst()) {
+            // Keep the user's edits and the version they started from when the pet changes
+            // underneath them; saving them then reports the conflict
+            if (mPetHasChanged && mVersion >= 0)
+                return;
+            mVersion = cursor.getLong(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_VERSION));
 
             // mNameEditText = (EditText) findViewById(R.id.edit_pet_name);
             mNameEditText.setText(cursor.getString(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_NAME)));
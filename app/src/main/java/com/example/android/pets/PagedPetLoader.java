@@ -0,0 +1,394 @@
+package com.example.android.pets;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.MergeCursor;
+import android.os.Bundle;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.util.Log;
+
+import com.example.android.pets.data.PetCatalogSnapshot;
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads the pets catalog one page at a time from the keyset-paginated pets URI.
+ *
+ * Every result holds all the pages loaded so far, and {@link #loadNextPage()} appends the next
+ * one without re-reading the pages before it. When the pet data changes, the rows already on
+ * screen are reloaded in a single query. The loader owns the page cursors and closes them
+ * once they are no longer part of the delivered result.
+ *
+ * Each result also describes how it differs from the result delivered before it, computed on
+ * the loader's background thread, so {@link #dispatchUpdates} can tell a RecyclerView adapter
+ * exactly which rows were inserted, removed or changed.
+ *
+ * Given a snapshot file, the loader also keeps the first page in a {@link PetCatalogSnapshot}.
+ * The first time it starts it delivers the rows of the snapshot at once, and then loads the
+ * current rows, which are diffed against the snapshot like any reload. The snapshot is
+ * rewritten after every load of the first page whose rows all belong to one data generation.
+ */
+public class PagedPetLoader extends AsyncTaskLoader<Cursor> {
+
+    /** Number of pets fetched per page */
+    public static final int PAGE_SIZE = 50;
+
+    private static final String LOG_TAG = PagedPetLoader.class.getSimpleName();
+
+    private final String[] mProjection;
+
+    /** File of the snapshot of the first page, or null to keep none */
+    private final File mSnapshotFile;
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+
+    /** The result last delivered, or null before the first load */
+    private volatile PagedCursor mCursor;
+
+    /**
+     * Counts the content changes seen. A load reloads the shown rows unless the result last
+     * delivered was loaded at the current count; it is not enough to clear a flag when a load
+     * starts, since a next page request may cancel that load and append instead.
+     */
+    private volatile long mContentVersion;
+    private volatile boolean mNextPageRequested;
+
+    private static final AtomicLong sVersions = new AtomicLong();
+
+    public PagedPetLoader(Context context, String[] projection) {
+        this(context, projection, null);
+    }
+
+    /**
+     * @param projection the pet columns to load, which must all be pet columns when a snapshot
+     *                   file is given
+     * @param snapshotFile file of the snapshot of the first page, or null to keep none
+     */
+    public PagedPetLoader(Context context, String[] projection, File snapshotFile) {
+        super(context);
+        mProjection = projection;
+        mSnapshotFile = snapshotFile;
+    }
+
+    /**
+     * Fetch the next page, unless one is already being fetched or every pet has been loaded.
+     */
+    public void loadNextPage() {
+        PagedCursor cursor = mCursor;
+        if (cursor == null || cursor.mExhausted || mNextPageRequested)
+            return;
+        mNextPageRequested = true;
+        forceLoad();
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        PagedCursor current = mCursor;
+        long contentVersion = mContentVersion;
+        List<Cursor> pages = new ArrayList<>();
+        int limit = PAGE_SIZE;
+        long afterId = -1;
+
+        if (current == null || current.mContentVersion != contentVersion) {
+            // Reload every row that is already shown in one page
+            if (current != null)
+                limit = Math.max(PAGE_SIZE, current.mRowCount);
+        } else {
+            pages.addAll(current.mPages);
+            afterId = current.mLastId;
+        }
+
+        // The generation before and after the first page tells if all its rows are current
+        long generation = afterId < 0 && mSnapshotFile != null ? dataGeneration() : -1;
+        Cursor page = getContext().getContentResolver().query(
+                PetEntry.buildPageUri(PetEntry._ID, null, afterId, limit), mProjection, null, null, null);
+        if (page == null)
+            return current;
+
+        // Fill the cursor window and fingerprint the rows here rather than on the main thread
+        boolean append = current != null && afterId >= 0;
+        int count = page.getCount();
+        int offset = append ? current.mRowCount : 0;
+        long[] ids = append ? Arrays.copyOf(current.mIds, offset + count) : new long[count];
+        int[] hashes = append ? Arrays.copyOf(current.mHashes, offset + count) : new int[count];
+        int idColumn = page.getColumnIndexOrThrow(PetEntry._ID);
+        for (int i = 0; page.moveToPosition(i); i++) {
+            ids[offset + i] = page.getLong(idColumn);
+            hashes[offset + i] = hashRow(page);
+        }
+        long lastId = count > 0 ? ids[offset + count - 1] : afterId;
+        if (pages.isEmpty())
+            page.registerContentObserver(mObserver);
+        pages.add(page);
+
+        if (generation >= 0)
+            saveSnapshot(page, generation, current);
+
+        PagedCursor result = new PagedCursor(pages, ids, hashes, lastId, count < limit);
+        result.mContentVersion = append ? current.mContentVersion : contentVersion;
+        if (append) {
+            result.mBaseVersion = current.mVersion;
+        } else if (current != null) {
+            result.mBaseVersion = current.mVersion;
+            result.mDiff = DiffUtil.calculateDiff(new RowDiff(current, result), false);
+        }
+        return result;
+    }
+
+    /**
+     * Save the first page, read at the given generation, to the snapshot file, or delete the
+     * file if a write committed while the page was read.
+     */
+    private void saveSnapshot(Cursor page, long generation, PagedCursor current) {
+        if (current != null && current.mSnapshotGeneration >= 0 && current.mSnapshotGeneration != generation)
+            Log.d(LOG_TAG, "Replacing catalog snapshot of generation " + current.mSnapshotGeneration
+                    + " with generation " + generation);
+        if (dataGeneration() != generation) {
+            PetCatalogSnapshot.delete(mSnapshotFile);
+            return;
+        }
+        try {
+            PetCatalogSnapshot.write(mSnapshotFile, generation, page, PAGE_SIZE);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot save catalog snapshot", e);
+            PetCatalogSnapshot.delete(mSnapshotFile);
+        }
+    }
+
+    /**
+     * Return the generation of the pet data, or -1 if the provider cannot tell.
+     */
+    private long dataGeneration() {
+        Bundle result = getContext().getContentResolver().call(
+                PetEntry.CONTENT_URI, PetContract.METHOD_DATA_GENERATION, null, null);
+        return result == null ? -1 : result.getLong(PetContract.EXTRA_GENERATION, -1);
+    }
+
+    /**
+     * Return the rows of the snapshot file as a result, or null if there is no usable snapshot.
+     */
+    private PagedCursor readSnapshot() {
+        PetCatalogSnapshot snapshot = PetCatalogSnapshot.read(mSnapshotFile);
+        if (snapshot == null)
+            return null;
+        Cursor rows = snapshot.toCursor(mProjection);
+        int count = rows.getCount();
+        long[] ids = new long[count];
+        int[] hashes = new int[count];
+        int idColumn = rows.getColumnIndexOrThrow(PetEntry._ID);
+        for (int i = 0; rows.moveToPosition(i); i++) {
+            ids[i] = rows.getLong(idColumn);
+            hashes[i] = hashRow(rows);
+        }
+        List<Cursor> pages = new ArrayList<>(1);
+        pages.add(rows);
+        // No page is appended to the snapshot; the next page follows the current first page
+        PagedCursor result = new PagedCursor(pages, ids, hashes, count > 0 ? ids[count - 1] : -1, true);
+        result.mSnapshotGeneration = snapshot.generation();
+        return result;
+    }
+
+    /**
+     * Tell the adapter how the rows changed from {@code from}, the cursor it was showing, to
+     * {@code to}. Return false, leaving the adapter untouched, if {@code to} was not loaded
+     * right after {@code from} and the adapter must be refreshed as a whole.
+     */
+    public static boolean dispatchUpdates(Cursor from, Cursor to, RecyclerView.Adapter<?> adapter) {
+        if (!(from instanceof PagedCursor) || !(to instanceof PagedCursor))
+            return false;
+        PagedCursor base = (PagedCursor) from;
+        PagedCursor result = (PagedCursor) to;
+        if (result.mBaseVersion != base.mVersion)
+            return false;
+        if (result.mDiff != null)
+            result.mDiff.dispatchUpdatesTo(adapter);
+        else
+            adapter.notifyItemRangeInserted(base.mRowCount, result.mRowCount - base.mRowCount);
+        return true;
+    }
+
+    /**
+     * Fingerprint the visible content of the current row of a page.
+     */
+    private static int hashRow(Cursor cursor) {
+        int hash = 17;
+        for (int column = 0; column < cursor.getColumnCount(); column++) {
+            int value;
+            switch (cursor.getType(column)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    value = 0;
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    long number = cursor.getLong(column);
+                    value = (int) (number ^ (number >>> 32));
+                    break;
+                default:
+                    value = cursor.getString(column).hashCode();
+                    break;
+            }
+            hash = 31 * hash + value;
+        }
+        return hash;
+    }
+
+    @Override
+    public void deliverResult(Cursor cursor) {
+        PagedCursor newCursor = (PagedCursor) cursor;
+        if (isReset()) {
+            closePagesNotIn(newCursor, mCursor);
+            return;
+        }
+        PagedCursor oldCursor = mCursor;
+        mCursor = newCursor;
+        mNextPageRequested = false;
+
+        if (isStarted())
+            super.deliverResult(newCursor);
+
+        // Pages dropped by a reload are no longer shown once the new result has been delivered
+        if (oldCursor != null && oldCursor != newCursor)
+            closePagesNotIn(oldCursor, newCursor);
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (mCursor == null && mSnapshotFile != null)
+            mCursor = readSnapshot();
+        if (mCursor != null)
+            deliverResult(mCursor);
+        if (takeContentChanged() || mCursor == null || mCursor.mSnapshotGeneration >= 0)
+            forceLoad();
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    public void onContentChanged() {
+        mContentVersion++;
+        super.onContentChanged();
+    }
+
+    @Override
+    public void onCanceled(Cursor cursor) {
+        closePagesNotIn((PagedCursor) cursor, mCursor);
+        mNextPageRequested = false;
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        if (mCursor != null)
+            closePagesNotIn(mCursor, null);
+        mCursor = null;
+    }
+
+    /**
+     * Close the pages of {@code cursor} that are not shared with {@code keep}.
+     */
+    private static void closePagesNotIn(PagedCursor cursor, PagedCursor keep) {
+        if (cursor == null)
+            return;
+        for (Cursor page : cursor.mPages) {
+            if (keep == null || !keep.mPages.contains(page))
+                page.close();
+        }
+    }
+
+    /**
+     * The result of the loader: the pages loaded so far, read as a single cursor. Closing it
+     * leaves the pages open, because the next result shares them.
+     */
+    private static final class PagedCursor extends MergeCursor {
+
+        final long mVersion = sVersions.incrementAndGet();
+        final List<Cursor> mPages;
+        final int mRowCount;
+        final long[] mIds;
+        final int[] mHashes;
+        final long mLastId;
+        final boolean mExhausted;
+
+        /** Version of the result this one was compared with, or 0 for the first result */
+        long mBaseVersion;
+
+        /** Changes from that result, or null if this result just appends a page to it */
+        DiffUtil.DiffResult mDiff;
+
+        /** Data generation of the snapshot this result was read from, or -1 for loaded rows */
+        long mSnapshotGeneration = -1;
+
+        /** Content version its rows were reloaded at, or -1 for a snapshot, which is always reloaded */
+        long mContentVersion = -1;
+
+        PagedCursor(List<Cursor> pages, long[] ids, int[] hashes, long lastId, boolean exhausted) {
+            super(keepOpen(pages));
+            mPages = pages;
+            mRowCount = ids.length;
+            mIds = ids;
+            mHashes = hashes;
+            mLastId = lastId;
+            mExhausted = exhausted;
+        }
+
+        private static Cursor[] keepOpen(List<Cursor> pages) {
+            Cursor[] cursors = new Cursor[pages.size()];
+            for (int i = 0; i < cursors.length; i++) {
+                cursors[i] = new CursorWrapper(pages.get(i)) {
+                    @Override
+                    public void close() {
+                        // The loader closes the page itself
+                    }
+                };
+            }
+            return cursors;
+        }
+    }
+
+    /**
+     * Compares two results row by row: rows are the same pet if their IDs match, and unchanged
+     * if their fingerprints match too.
+     */
+    private static final class RowDiff extends DiffUtil.Callback {
+
+        private final PagedCursor mOld;
+        private final PagedCursor mNew;
+
+        RowDiff(PagedCursor oldCursor, PagedCursor newCursor) {
+            mOld = oldCursor;
+            mNew = newCursor;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOld.mRowCount;
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNew.mRowCount;
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldPosition, int newPosition) {
+            return mOld.mIds[oldPosition] == mNew.mIds[newPosition];
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldPosition, int newPosition) {
+            return mOld.mHashes[oldPosition] == mNew.mHashes[newPosition];
+        }
+    }
+}
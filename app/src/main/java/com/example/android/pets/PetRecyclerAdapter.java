@@ -0,0 +1,129 @@
+package com.example.android.pets;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import com.example.android.pets.data.PetContract;
+
+/**
+ * {@link RecyclerView.Adapter} that shows the pets of a cursor loaded by {@link PagedPetLoader}.
+ *
+ * Column indices are resolved once per cursor and each row's views are looked up once per
+ * view holder. When a new cursor is swapped in, only the rows the loader found to have changed
+ * are rebound.
+ */
+public class PetRecyclerAdapter extends RecyclerView.Adapter<PetRecyclerAdapter.PetViewHolder> {
+
+    /** Called when the user clicks on a pet */
+    public interface OnPetClickListener {
+        void onPetClick(long id);
+    }
+
+    private final LayoutInflater mInflater;
+    private final OnPetClickListener mListener;
+    private final String mMale;
+    private final String mFemale;
+    private final String mUnknown;
+
+    private Cursor mCursor;
+    private int mIdColumn;
+    private int mNameColumn;
+    private int mBreedColumn;
+    private int mGenderColumn;
+    private int mWeightColumn;
+
+    public PetRecyclerAdapter(Context context, OnPetClickListener listener) {
+        mInflater = LayoutInflater.from(context);
+        mListener = listener;
+        mMale = context.getString(R.string.gender_male);
+        mFemale = context.getString(R.string.gender_female);
+        mUnknown = context.getString(R.string.gender_unknown);
+        setHasStableIds(true);
+    }
+
+    /**
+     * Show the given cursor. The previous cursor is not closed, its loader owns it.
+     */
+    public void swapCursor(Cursor cursor) {
+        if (cursor == mCursor)
+            return;
+        Cursor oldCursor = mCursor;
+        mCursor = cursor;
+        if (cursor != null) {
+            mIdColumn = cursor.getColumnIndexOrThrow(PetContract.PetEntry._ID);
+            mNameColumn = cursor.getColumnIndexOrThrow(PetContract.PetEntry.COLUMN_PET_NAME);
+            mBreedColumn = cursor.getColumnIndexOrThrow(PetContract.PetEntry.COLUMN_PET_BREED);
+            mGenderColumn = cursor.getColumnIndexOrThrow(PetContract.PetEntry.COLUMN_PET_GENDER);
+            mWeightColumn = cursor.getColumnIndexOrThrow(PetContract.PetEntry.COLUMN_PET_WEIGHT);
+        }
+        if (!PagedPetLoader.dispatchUpdates(oldCursor, cursor, this))
+            notifyDataSetChanged();
+    }
+
+    @Override
+    public int getItemCount() {
+        return mCursor == null ? 0 : mCursor.getCount();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mCursor != null && mCursor.moveToPosition(position) ? mCursor.getLong(mIdColumn) : RecyclerView.NO_ID;
+    }
+
+    @Override
+    public PetViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        return new PetViewHolder(mInflater.inflate(R.layout.list_item, parent, false));
+    }
+
+    @Override
+    public void onBindViewHolder(PetViewHolder holder, int position) {
+        if (!mCursor.moveToPosition(position))
+            return;
+        holder.mName.setText(mCursor.getString(mNameColumn));
+        holder.mBreed.setText(mCursor.getString(mBreedColumn));
+        holder.mWeight.setText(mCursor.getInt(mWeightColumn) + " Kg");
+        switch (mCursor.getInt(mGenderColumn)) {
+            case PetContract.PetEntry.GENDER_MALE:
+                holder.mGender.setText(mMale);
+                break;
+            case PetContract.PetEntry.GENDER_FEMALE:
+                holder.mGender.setText(mFemale);
+                break;
+            default:
+                holder.mGender.setText(mUnknown);
+                break;
+        }
+    }
+
+    /**
+     * Holds the views of one row so they are only looked up when the row is created.
+     */
+    class PetViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+
+        final TextView mName;
+        final TextView mBreed;
+        final TextView mWeight;
+        final TextView mGender;
+
+        PetViewHolder(View itemView) {
+            super(itemView);
+            mName = (TextView) itemView.findViewById(R.id.pet_name);
+            mBreed = (TextView) itemView.findViewById(R.id.pet_breed);
+            mWeight = (TextView) itemView.findViewById(R.id.pet_weight);
+            mGender = (TextView) itemView.findViewById(R.id.pet_gender);
+            itemView.setOnClickListener(this);
+        }
+
+        @Override
+        public void onClick(View view) {
+            long id = getItemId();
+            if (id != RecyclerView.NO_ID)
+                mListener.onPetClick(id);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * The first rows of the pets catalog saved to a small memory-mapped file, so the catalog can
+ * show them on a cold start before the database is even opened.
+ *
+ * The file holds a header followed by the rows packed by {@link PetPacker}. The header records
+ * the database version and the data generation ({@link PetContract#METHOD_DATA_GENERATION})
+ * the rows were read at, and a checksum of the rows. Files of another database version or
+ * with a bad checksum are deleted when read; a snapshot of an older generation is stale, and
+ * its reader replaces it once it has loaded the current rows.
+ *
+ * Files are written to a temporary file and renamed over the old one, so a reader never sees
+ * a partly written snapshot.
+ */
+public final class PetCatalogSnapshot {
+
+    private static final String LOG_TAG = PetCatalogSnapshot.class.getSimpleName();
+
+    private static final String FILE_NAME = "catalog.snapshot";
+
+    private static final int MAGIC = 0x50435331;
+
+    /** Magic, database version, generation, packed length and checksum */
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 4 + 4;
+
+    /** Larger files are not snapshots this class wrote */
+    private static final int MAX_FILE_BYTES = 1024 * 1024;
+
+    private final long mGeneration;
+    private final int mCount;
+    private final long[] mIds;
+    private final String[] mNames;
+    private final String[] mBreeds;
+    private final int[] mGenders;
+    private final int[] mWeights;
+
+    private PetCatalogSnapshot(long generation, PetPacker.Reader reader) {
+        mGeneration = generation;
+        mCount = reader.count();
+        mIds = new long[mCount];
+        mNames = new String[mCount];
+        mBreeds = new String[mCount];
+        mGenders = new int[mCount];
+        mWeights = new int[mCount];
+        for (int i = 0; reader.next(); i++) {
+            mIds[i] = reader.id();
+            mNames[i] = reader.name();
+            mBreeds[i] = reader.breed();
+            mGenders[i] = reader.gender();
+            mWeights[i] = reader.weight();
+        }
+    }
+
+    /**
+     * Return the snapshot file of the application.
+     */
+    public static File file(Context context) {
+        return new File(context.getCacheDir(), FILE_NAME);
+    }
+
+    /**
+     * Read the snapshot in the given file. Return null if there is none, or if it was written
+     * by another database version or is damaged, in which case the file is deleted.
+     */
+    public static PetCatalogSnapshot read(File file) {
+        if (!file.isFile())
+            return null;
+        try {
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                long length = in.length();
+                if (length < HEADER_BYTES || length > MAX_FILE_BYTES)
+                    throw new IOException("Invalid snapshot length " + length);
+                MappedByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+                if (buffer.getInt() != MAGIC)
+                    throw new IOException("Not a catalog snapshot");
+                int version = buffer.getInt();
+                if (version != PetDbHelper.DATABASE_VERSION)
+                    throw new IOException("Snapshot of database version " + version);
+                long generation = buffer.getLong();
+                int packedLength = buffer.getInt();
+                if (packedLength != length - HEADER_BYTES)
+                    throw new IOException("Snapshot length mismatch");
+                byte[] packed = new byte[packedLength];
+                int checksum = buffer.getInt();
+                buffer.get(packed);
+                if (checksum != checksum(packed))
+                    throw new IOException("Snapshot checksum mismatch");
+                return new PetCatalogSnapshot(generation, new PetPacker.Reader(packed));
+            } finally {
+                in.close();
+            }
+        } catch (IOException | IllegalArgumentException | BufferUnderflowException e) {
+            Log.w(LOG_TAG, "Discarding catalog snapshot: " + e.getMessage());
+            delete(file);
+            return null;
+        }
+    }
+
+    /**
+     * Replace the snapshot in the given file with the first {@code maxRows} rows of the given
+     * cursor, which must hold every pet column, read at the given data generation.
+     */
+    public static void write(File file, long generation, Cursor cursor, int maxRows) throws IOException {
+        int idColumn = cursor.getColumnIndexOrThrow(PetContract.PetEntry._ID);
+        int nameColumn = cursor.getColumnIndexOrThrow(PetContract.PetEntry.COLUMN_PET_NAME);
+        int breedColumn = cursor.getColumnIndexOrThrow(PetContract.PetEntry.COLUMN_PET_BREED);
+        int genderColumn = cursor.getColumnIndexOrThrow(PetContract.PetEntry.COLUMN_PET_GENDER);
+        int weightColumn = cursor.getColumnIndexOrThrow(PetContract.PetEntry.COLUMN_PET_WEIGHT);
+        PetPacker.Writer writer = new PetPacker.Writer(maxRows * 48);
+        for (int i = 0; i < maxRows && cursor.moveToPosition(i); i++) {
+            writer.add(cursor.getLong(idColumn), cursor.getString(nameColumn), cursor.getString(breedColumn),
+                    cursor.getInt(genderColumn), cursor.getInt(weightColumn));
+        }
+        byte[] packed = writer.toByteArray();
+
+        File temp = new File(file.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(temp, "rw");
+        try {
+            out.setLength(HEADER_BYTES + packed.length);
+            MappedByteBuffer buffer = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + packed.length);
+            buffer.putInt(MAGIC)
+                    .putInt(PetDbHelper.DATABASE_VERSION)
+                    .putLong(generation)
+                    .putInt(packed.length)
+                    .putInt(checksum(packed))
+                    .put(packed);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            delete(temp);
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    /**
+     * Delete the snapshot in the given file, when its rows can no longer be trusted.
+     */
+    public static void delete(File file) {
+        if (file.exists() && !file.delete())
+            Log.w(LOG_TAG, "Cannot delete " + file);
+    }
+
+    /**
+     * Return the data generation the rows were read at.
+     */
+    public long generation() {
+        return mGeneration;
+    }
+
+    public int count() {
+        return mCount;
+    }
+
+    /**
+     * Return the rows as a cursor with the given pet columns, in that order.
+     */
+    public Cursor toCursor(String[] projection) {
+        MatrixCursor cursor = new MatrixCursor(projection, mCount);
+        Object[] row = new Object[projection.length];
+        for (int i = 0; i < mCount; i++) {
+            for (int column = 0; column < projection.length; column++)
+                row[column] = value(i, projection[column]);
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    private Object value(int row, String column) {
+        switch (column) {
+            case PetContract.PetEntry._ID:
+                return mIds[row];
+            case PetContract.PetEntry.COLUMN_PET_NAME:
+                return mNames[row];
+            case PetContract.PetEntry.COLUMN_PET_BREED:
+                return mBreeds[row];
+            case PetContract.PetEntry.COLUMN_PET_GENDER:
+                return mGenders[row];
+            case PetContract.PetEntry.COLUMN_PET_WEIGHT:
+                return mWeights[row];
+            default:
+                throw new IllegalArgumentException("Catalog snapshot has no column " + column);
+        }
+    }
+
+    private static int checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+}
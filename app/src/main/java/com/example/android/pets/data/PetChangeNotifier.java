@@ -0,0 +1,120 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Coalesces the change notifications of {@link PetProvider}.
+ *
+ * Changes are collected for {@link #WINDOW_MS} and then dispatched together from a background
+ * thread, one notification per changed pet (pets/#) so that observers of other pets are left
+ * alone. A change to rows the provider cannot name, or more than {@link #MAX_ITEM_URIS}
+ * changed pets in one window, is dispatched as a single notification of the whole pets URI.
+ */
+final class PetChangeNotifier {
+
+    /** How long changes are collected before they are dispatched */
+    static final long WINDOW_MS = 50;
+
+    /** Most pets notified one by one in a window before notifying the collection instead */
+    static final int MAX_ITEM_URIS = 32;
+
+    private final ContentResolver mResolver;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    private Set<Long> mChangedIds = new HashSet<>();
+    private boolean mCollectionChanged;
+    private boolean mScheduled;
+
+    private final Runnable mDispatch = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    PetChangeNotifier(ContentResolver resolver) {
+        mResolver = resolver;
+        mThread = new HandlerThread("PetChangeNotifier", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Record that the pet with the given ID was inserted, updated or deleted.
+     */
+    synchronized void itemChanged(long id) {
+        if (!mCollectionChanged) {
+            mChangedIds.add(id);
+            if (mChangedIds.size() > MAX_ITEM_URIS)
+                collectionChanged();
+        }
+        schedule();
+    }
+
+    /**
+     * Record that any number of pets may have changed.
+     */
+    synchronized void collectionChanged() {
+        mCollectionChanged = true;
+        mChangedIds.clear();
+        schedule();
+    }
+
+    /**
+     * Dispatch the pending changes now rather than at the end of the window, for instance when
+     * a batch has just committed.
+     */
+    synchronized void flush() {
+        if (mScheduled) {
+            mHandler.removeCallbacks(mDispatch);
+            mHandler.post(mDispatch);
+        }
+    }
+
+    /**
+     * Dispatch the pending changes and stop the notifier thread.
+     */
+    synchronized void quit() {
+        flush();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mThread.quit();
+            }
+        });
+    }
+
+    private void schedule() {
+        if (!mScheduled) {
+            mScheduled = true;
+            mHandler.postDelayed(mDispatch, WINDOW_MS);
+        }
+    }
+
+    private void dispatch() {
+        Set<Long> changedIds;
+        boolean collectionChanged;
+        synchronized (this) {
+            changedIds = mChangedIds;
+            collectionChanged = mCollectionChanged;
+            mChangedIds = new HashSet<>();
+            mCollectionChanged = false;
+            mScheduled = false;
+        }
+
+        if (collectionChanged) {
+            mResolver.notifyChange(PetContract.PetEntry.CONTENT_URI, null, false);
+            return;
+        }
+        for (long id : changedIds)
+            mResolver.notifyChange(ContentUris.withAppendedId(PetContract.PetEntry.CONTENT_URI, id), null, false);
+    }
+}
@@ -0,0 +1,201 @@
+package com.example.android.pets.data;
+
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Purges the tombstones that deletes leave in the pets table and the changes that fell out of
+ * the changelog's retention, and returns the pages they freed to the file system, so the size
+ * of the database and the cost of scanning it follow the live pets rather than every pet ever
+ * stored. Tombstones whose deletion has not reached the sync server yet are kept.
+ *
+ * Compaction runs on a background thread {@link #DELAY_MS} after the last write, or at the
+ * latest {@link #MAX_DELAY_MS} after the first one it follows. Rows are purged
+ * {@link #CHUNK_ROWS} at a time and free pages released {@link #VACUUM_PAGES} at a
+ * time, each in its own short transaction with a pause in between, so writes from the app
+ * never wait long behind it. Pages are released with incremental_vacuum, which needs the
+ * database in auto_vacuum=INCREMENTAL mode. That mode can only be set before the first table
+ * is created or by a VACUUM, and write-ahead logging creates the file before
+ * {@link PetDbHelper} gets to run, so the first compaction of every database converts it with
+ * one VACUUM.
+ */
+final class PetCompactor {
+
+    private static final String LOG_TAG = PetCompactor.class.getSimpleName();
+
+    /** How long after the last write compaction starts */
+    static final long DELAY_MS = 5000;
+
+    /** Longest a steady stream of writes can postpone compaction */
+    static final long MAX_DELAY_MS = 60000;
+
+    /** A write moves a scheduled compaction back only if that postpones it by this much */
+    private static final long RESCHEDULE_SLACK_MS = 1000;
+
+    /** Rows purged per transaction */
+    static final int CHUNK_ROWS = 500;
+
+    /** Free pages released per transaction */
+    static final int VACUUM_PAGES = 128;
+
+    /** Pause between two transactions of a background compaction */
+    static final long PAUSE_MS = 10;
+
+    /** Value of PRAGMA auto_vacuum in incremental mode */
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private final PetDbHelper mDbHelper;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private volatile boolean mQuit;
+
+    /** Uptime of the first write since the last compaction and when the next one is due, or -1 */
+    private final Object mScheduleLock = new Object();
+    private long mFirstWriteMs = -1;
+    private long mDueMs = -1;
+
+    private final Runnable mCompact = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                unschedule();
+                compact(true);
+            } catch (SQLException e) {
+                Log.e(LOG_TAG, "Compaction failed", e);
+            }
+        }
+    };
+
+    PetCompactor(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+        mThread = new HandlerThread("PetCompactor", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Compact the database {@link #DELAY_MS} from now, postponing a compaction already
+     * scheduled, so a burst of writes is compacted once. Called after every write.
+     */
+    void schedule() {
+        long now = SystemClock.uptimeMillis();
+        synchronized (mScheduleLock) {
+            if (mFirstWriteMs < 0)
+                mFirstWriteMs = now;
+            long due = Math.min(now + DELAY_MS, mFirstWriteMs + MAX_DELAY_MS);
+            if (mDueMs >= 0 && due - mDueMs < RESCHEDULE_SLACK_MS)
+                return;
+            mDueMs = due;
+            mHandler.removeCallbacks(mCompact);
+            mHandler.postAtTime(mCompact, due);
+        }
+    }
+
+    private void unschedule() {
+        synchronized (mScheduleLock) {
+            mHandler.removeCallbacks(mCompact);
+            mFirstWriteMs = -1;
+            mDueMs = -1;
+        }
+    }
+
+    /**
+     * Compact the database now on the calling thread, without pauses. Return the number of
+     * tombstones and changes purged and of pages freed.
+     */
+    Bundle compactNow() {
+        unschedule();
+        return compact(false);
+    }
+
+    /**
+     * Stop compacting, waiting for the running transaction if any, and stop the thread.
+     */
+    void quit() {
+        mQuit = true;
+        mHandler.removeCallbacks(mCompact);
+        synchronized (this) {
+            mThread.quit();
+        }
+    }
+
+    private synchronized Bundle compact(boolean paced) {
+        Bundle result = new Bundle();
+        if (mQuit)
+            return result;
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        long start = SystemClock.elapsedRealtime();
+        // Pets deleted all at once first, since they are usually the most
+        long purged = purge(db, PetContract.PetEntry.SQL_PURGE_DELETED_THROUGH, paced)
+                + purge(db, PetContract.PetEntry.SQL_PURGE_PUSHED_DELETED, paced);
+        db.execSQL(PetContract.PetEntry.SQL_TRUNCATE_CHANGES, new Object[]{PetContract.PetEntry.CHANGES_RETAINED});
+        long purgedChanges = purge(db, PetContract.PetEntry.SQL_PURGE_CHANGES, paced);
+        long freed = vacuum(db, paced);
+        if (purged > 0 || purgedChanges > 0 || freed > 0)
+            Log.i(LOG_TAG, "Purged " + purged + " pets and " + purgedChanges + " changes and freed "
+                    + freed + " pages in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        result.putLong(PetContract.EXTRA_PURGED, purged);
+        result.putLong(PetContract.EXTRA_PURGED_CHANGES, purgedChanges);
+        result.putLong(PetContract.EXTRA_FREED_PAGES, freed);
+        return result;
+    }
+
+    /**
+     * Run the given purge statement, which deletes at most as many rows as its argument,
+     * until it runs out of rows to purge. Return the number deleted.
+     */
+    private long purge(SQLiteDatabase db, String sql, boolean paced) {
+        SQLiteStatement statement = db.compileStatement(sql);
+        try {
+            statement.bindLong(1, CHUNK_ROWS);
+            long purged = 0;
+            int deleted;
+            do {
+                deleted = statement.executeUpdateDelete();
+                purged += deleted;
+            } while (deleted == CHUNK_ROWS && pause(paced));
+            return purged;
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Release the free pages of the database file. Return how many there were.
+     */
+    private long vacuum(SQLiteDatabase db, boolean paced) {
+        long free = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL) {
+            // VACUUM rewrites the whole file, but only this once
+            PetDbHelper.pragma(db, "PRAGMA auto_vacuum=INCREMENTAL");
+            db.execSQL("VACUUM");
+            return free;
+        }
+        long left = free;
+        while (left > 0 && !mQuit) {
+            PetDbHelper.pragma(db, "PRAGMA incremental_vacuum(" + VACUUM_PAGES + ")");
+            left = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+            if (!pause(paced))
+                break;
+        }
+        return free - left;
+    }
+
+    /**
+     * Let other writers in between two transactions of a background compaction. Return false
+     * if the compactor is quitting.
+     */
+    private boolean pause(boolean paced) {
+        if (paced)
+            SystemClock.sleep(PAUSE_MS);
+        return !mQuit;
+    }
+}
@@ -0,0 +1,33 @@
+package com.example.android.pets.data;
+
+/**
+ * Thrown by an update with {@link PetContract.PetEntry#QUERY_PARAMETER_EXPECTED_VERSION} when the
+ * pet was changed since the caller read it. Nothing was updated; read the pet again and retry or
+ * let the user choose. Binder only carries the IllegalStateException and its message across
+ * processes.
+ */
+public class PetConflictException extends IllegalStateException {
+
+    private final long mId;
+    private final long mExpectedVersion;
+    private final long mCurrentVersion;
+
+    public PetConflictException(long id, long expectedVersion, long currentVersion) {
+        super("Pet " + id + " is at version " + currentVersion + ", not " + expectedVersion);
+        mId = id;
+        mExpectedVersion = expectedVersion;
+        mCurrentVersion = currentVersion;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public long getExpectedVersion() {
+        return mExpectedVersion;
+    }
+
+    public long getCurrentVersion() {
+        return mCurrentVersion;
+    }
+}
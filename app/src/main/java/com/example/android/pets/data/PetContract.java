@@ -1,6 +1,7 @@
 package com.example.android.pets.data;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 import android.util.StringBuilderPrinter;
@@ -37,6 +38,165 @@ public final class PetContract {
      */
     public static final String PATH_PETS = "pets";
 
+    /**
+     * Path (appended to the pets path) for full-text search over pet names and breeds.
+     * For instance, content://com.example.android.pets/pets/search?q=lab
+     */
+    public static final String PATH_SEARCH = "search";
+
+    /**
+     * Paths (appended to the pets path) for the number of pets and for per-breed weight
+     * statistics. Both are read from summary tables that triggers keep up to date.
+     */
+    public static final String PATH_COUNT = "count";
+    public static final String PATH_STATS = "stats";
+
+    /**
+     * Path (appended to the pets path) for exporting every pet as a stream. Open it with
+     * ContentResolver.openTypedAssetFileDescriptor() to pick the format, or with
+     * openInputStream() for CSV.
+     */
+    public static final String PATH_EXPORT = "export";
+
+    /**
+     * Path (appended to the pets path) for the changes made to pets since a point in the
+     * changelog. For instance, content://com.example.android.pets/pets/changes?since=42
+     */
+    public static final String PATH_CHANGES = "changes";
+
+    // Methods the content provider answers through ContentResolver.call(), with the keys of
+    // their extras and results.
+
+    /** Configure the cache of single pet rows. Extras: {@link #EXTRA_MAX_BYTES} (0 turns the
+     * cache off) and {@link #EXTRA_RECORD_STATS}. */
+    public static final String METHOD_CONFIGURE_ROW_CACHE = "configure_row_cache";
+
+    /** Return hit and miss counts of the provider's row and statement caches */
+    public static final String METHOD_CACHE_STATS = "cache_stats";
+
+    /** Insert one chunk of an import and record how far the import got, in one transaction.
+     * Arg: the import's source key. Extras: {@link #EXTRA_ROWS}, {@link #EXTRA_POSITION} and
+     * {@link #EXTRA_REJECTED}. Returns {@link #EXTRA_IMPORTED} and {@link #EXTRA_REJECTED} for
+     * the chunk. */
+    public static final String METHOD_IMPORT_CHUNK = "import_chunk";
+
+    /** Return {@link #EXTRA_POSITION}, {@link #EXTRA_IMPORTED} and {@link #EXTRA_REJECTED} of
+     * the unfinished import with the source key given as arg, or null if there is none. */
+    public static final String METHOD_IMPORT_PROGRESS = "import_progress";
+
+    /** Forget the progress of the import with the source key given as arg, once it is done */
+    public static final String METHOD_FINISH_IMPORT = "finish_import";
+
+    /** Return the provider's call counts and latencies, as one Bundle per operation and URI
+     * keyed "operation:uri", for example "query:pets". Each holds the EXTRA_METRIC_* keys.
+     * Extras: {@link #EXTRA_RESET} to zero the metrics once they are read. */
+    public static final String METHOD_METRICS = "metrics";
+
+    /** Write pets packed by {@link PetPacker} in one transaction: records with _ID 0 are
+     * inserted, the others replace every column of the pet with that _ID. Extras:
+     * {@link #EXTRA_PACKED}. Returns {@link #EXTRA_IDS}, the _ID written for each record, or -1
+     * for a record that was invalid or whose pet does not exist. */
+    public static final String METHOD_WRITE_PACKED = "write_packed";
+
+    /** Return up to {@link #EXTRA_LIMIT} pets in _ID order after {@link #EXTRA_AFTER_ID}, packed
+     * by {@link PetPacker} in {@link #EXTRA_PACKED}. Fewer pets than the limit means the last
+     * page. The limit defaults to and cannot exceed {@link #PACKED_QUERY_MAX_ROWS}. */
+    public static final String METHOD_QUERY_PACKED = "query_packed";
+
+    /** Log queries, updates and deletes that take at least {@link #EXTRA_THRESHOLD_MILLIS}, with
+     * their SQL and query plan; a negative threshold turns the log off, which is the default. */
+    public static final String METHOD_CONFIGURE_SLOW_LOG = "configure_slow_log";
+
+    /** Return the slow operations logged most recently, oldest first, as Bundles in
+     * {@link #EXTRA_ENTRIES} holding the EXTRA_SLOW_* keys and {@link #EXTRA_METRIC_ROWS}.
+     * Extras: {@link #EXTRA_RESET} to clear the log once it is read. */
+    public static final String METHOD_SLOW_LOG = "slow_log";
+
+    /** Return {@link #EXTRA_GENERATION}, the generation of the pet data. It changes in the
+     * transaction of every write, so pets read between two equal generations are consistent. */
+    public static final String METHOD_DATA_GENERATION = "data_generation";
+
+    /** Purge the tombstones of deleted pets and the changes past the changelog's retention, and
+     * return their free pages to the file system now, rather than waiting for the provider to do
+     * it in the background. Returns {@link #EXTRA_PURGED}, {@link #EXTRA_PURGED_CHANGES} and
+     * {@link #EXTRA_FREED_PAGES}. */
+    public static final String METHOD_COMPACT = "compact";
+
+    /** Return the changes to send to the sync server: up to {@link #EXTRA_LIMIT} pets changed
+     * on this device after sync sequence number {@link #EXTRA_SYNC_SEQ}, or after the last one
+     * the server acknowledged if it is missing, as ContentValues in {@link #EXTRA_ROWS} holding
+     * the uuid and the pet columns, or the uuid and deleted set to true. Also returns the sync
+     * sequence number of the last one in {@link #EXTRA_SYNC_SEQ}, and {@link #EXTRA_DEVICE}
+     * and {@link #EXTRA_SYNC_PULLED}. The limit defaults to and cannot exceed
+     * {@link #SYNC_MAX_ROWS}. */
+    public static final String METHOD_SYNC_PENDING = "sync_pending";
+
+    /** Apply the changes of the sync server in {@link #EXTRA_ROWS}, in the form
+     * {@link #METHOD_SYNC_PENDING} returns them, in one transaction, and record that the server
+     * acknowledged the local changes through {@link #EXTRA_SYNC_SEQ} and sent its own through
+     * {@link #EXTRA_SYNC_PULLED}. Pets changed locally since then keep the local change. Returns
+     * {@link #EXTRA_IMPORTED} and {@link #EXTRA_REJECTED}, counting the changes kept back. */
+    public static final String METHOD_SYNC_APPLY = "sync_apply";
+
+    /** Most changes returned by one {@link #METHOD_SYNC_PENDING} */
+    public static final int SYNC_MAX_ROWS = 500;
+
+    /** Most pets returned by one packed query, keeping the result well below the Binder limit */
+    public static final int PACKED_QUERY_MAX_ROWS = 5000;
+
+    public static final String EXTRA_MAX_BYTES = "max_bytes";
+    public static final String EXTRA_RECORD_STATS = "record_stats";
+    public static final String EXTRA_ROW_CACHE_HITS = "row_cache_hits";
+    public static final String EXTRA_ROW_CACHE_MISSES = "row_cache_misses";
+    public static final String EXTRA_ROW_CACHE_HIT_RATE = "row_cache_hit_rate";
+    public static final String EXTRA_ROW_CACHE_EVICTIONS = "row_cache_evictions";
+    public static final String EXTRA_ROW_CACHE_SIZE_BYTES = "row_cache_size_bytes";
+    public static final String EXTRA_STATEMENT_CACHE_HITS = "statement_cache_hits";
+    public static final String EXTRA_STATEMENT_CACHE_MISSES = "statement_cache_misses";
+    public static final String EXTRA_ROWS = "rows";
+    public static final String EXTRA_POSITION = "position";
+    public static final String EXTRA_IMPORTED = "imported";
+    public static final String EXTRA_REJECTED = "rejected";
+    public static final String EXTRA_RESET = "reset";
+    public static final String EXTRA_PACKED = "packed";
+    public static final String EXTRA_THRESHOLD_MILLIS = "threshold_ms";
+    public static final String EXTRA_ENTRIES = "entries";
+    /** Operation and URI of a slow log entry, as named in the metrics */
+    public static final String EXTRA_SLOW_OPERATION = "operation";
+    public static final String EXTRA_SLOW_TIME_MILLIS = "time_ms";
+    public static final String EXTRA_SLOW_DURATION_MICROS = "duration_us";
+    /** SQL of a slow operation, with string literals replaced by '?'; missing if it ran from memory */
+    public static final String EXTRA_SLOW_SQL = "sql";
+    /** Arguments of a slow operation, each replaced by its length */
+    public static final String EXTRA_SLOW_ARGS = "args";
+    public static final String EXTRA_SLOW_QUERY_PLAN = "query_plan";
+    public static final String EXTRA_IDS = "ids";
+    public static final String EXTRA_AFTER_ID = "after_id";
+    public static final String EXTRA_LIMIT = "limit";
+    public static final String EXTRA_GENERATION = "generation";
+    public static final String EXTRA_PURGED = "purged";
+    public static final String EXTRA_PURGED_CHANGES = "purged_changes";
+    public static final String EXTRA_SYNC_SEQ = "sync_seq";
+    public static final String EXTRA_SYNC_PULLED = "sync_pulled";
+    public static final String EXTRA_DEVICE = "device";
+    public static final String EXTRA_FREED_PAGES = "freed_pages";
+    public static final String EXTRA_METRIC_COUNT = "count";
+    public static final String EXTRA_METRIC_ERRORS = "errors";
+    /**
+     * Rows inserted, updated or deleted by writes, or returned by queries answered from memory.
+     * Rows of queries read from SQLite are not counted, and are -1 in the slow log, since
+     * counting them would read them all before the caller does.
+     */
+    public static final String EXTRA_METRIC_ROWS = "row_count";
+    public static final String EXTRA_METRIC_MEAN_MICROS = "mean_us";
+    public static final String EXTRA_METRIC_P50_MICROS = "p50_us";
+    public static final String EXTRA_METRIC_P90_MICROS = "p90_us";
+    public static final String EXTRA_METRIC_P99_MICROS = "p99_us";
+    public static final String EXTRA_METRIC_P999_MICROS = "p999_us";
+    public static final String EXTRA_METRIC_MAX_MICROS = "max_us";
+    /** Pairs of latency bucket upper bound in nanoseconds and count, for the non-empty buckets */
+    public static final String EXTRA_METRIC_HISTOGRAM = "histogram_ns";
+
     /**
      * Inner class that defines constant values for the pets database table.
      * Each entry in the table represents a single pet.
@@ -54,6 +214,94 @@ public final class PetContract {
 
         /** The content URI to access the pet data in the provider */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI,PATH_PETS);
+        /**
+         * The content URI to search pets by name and breed. Pass the search text in the
+         * {@link #QUERY_PARAMETER_SEARCH} parameter; every word of it must match the start of a
+         * word in the name or breed. The best matches come first.
+         */
+        public static final Uri SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SEARCH);
+
+        /** Query parameter holding the search text for {@link #SEARCH_URI} */
+        public static final String QUERY_PARAMETER_SEARCH = "q";
+
+        /**
+         * The content URI for the number of pets. Its single row holds {@link #COLUMN_COUNT}
+         * and the count of each gender.
+         */
+        public static final Uri COUNT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_COUNT);
+
+        /**
+         * The content URI for weight statistics, one row per breed with {@link #COLUMN_PET_BREED},
+         * {@link #COLUMN_COUNT}, {@link #COLUMN_TOTAL_WEIGHT} and {@link #COLUMN_AVERAGE_WEIGHT}.
+         * Pets without a breed are counted under the empty breed.
+         */
+        public static final Uri STATS_URI = Uri.withAppendedPath(CONTENT_URI, PATH_STATS);
+
+        /**
+         * The content URI to read every pet as CSV ({@link #MIME_TYPE_CSV}, with a header row) or
+         * newline-delimited JSON ({@link #MIME_TYPE_NDJSON}). Rows are streamed as they are read.
+         */
+        public static final Uri EXPORT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_EXPORT);
+
+        /**
+         * The content URI of the changelog: one row per insert, update and delete of a pet, in
+         * the order they were committed. Each row holds {@link #COLUMN_CHANGE_SEQ},
+         * {@link #COLUMN_CHANGE_OP}, the {@link #_ID} of the pet and the pet's current columns,
+         * which are null once the pet is deleted. Pass the last sequence number seen in the
+         * {@link #QUERY_PARAMETER_SINCE} parameter, and at most {@link #CHANGES_MAX_ROWS} rows
+         * after it are returned, or fewer with {@link #QUERY_PARAMETER_LIMIT}.
+         *
+         * Only the last {@link #CHANGES_RETAINED} changes are kept. A consumer that is further
+         * behind, or starts from 0 after older changes were dropped, gets a single
+         * {@link #CHANGE_RESYNC} row instead: it must requery {@link #CONTENT_URI} and carry on
+         * from that row's sequence number. Changes notify {@link #CONTENT_URI} and the URIs of
+         * single pets, so observe {@link #CONTENT_URI} with its descendants.
+         */
+        public static final Uri CHANGES_URI = Uri.withAppendedPath(CONTENT_URI, PATH_CHANGES);
+
+        /** Query parameter holding the sequence number {@link #CHANGES_URI} starts after */
+        public static final String QUERY_PARAMETER_SINCE = "since";
+
+        /** Most rows returned by one query on {@link #CHANGES_URI} */
+        public static final int CHANGES_MAX_ROWS = 1000;
+
+        /** Number of most recent changes the changelog keeps */
+        public static final int CHANGES_RETAINED = 10000;
+
+        // Columns of the changes URI, and the operations it reports
+        public static final String COLUMN_CHANGE_SEQ = "seq";
+        public static final String COLUMN_CHANGE_OP = "op";
+
+        public static final int CHANGE_INSERT = 1;
+        public static final int CHANGE_UPDATE = 2;
+        public static final int CHANGE_DELETE = 3;
+        /** Every pet with an _ID up to the row's _ID was deleted at once */
+        public static final int CHANGE_DELETE_THROUGH = 4;
+        /** Changes were dropped from the changelog; requery every pet */
+        public static final int CHANGE_RESYNC = 5;
+
+        // The stream types of {@link #EXPORT_URI}.
+        public static final String MIME_TYPE_CSV = "text/csv";
+        public static final String MIME_TYPE_NDJSON = "application/x-ndjson";
+
+        // The MIME types of {@link #COUNT_URI} and {@link #STATS_URI}.
+        public static final String CONTENT_COUNT_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS + "/" + PATH_COUNT;
+        public static final String CONTENT_STATS_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS + "/" + PATH_STATS;
+
+        // The MIME type of {@link #CHANGES_URI}.
+        public static final String CONTENT_CHANGES_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS + "/" + PATH_CHANGES;
+
+        // Columns of the count and stats URIs
+        public static final String COLUMN_COUNT = "count";
+        public static final String COLUMN_MALE_COUNT = "male_count";
+        public static final String COLUMN_FEMALE_COUNT = "female_count";
+        public static final String COLUMN_UNKNOWN_GENDER_COUNT = "unknown_gender_count";
+        public static final String COLUMN_TOTAL_WEIGHT = "total_weight";
+        public static final String COLUMN_AVERAGE_WEIGHT = "average_weight";
+
         /** Name of database table for pets */
         public static final String TABLE_NAME = "pets";
 
@@ -63,6 +311,14 @@ public final class PetContract {
         public static final String COLUMN_PET_GENDER = "gender";
         public static final String COLUMN_PET_WEIGHT = "weight";
 
+        /**
+         * Version of a pet, 1 when it is inserted and incremented by every change to it. Read it
+         * with the pet and pass it back in {@link #QUERY_PARAMETER_EXPECTED_VERSION} to update
+         * the pet only if nobody changed it in between. The provider keeps it; updates cannot
+         * set it.
+         */
+        public static final String COLUMN_PET_VERSION = "version";
+
         public static final String SQL_CREATE_ENTRIES = "CREATE TABLE "+ TABLE_NAME + "( "
                 + _ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
                 + COLUMN_PET_NAME + " TEXT NOT NULL, "
@@ -70,6 +326,573 @@ public final class PetContract {
                 + COLUMN_PET_GENDER + " INTEGER NOT NULL, "
                 + COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0);";
 
+        // Indexes backing filtered and sorted queries, added in database version 2
+        public static final String SQL_CREATE_NAME_INDEX = "CREATE INDEX pets_name_index ON "
+                + TABLE_NAME + " (" + COLUMN_PET_NAME + ");";
+        public static final String SQL_CREATE_BREED_INDEX = "CREATE INDEX pets_breed_index ON "
+                + TABLE_NAME + " (" + COLUMN_PET_BREED + ");";
+        public static final String SQL_CREATE_GENDER_WEIGHT_INDEX = "CREATE INDEX pets_gender_weight_index ON "
+                + TABLE_NAME + " (" + COLUMN_PET_GENDER + ", " + COLUMN_PET_WEIGHT + ");";
+
+        // Full-text index over pet names and breeds, added in database version 3. Its docid is
+        // the _ID of the pet and the triggers below keep it in sync with the pets table.
+        public static final String FTS_TABLE_NAME = "pets_fts";
+
+        public static final String SQL_CREATE_FTS = "CREATE VIRTUAL TABLE " + FTS_TABLE_NAME
+                + " USING fts4(" + COLUMN_PET_NAME + ", " + COLUMN_PET_BREED + ");";
+
+        public static final String SQL_FILL_FTS = "INSERT INTO " + FTS_TABLE_NAME
+                + " (docid, " + COLUMN_PET_NAME + ", " + COLUMN_PET_BREED + ") SELECT "
+                + _ID + ", " + COLUMN_PET_NAME + ", " + COLUMN_PET_BREED + " FROM " + TABLE_NAME + ";";
+
+        public static final String SQL_CREATE_FTS_INSERT_TRIGGER = "CREATE TRIGGER pets_fts_insert AFTER INSERT ON "
+                + TABLE_NAME + " BEGIN INSERT INTO " + FTS_TABLE_NAME + " (docid, " + COLUMN_PET_NAME + ", "
+                + COLUMN_PET_BREED + ") VALUES (new." + _ID + ", new." + COLUMN_PET_NAME + ", new."
+                + COLUMN_PET_BREED + "); END;";
+
+        public static final String SQL_CREATE_FTS_UPDATE_TRIGGER = "CREATE TRIGGER pets_fts_update AFTER UPDATE OF "
+                + COLUMN_PET_NAME + ", " + COLUMN_PET_BREED + " ON " + TABLE_NAME + " BEGIN UPDATE "
+                + FTS_TABLE_NAME + " SET " + COLUMN_PET_NAME + " = new." + COLUMN_PET_NAME + ", "
+                + COLUMN_PET_BREED + " = new." + COLUMN_PET_BREED + " WHERE docid = old." + _ID + "; END;";
+
+        public static final String SQL_CREATE_FTS_DELETE_TRIGGER = "CREATE TRIGGER pets_fts_delete AFTER DELETE ON "
+                + TABLE_NAME + " BEGIN DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = old." + _ID + "; END;";
+
+        // Summary tables behind the count and stats URIs, added in database version 4. The
+        // triggers below add every inserted pet to them and take every deleted pet out, and an
+        // update does both, so they always match the pets table.
+        public static final String GENDER_COUNTS_TABLE_NAME = "pet_gender_counts";
+        public static final String BREED_STATS_TABLE_NAME = "pet_breed_stats";
+
+        public static final String SQL_CREATE_GENDER_COUNTS = "CREATE TABLE " + GENDER_COUNTS_TABLE_NAME + " ("
+                + COLUMN_PET_GENDER + " INTEGER PRIMARY KEY, "
+                + COLUMN_COUNT + " INTEGER NOT NULL);";
+
+        public static final String SQL_CREATE_BREED_STATS = "CREATE TABLE " + BREED_STATS_TABLE_NAME + " ("
+                + COLUMN_PET_BREED + " TEXT NOT NULL PRIMARY KEY, "
+                + COLUMN_COUNT + " INTEGER NOT NULL, "
+                + COLUMN_TOTAL_WEIGHT + " INTEGER NOT NULL);";
+
+        public static final String SQL_FILL_GENDER_COUNTS = "INSERT INTO " + GENDER_COUNTS_TABLE_NAME
+                + " (" + COLUMN_PET_GENDER + ", " + COLUMN_COUNT + ") SELECT " + COLUMN_PET_GENDER
+                + ", count(*) FROM " + TABLE_NAME + " GROUP BY " + COLUMN_PET_GENDER + ";";
+
+        public static final String SQL_FILL_BREED_STATS = "INSERT INTO " + BREED_STATS_TABLE_NAME
+                + " (" + COLUMN_PET_BREED + ", " + COLUMN_COUNT + ", " + COLUMN_TOTAL_WEIGHT + ") SELECT ifnull("
+                + COLUMN_PET_BREED + ", ''), count(*), sum(" + COLUMN_PET_WEIGHT + ") FROM " + TABLE_NAME
+                + " GROUP BY ifnull(" + COLUMN_PET_BREED + ", '');";
+
+        private static final String SQL_STATS_ADD_NEW = "INSERT OR IGNORE INTO " + GENDER_COUNTS_TABLE_NAME
+                + " (" + COLUMN_PET_GENDER + ", " + COLUMN_COUNT + ") VALUES (new." + COLUMN_PET_GENDER + ", 0); "
+                + "UPDATE " + GENDER_COUNTS_TABLE_NAME + " SET " + COLUMN_COUNT + " = " + COLUMN_COUNT
+                + " + 1 WHERE " + COLUMN_PET_GENDER + " = new." + COLUMN_PET_GENDER + "; "
+                + "INSERT OR IGNORE INTO " + BREED_STATS_TABLE_NAME + " (" + COLUMN_PET_BREED + ", " + COLUMN_COUNT
+                + ", " + COLUMN_TOTAL_WEIGHT + ") VALUES (ifnull(new." + COLUMN_PET_BREED + ", ''), 0, 0); "
+                + "UPDATE " + BREED_STATS_TABLE_NAME + " SET " + COLUMN_COUNT + " = " + COLUMN_COUNT + " + 1, "
+                + COLUMN_TOTAL_WEIGHT + " = " + COLUMN_TOTAL_WEIGHT + " + new." + COLUMN_PET_WEIGHT
+                + " WHERE " + COLUMN_PET_BREED + " = ifnull(new." + COLUMN_PET_BREED + ", ''); ";
+
+        private static final String SQL_STATS_REMOVE_OLD = "UPDATE " + GENDER_COUNTS_TABLE_NAME + " SET "
+                + COLUMN_COUNT + " = " + COLUMN_COUNT + " - 1 WHERE " + COLUMN_PET_GENDER + " = old."
+                + COLUMN_PET_GENDER + "; "
+                + "UPDATE " + BREED_STATS_TABLE_NAME + " SET " + COLUMN_COUNT + " = " + COLUMN_COUNT + " - 1, "
+                + COLUMN_TOTAL_WEIGHT + " = " + COLUMN_TOTAL_WEIGHT + " - old." + COLUMN_PET_WEIGHT
+                + " WHERE " + COLUMN_PET_BREED + " = ifnull(old." + COLUMN_PET_BREED + ", ''); "
+                + "DELETE FROM " + BREED_STATS_TABLE_NAME + " WHERE " + COLUMN_PET_BREED + " = ifnull(old."
+                + COLUMN_PET_BREED + ", '') AND " + COLUMN_COUNT + " = 0; ";
+
+        public static final String SQL_CREATE_STATS_INSERT_TRIGGER = "CREATE TRIGGER pets_stats_insert AFTER INSERT ON "
+                + TABLE_NAME + " BEGIN " + SQL_STATS_ADD_NEW + "END;";
+
+        public static final String SQL_CREATE_STATS_UPDATE_TRIGGER = "CREATE TRIGGER pets_stats_update AFTER UPDATE OF "
+                + COLUMN_PET_BREED + ", " + COLUMN_PET_GENDER + ", " + COLUMN_PET_WEIGHT + " ON " + TABLE_NAME
+                + " BEGIN " + SQL_STATS_REMOVE_OLD + SQL_STATS_ADD_NEW + "END;";
+
+        public static final String SQL_CREATE_STATS_DELETE_TRIGGER = "CREATE TRIGGER pets_stats_delete AFTER DELETE ON "
+                + TABLE_NAME + " BEGIN " + SQL_STATS_REMOVE_OLD + "END;";
+
+        // Progress of unfinished imports, added in database version 5. Each chunk of an import
+        // updates its row in the transaction that inserts the chunk's pets, so after a crash the
+        // import resumes right after the last committed chunk.
+        public static final String IMPORT_PROGRESS_TABLE_NAME = "import_progress";
+        public static final String COLUMN_IMPORT_SOURCE = "source";
+        public static final String COLUMN_IMPORT_POSITION = "position";
+        public static final String COLUMN_IMPORT_IMPORTED = "imported";
+        public static final String COLUMN_IMPORT_REJECTED = "rejected";
+
+        public static final String SQL_CREATE_IMPORT_PROGRESS = "CREATE TABLE " + IMPORT_PROGRESS_TABLE_NAME + " ("
+                + COLUMN_IMPORT_SOURCE + " TEXT PRIMARY KEY, "
+                + COLUMN_IMPORT_POSITION + " INTEGER NOT NULL, "
+                + COLUMN_IMPORT_IMPORTED + " INTEGER NOT NULL, "
+                + COLUMN_IMPORT_REJECTED + " INTEGER NOT NULL);";
+
+        // Breed dictionary, added in database version 6. The pets table stores the integer
+        // breed_id of each distinct breed instead of its text, and the pets_with_breed view
+        // joins the text back in under the breed column, so queries keep using COLUMN_PET_BREED.
+        // The provider reads pets through the view and writes breed_id to the table.
+        public static final String BREEDS_TABLE_NAME = "breeds";
+        public static final String VIEW_NAME = "pets_with_breed";
+        public static final String COLUMN_BREED_ID = "breed_id";
+
+        /** Temporary name of the rebuilt pets table during the version 6 upgrade */
+        public static final String REBUILT_TABLE_NAME = "pets_rebuilt";
+
+        public static final String SQL_CREATE_BREEDS = "CREATE TABLE " + BREEDS_TABLE_NAME + " ("
+                + COLUMN_BREED_ID + " INTEGER PRIMARY KEY, "
+                + COLUMN_PET_BREED + " TEXT NOT NULL UNIQUE);";
+
+        public static final String SQL_FILL_BREEDS = "INSERT INTO " + BREEDS_TABLE_NAME + " (" + COLUMN_PET_BREED
+                + ") SELECT DISTINCT " + COLUMN_PET_BREED + " FROM " + TABLE_NAME + " WHERE " + COLUMN_PET_BREED
+                + " IS NOT NULL;";
+
+        public static final String SQL_CREATE_REBUILT_ENTRIES = "CREATE TABLE " + REBUILT_TABLE_NAME + " ("
+                + _ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + COLUMN_PET_NAME + " TEXT NOT NULL, "
+                + COLUMN_BREED_ID + " INTEGER REFERENCES " + BREEDS_TABLE_NAME + " (" + COLUMN_BREED_ID + "), "
+                + COLUMN_PET_GENDER + " INTEGER NOT NULL, "
+                + COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0);";
+
+        public static final String SQL_FILL_REBUILT_ENTRIES = "INSERT INTO " + REBUILT_TABLE_NAME + " (" + _ID + ", "
+                + COLUMN_PET_NAME + ", " + COLUMN_BREED_ID + ", " + COLUMN_PET_GENDER + ", " + COLUMN_PET_WEIGHT
+                + ") SELECT " + _ID + ", " + COLUMN_PET_NAME + ", (SELECT " + COLUMN_BREED_ID + " FROM "
+                + BREEDS_TABLE_NAME + " WHERE " + BREEDS_TABLE_NAME + "." + COLUMN_PET_BREED + " = " + TABLE_NAME
+                + "." + COLUMN_PET_BREED + "), " + COLUMN_PET_GENDER + ", " + COLUMN_PET_WEIGHT + " FROM " + TABLE_NAME + ";";
+
+        /**
+         * Carry the AUTOINCREMENT high-water mark over, so IDs of deleted pets are never reused.
+         * The rebuilt table only has a sequence row if pets were copied, and sqlite_sequence has
+         * no key to replace it by, so its row is dropped and inserted again from that of pets.
+         */
+        public static final String SQL_CLEAR_REBUILT_SEQUENCE = "DELETE FROM sqlite_sequence WHERE name = '"
+                + REBUILT_TABLE_NAME + "';";
+
+        public static final String SQL_COPY_REBUILT_SEQUENCE = "INSERT INTO sqlite_sequence (name, seq) SELECT '"
+                + REBUILT_TABLE_NAME + "', seq FROM sqlite_sequence WHERE name = '" + TABLE_NAME + "';";
+
+        public static final String SQL_DROP_ENTRIES = "DROP TABLE " + TABLE_NAME + ";";
+
+        public static final String SQL_RENAME_REBUILT_ENTRIES = "ALTER TABLE " + REBUILT_TABLE_NAME
+                + " RENAME TO " + TABLE_NAME + ";";
+
+        public static final String SQL_CREATE_BREED_ID_INDEX = "CREATE INDEX pets_breed_id_index ON "
+                + TABLE_NAME + " (" + COLUMN_BREED_ID + ");";
+
+        public static final String SQL_CREATE_VIEW = "CREATE VIEW " + VIEW_NAME + " AS SELECT "
+                + TABLE_NAME + "." + _ID + " AS " + _ID + ", "
+                + TABLE_NAME + "." + COLUMN_PET_NAME + " AS " + COLUMN_PET_NAME + ", "
+                + BREEDS_TABLE_NAME + "." + COLUMN_PET_BREED + " AS " + COLUMN_PET_BREED + ", "
+                + TABLE_NAME + "." + COLUMN_PET_GENDER + " AS " + COLUMN_PET_GENDER + ", "
+                + TABLE_NAME + "." + COLUMN_PET_WEIGHT + " AS " + COLUMN_PET_WEIGHT + ", "
+                + TABLE_NAME + "." + COLUMN_BREED_ID + " AS " + COLUMN_BREED_ID
+                + " FROM " + TABLE_NAME + " LEFT JOIN " + BREEDS_TABLE_NAME + " ON " + BREEDS_TABLE_NAME + "."
+                + COLUMN_BREED_ID + " = " + TABLE_NAME + "." + COLUMN_BREED_ID + ";";
+
+        // The breed statistics are keyed by breed_id from version 6, with 0 for pets without a
+        // breed, and the full-text triggers look the breed text up in the dictionary.
+        public static final String SQL_DROP_BREED_STATS = "DROP TABLE " + BREED_STATS_TABLE_NAME + ";";
+
+        public static final String SQL_CREATE_BREED_ID_STATS = "CREATE TABLE " + BREED_STATS_TABLE_NAME + " ("
+                + COLUMN_BREED_ID + " INTEGER PRIMARY KEY, "
+                + COLUMN_COUNT + " INTEGER NOT NULL, "
+                + COLUMN_TOTAL_WEIGHT + " INTEGER NOT NULL);";
+
+        public static final String SQL_FILL_BREED_ID_STATS = "INSERT INTO " + BREED_STATS_TABLE_NAME
+                + " (" + COLUMN_BREED_ID + ", " + COLUMN_COUNT + ", " + COLUMN_TOTAL_WEIGHT + ") SELECT ifnull("
+                + COLUMN_BREED_ID + ", 0), count(*), sum(" + COLUMN_PET_WEIGHT + ") FROM " + TABLE_NAME
+                + " GROUP BY ifnull(" + COLUMN_BREED_ID + ", 0);";
+
+        private static final String SQL_BREED_ID_STATS_ADD_NEW = "INSERT OR IGNORE INTO " + GENDER_COUNTS_TABLE_NAME
+                + " (" + COLUMN_PET_GENDER + ", " + COLUMN_COUNT + ") VALUES (new." + COLUMN_PET_GENDER + ", 0); "
+                + "UPDATE " + GENDER_COUNTS_TABLE_NAME + " SET " + COLUMN_COUNT + " = " + COLUMN_COUNT
+                + " + 1 WHERE " + COLUMN_PET_GENDER + " = new." + COLUMN_PET_GENDER + "; "
+                + "INSERT OR IGNORE INTO " + BREED_STATS_TABLE_NAME + " (" + COLUMN_BREED_ID + ", " + COLUMN_COUNT
+                + ", " + COLUMN_TOTAL_WEIGHT + ") VALUES (ifnull(new." + COLUMN_BREED_ID + ", 0), 0, 0); "
+                + "UPDATE " + BREED_STATS_TABLE_NAME + " SET " + COLUMN_COUNT + " = " + COLUMN_COUNT + " + 1, "
+                + COLUMN_TOTAL_WEIGHT + " = " + COLUMN_TOTAL_WEIGHT + " + new." + COLUMN_PET_WEIGHT
+                + " WHERE " + COLUMN_BREED_ID + " = ifnull(new." + COLUMN_BREED_ID + ", 0); ";
+
+        private static final String SQL_BREED_ID_STATS_REMOVE_OLD = "UPDATE " + GENDER_COUNTS_TABLE_NAME + " SET "
+                + COLUMN_COUNT + " = " + COLUMN_COUNT + " - 1 WHERE " + COLUMN_PET_GENDER + " = old."
+                + COLUMN_PET_GENDER + "; "
+                + "UPDATE " + BREED_STATS_TABLE_NAME + " SET " + COLUMN_COUNT + " = " + COLUMN_COUNT + " - 1, "
+                + COLUMN_TOTAL_WEIGHT + " = " + COLUMN_TOTAL_WEIGHT + " - old." + COLUMN_PET_WEIGHT
+                + " WHERE " + COLUMN_BREED_ID + " = ifnull(old." + COLUMN_BREED_ID + ", 0); "
+                + "DELETE FROM " + BREED_STATS_TABLE_NAME + " WHERE " + COLUMN_BREED_ID + " = ifnull(old."
+                + COLUMN_BREED_ID + ", 0) AND " + COLUMN_COUNT + " = 0; ";
+
+        public static final String SQL_CREATE_BREED_ID_STATS_INSERT_TRIGGER = "CREATE TRIGGER pets_stats_insert AFTER INSERT ON "
+                + TABLE_NAME + " BEGIN " + SQL_BREED_ID_STATS_ADD_NEW + "END;";
+
+        public static final String SQL_CREATE_BREED_ID_STATS_UPDATE_TRIGGER = "CREATE TRIGGER pets_stats_update AFTER UPDATE OF "
+                + COLUMN_BREED_ID + ", " + COLUMN_PET_GENDER + ", " + COLUMN_PET_WEIGHT + " ON " + TABLE_NAME
+                + " BEGIN " + SQL_BREED_ID_STATS_REMOVE_OLD + SQL_BREED_ID_STATS_ADD_NEW + "END;";
+
+        public static final String SQL_CREATE_BREED_ID_STATS_DELETE_TRIGGER = "CREATE TRIGGER pets_stats_delete AFTER DELETE ON "
+                + TABLE_NAME + " BEGIN " + SQL_BREED_ID_STATS_REMOVE_OLD + "END;";
+
+        private static final String SQL_NEW_BREED = "(SELECT " + COLUMN_PET_BREED + " FROM " + BREEDS_TABLE_NAME
+                + " WHERE " + COLUMN_BREED_ID + " = new." + COLUMN_BREED_ID + ")";
+
+        public static final String SQL_CREATE_BREED_ID_FTS_INSERT_TRIGGER = "CREATE TRIGGER pets_fts_insert AFTER INSERT ON "
+                + TABLE_NAME + " BEGIN INSERT INTO " + FTS_TABLE_NAME + " (docid, " + COLUMN_PET_NAME + ", "
+                + COLUMN_PET_BREED + ") VALUES (new." + _ID + ", new." + COLUMN_PET_NAME + ", " + SQL_NEW_BREED + "); END;";
+
+        public static final String SQL_CREATE_BREED_ID_FTS_UPDATE_TRIGGER = "CREATE TRIGGER pets_fts_update AFTER UPDATE OF "
+                + COLUMN_PET_NAME + ", " + COLUMN_BREED_ID + " ON " + TABLE_NAME + " BEGIN UPDATE "
+                + FTS_TABLE_NAME + " SET " + COLUMN_PET_NAME + " = new." + COLUMN_PET_NAME + ", "
+                + COLUMN_PET_BREED + " = " + SQL_NEW_BREED + " WHERE docid = old." + _ID + "; END;";
+
+        // Generation of the pet data, added in database version 7. Triggers bump it in the
+        // transaction of every change to the pets table, so copies of pets kept outside the
+        // database, such as the catalog snapshot, can tell whether they are still current.
+        public static final String META_TABLE_NAME = "pets_meta";
+        public static final String COLUMN_GENERATION = "generation";
+
+        public static final String SQL_CREATE_META = "CREATE TABLE " + META_TABLE_NAME + " ("
+                + _ID + " INTEGER PRIMARY KEY CHECK (" + _ID + " = 1), "
+                + COLUMN_GENERATION + " INTEGER NOT NULL);";
+
+        public static final String SQL_FILL_META = "INSERT INTO " + META_TABLE_NAME + " (" + _ID + ", "
+                + COLUMN_GENERATION + ") VALUES (1, 0);";
+
+        public static final String SQL_SELECT_GENERATION = "SELECT " + COLUMN_GENERATION + " FROM " + META_TABLE_NAME;
+
+        private static final String SQL_BUMP_GENERATION = " BEGIN UPDATE " + META_TABLE_NAME + " SET "
+                + COLUMN_GENERATION + " = " + COLUMN_GENERATION + " + 1; END;";
+
+        public static final String SQL_CREATE_GENERATION_INSERT_TRIGGER = "CREATE TRIGGER pets_generation_insert AFTER INSERT ON "
+                + TABLE_NAME + SQL_BUMP_GENERATION;
+
+        public static final String SQL_CREATE_GENERATION_UPDATE_TRIGGER = "CREATE TRIGGER pets_generation_update AFTER UPDATE ON "
+                + TABLE_NAME + SQL_BUMP_GENERATION;
+
+        public static final String SQL_CREATE_GENERATION_DELETE_TRIGGER = "CREATE TRIGGER pets_generation_delete AFTER DELETE ON "
+                + TABLE_NAME + SQL_BUMP_GENERATION;
+
+        // Soft deletes, added in database version 8. Deleting a pet only sets its deleted flag,
+        // and deleting every pet only raises deleted_through_id in pets_meta to the highest
+        // _ID, which AUTOINCREMENT never hands out again. The view and the summary triggers
+        // skip both kinds of tombstone, and PetCompactor purges them later in small batches.
+        public static final String COLUMN_DELETED = "deleted";
+        public static final String COLUMN_DELETED_THROUGH_ID = "deleted_through_id";
+
+        public static final String SQL_ADD_DELETED = "ALTER TABLE " + TABLE_NAME + " ADD COLUMN "
+                + COLUMN_DELETED + " INTEGER NOT NULL DEFAULT 0;";
+
+        public static final String SQL_ADD_DELETED_THROUGH_ID = "ALTER TABLE " + META_TABLE_NAME + " ADD COLUMN "
+                + COLUMN_DELETED_THROUGH_ID + " INTEGER NOT NULL DEFAULT 0;";
+
+        public static final String SQL_CREATE_DELETED_INDEX = "CREATE INDEX pets_deleted_index ON "
+                + TABLE_NAME + " (" + COLUMN_DELETED + ");";
+
+        private static final String SQL_DELETED_THROUGH_ID = "(SELECT " + COLUMN_DELETED_THROUGH_ID
+                + " FROM " + META_TABLE_NAME + ")";
+
+        /**
+         * Selection of the rows of the pets table that are not tombstones. The unary + keeps
+         * SQLite from picking pets_deleted_index, which only serves the purge, over the index
+         * that fits the rest of the query.
+         */
+        public static final String SQL_LIVE = "(+" + COLUMN_DELETED + " = 0 AND +" + _ID + " > "
+                + SQL_DELETED_THROUGH_ID + ")";
+
+        private static final String SQL_OLD_LIVE = " WHEN old." + COLUMN_DELETED + " = 0 AND old." + _ID + " > "
+                + SQL_DELETED_THROUGH_ID;
+
+        private static final String SQL_NEW_LIVE = " WHEN new." + COLUMN_DELETED + " = 0 AND new." + _ID + " > "
+                + SQL_DELETED_THROUGH_ID;
+
+        public static final String SQL_DROP_VIEW = "DROP VIEW " + VIEW_NAME + ";";
+
+        public static final String SQL_CREATE_LIVE_VIEW = SQL_CREATE_VIEW.substring(0, SQL_CREATE_VIEW.length() - 1)
+                + " WHERE +" + TABLE_NAME + "." + COLUMN_DELETED + " = 0 AND +" + TABLE_NAME + "." + _ID + " > "
+                + SQL_DELETED_THROUGH_ID + ";";
+
+        /** Tombstones a pet, if it is live, given its _ID */
+        public static final String SQL_SOFT_DELETE_BY_ID = "UPDATE " + TABLE_NAME + " SET " + COLUMN_DELETED
+                + " = 1 WHERE " + _ID + " = ? AND " + SQL_LIVE;
+
+        /** Tombstones every pet at once; the caller clears the summaries in the same transaction */
+        public static final String SQL_SOFT_DELETE_ALL = "UPDATE " + META_TABLE_NAME + " SET "
+                + COLUMN_DELETED_THROUGH_ID + " = (SELECT ifnull(max(" + _ID + "), 0) FROM " + TABLE_NAME + "), "
+                + COLUMN_GENERATION + " = " + COLUMN_GENERATION + " + 1;";
+
+        public static final String SQL_CLEAR_GENDER_COUNTS = "DELETE FROM " + GENDER_COUNTS_TABLE_NAME + ";";
+
+        public static final String SQL_CLEAR_BREED_STATS = "DELETE FROM " + BREED_STATS_TABLE_NAME + ";";
+
+        /** Number of live pets, kept by the summary triggers */
+        public static final String SQL_COUNT_LIVE = "SELECT ifnull(sum(" + COLUMN_COUNT + "), 0) FROM "
+                + GENDER_COUNTS_TABLE_NAME;
+
+        /** Purge at most ? tombstones left by deleting every pet, then by deleting single pets */
+        public static final String SQL_PURGE_DELETED_THROUGH = "DELETE FROM " + TABLE_NAME + " WHERE " + _ID
+                + " IN (SELECT " + _ID + " FROM " + TABLE_NAME + " WHERE " + _ID + " <= "
+                + SQL_DELETED_THROUGH_ID + " LIMIT ?)";
+
+
+        // From version 8 the summaries only count live pets: an update removes the old row if
+        // it was live and adds the new one if it still is, so tombstoning a pet removes it, and
+        // purging a tombstone changes neither the summaries nor the data generation.
+        public static final String SQL_DROP_STATS_UPDATE_TRIGGER = "DROP TRIGGER pets_stats_update;";
+
+        public static final String SQL_DROP_STATS_DELETE_TRIGGER = "DROP TRIGGER pets_stats_delete;";
+
+        public static final String SQL_DROP_GENERATION_DELETE_TRIGGER = "DROP TRIGGER pets_generation_delete;";
+
+        private static final String SQL_LIVE_STATS_COLUMNS = COLUMN_BREED_ID + ", " + COLUMN_PET_GENDER + ", "
+                + COLUMN_PET_WEIGHT + ", " + COLUMN_DELETED;
+
+        public static final String SQL_CREATE_LIVE_STATS_UPDATE_OLD_TRIGGER = "CREATE TRIGGER pets_stats_update_old AFTER UPDATE OF "
+                + SQL_LIVE_STATS_COLUMNS + " ON " + TABLE_NAME + SQL_OLD_LIVE
+                + " BEGIN " + SQL_BREED_ID_STATS_REMOVE_OLD + "END;";
+
+        public static final String SQL_CREATE_LIVE_STATS_UPDATE_NEW_TRIGGER = "CREATE TRIGGER pets_stats_update_new AFTER UPDATE OF "
+                + SQL_LIVE_STATS_COLUMNS + " ON " + TABLE_NAME + SQL_NEW_LIVE
+                + " BEGIN " + SQL_BREED_ID_STATS_ADD_NEW + "END;";
+
+        public static final String SQL_CREATE_LIVE_STATS_DELETE_TRIGGER = "CREATE TRIGGER pets_stats_delete AFTER DELETE ON "
+                + TABLE_NAME + SQL_OLD_LIVE + " BEGIN " + SQL_BREED_ID_STATS_REMOVE_OLD + "END;";
+
+        public static final String SQL_CREATE_LIVE_GENERATION_DELETE_TRIGGER = "CREATE TRIGGER pets_generation_delete AFTER DELETE ON "
+                + TABLE_NAME + SQL_OLD_LIVE + SQL_BUMP_GENERATION;
+
+        // Changelog, added in database version 9. Triggers append a row in the transaction of
+        // every change to a live pet, and one row when every pet is deleted at once. AUTOINCREMENT
+        // keeps sequence numbers increasing even after old rows are dropped; pets_meta records
+        // the last sequence number dropped, so a consumer behind it knows it missed changes.
+        public static final String CHANGES_TABLE_NAME = "pet_changes";
+        public static final String COLUMN_CHANGE_PET_ID = "pet_id";
+        public static final String COLUMN_CHANGES_TRUNCATED_THROUGH = "changes_truncated_through";
+
+        public static final String SQL_CREATE_CHANGES = "CREATE TABLE " + CHANGES_TABLE_NAME + " ("
+                + COLUMN_CHANGE_SEQ + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + COLUMN_CHANGE_OP + " INTEGER NOT NULL, "
+                + COLUMN_CHANGE_PET_ID + " INTEGER NOT NULL);";
+
+        /** Starts the changelog with an insert of every existing pet, so consumers can start at 0 */
+        public static final String SQL_FILL_CHANGES = "INSERT INTO " + CHANGES_TABLE_NAME + " (" + COLUMN_CHANGE_OP
+                + ", " + COLUMN_CHANGE_PET_ID + ") SELECT " + CHANGE_INSERT + ", " + _ID + " FROM " + TABLE_NAME
+                + " WHERE " + SQL_LIVE + " ORDER BY " + _ID + ";";
+
+        public static final String SQL_ADD_CHANGES_TRUNCATED_THROUGH = "ALTER TABLE " + META_TABLE_NAME + " ADD COLUMN "
+                + COLUMN_CHANGES_TRUNCATED_THROUGH + " INTEGER NOT NULL DEFAULT 0;";
+
+        private static String logChange(int op, String id) {
+            return " BEGIN INSERT INTO " + CHANGES_TABLE_NAME + " (" + COLUMN_CHANGE_OP + ", " + COLUMN_CHANGE_PET_ID
+                    + ") VALUES (" + op + ", " + id + "); END;";
+        }
+
+        public static final String SQL_CREATE_CHANGES_INSERT_TRIGGER = "CREATE TRIGGER pets_changes_insert AFTER INSERT ON "
+                + TABLE_NAME + logChange(CHANGE_INSERT, "new." + _ID);
+
+        public static final String SQL_CREATE_CHANGES_UPDATE_TRIGGER = "CREATE TRIGGER pets_changes_update AFTER UPDATE OF "
+                + COLUMN_PET_NAME + ", " + COLUMN_BREED_ID + ", " + COLUMN_PET_GENDER + ", " + COLUMN_PET_WEIGHT
+                + " ON " + TABLE_NAME + SQL_NEW_LIVE + logChange(CHANGE_UPDATE, "new." + _ID);
+
+        public static final String SQL_CREATE_CHANGES_TOMBSTONE_TRIGGER = "CREATE TRIGGER pets_changes_tombstone AFTER UPDATE OF "
+                + COLUMN_DELETED + " ON " + TABLE_NAME + SQL_OLD_LIVE + " AND new." + COLUMN_DELETED + " = 1"
+                + logChange(CHANGE_DELETE, "old." + _ID);
+
+        public static final String SQL_CREATE_CHANGES_DELETE_TRIGGER = "CREATE TRIGGER pets_changes_delete AFTER DELETE ON "
+                + TABLE_NAME + SQL_OLD_LIVE + logChange(CHANGE_DELETE, "old." + _ID);
+
+        public static final String SQL_CREATE_CHANGES_DELETE_THROUGH_TRIGGER = "CREATE TRIGGER pets_changes_delete_through AFTER UPDATE OF "
+                + COLUMN_DELETED_THROUGH_ID + " ON " + META_TABLE_NAME + " WHEN new." + COLUMN_DELETED_THROUGH_ID
+                + " > old." + COLUMN_DELETED_THROUGH_ID + logChange(CHANGE_DELETE_THROUGH, "new." + COLUMN_DELETED_THROUGH_ID);
+
+        /** Last sequence number dropped from the changelog and last one written */
+        public static final String SQL_SELECT_CHANGES_BOUNDS = "SELECT " + COLUMN_CHANGES_TRUNCATED_THROUGH
+                + ", (SELECT ifnull(max(" + COLUMN_CHANGE_SEQ + "), 0) FROM " + CHANGES_TABLE_NAME + ") FROM "
+                + META_TABLE_NAME;
+
+        /** Drops all but the last ? changes from the changelog, purged in chunks by SQL_PURGE_CHANGES */
+        public static final String SQL_TRUNCATE_CHANGES = "UPDATE " + META_TABLE_NAME + " SET "
+                + COLUMN_CHANGES_TRUNCATED_THROUGH + " = max(" + COLUMN_CHANGES_TRUNCATED_THROUGH + ", (SELECT ifnull(max("
+                + COLUMN_CHANGE_SEQ + "), 0) FROM " + CHANGES_TABLE_NAME + ") - ?);";
+
+        public static final String SQL_PURGE_CHANGES = "DELETE FROM " + CHANGES_TABLE_NAME + " WHERE "
+                + COLUMN_CHANGE_SEQ + " IN (SELECT " + COLUMN_CHANGE_SEQ + " FROM " + CHANGES_TABLE_NAME + " WHERE "
+                + COLUMN_CHANGE_SEQ + " <= (SELECT " + COLUMN_CHANGES_TRUNCATED_THROUGH + " FROM " + META_TABLE_NAME
+                + ") LIMIT ?)";
+
+        // Sync state, added in database version 10. Every pet gets a uuid naming it on every
+        // device, and sync_seq, the value of pets_meta.sync_counter when it last changed on this
+        // device. Pets with a sync_seq past sync_pushed have changes the server has not seen;
+        // sync_pushed is -1 until the first sync. While changes from the server are applied,
+        // sync_remote is set, so the triggers leave them unmarked and they are not sent back.
+        public static final String COLUMN_UUID = "uuid";
+        public static final String COLUMN_SYNC_SEQ = "sync_seq";
+        public static final String COLUMN_SYNC_COUNTER = "sync_counter";
+        public static final String COLUMN_SYNC_PUSHED = "sync_pushed";
+        public static final String COLUMN_SYNC_PULLED = "sync_pulled";
+        public static final String COLUMN_SYNC_REMOTE = "sync_remote";
+        public static final String COLUMN_SYNC_DEVICE = "sync_device";
+
+        private static final String SQL_NEW_UUID = "lower(hex(randomblob(16)))";
+
+        public static final String SQL_ADD_UUID = "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_UUID + " TEXT;";
+
+        public static final String SQL_ADD_SYNC_SEQ = "ALTER TABLE " + TABLE_NAME + " ADD COLUMN "
+                + COLUMN_SYNC_SEQ + " INTEGER NOT NULL DEFAULT 0;";
+
+        /** Existing pets take their _ID as sync_seq, so every sync_seq is distinct */
+        public static final String SQL_FILL_UUIDS = "UPDATE " + TABLE_NAME + " SET " + COLUMN_UUID + " = "
+                + SQL_NEW_UUID + ", " + COLUMN_SYNC_SEQ + " = " + _ID + ";";
+
+        public static final String SQL_CREATE_UUID_INDEX = "CREATE UNIQUE INDEX pets_uuid_index ON "
+                + TABLE_NAME + " (" + COLUMN_UUID + ");";
+
+        public static final String SQL_CREATE_SYNC_SEQ_INDEX = "CREATE INDEX pets_sync_seq_index ON "
+                + TABLE_NAME + " (" + COLUMN_SYNC_SEQ + ");";
+
+        public static final String SQL_ADD_SYNC_COUNTER = "ALTER TABLE " + META_TABLE_NAME + " ADD COLUMN "
+                + COLUMN_SYNC_COUNTER + " INTEGER NOT NULL DEFAULT 0;";
+
+        public static final String SQL_ADD_SYNC_PUSHED = "ALTER TABLE " + META_TABLE_NAME + " ADD COLUMN "
+                + COLUMN_SYNC_PUSHED + " INTEGER NOT NULL DEFAULT -1;";
+
+        public static final String SQL_ADD_SYNC_PULLED = "ALTER TABLE " + META_TABLE_NAME + " ADD COLUMN "
+                + COLUMN_SYNC_PULLED + " INTEGER NOT NULL DEFAULT 0;";
+
+        public static final String SQL_ADD_SYNC_REMOTE = "ALTER TABLE " + META_TABLE_NAME + " ADD COLUMN "
+                + COLUMN_SYNC_REMOTE + " INTEGER NOT NULL DEFAULT 0;";
+
+        public static final String SQL_ADD_SYNC_DEVICE = "ALTER TABLE " + META_TABLE_NAME + " ADD COLUMN "
+                + COLUMN_SYNC_DEVICE + " TEXT;";
+
+        public static final String SQL_FILL_SYNC_STATE = "UPDATE " + META_TABLE_NAME + " SET " + COLUMN_SYNC_DEVICE
+                + " = " + SQL_NEW_UUID + ", " + COLUMN_SYNC_COUNTER + " = (SELECT ifnull(max(" + _ID + "), 0) FROM "
+                + TABLE_NAME + ");";
+
+        private static final String SQL_MARK_LOCAL_CHANGE = " WHEN (SELECT " + COLUMN_SYNC_REMOTE + " FROM "
+                + META_TABLE_NAME + ") = 0 BEGIN UPDATE " + META_TABLE_NAME + " SET " + COLUMN_SYNC_COUNTER + " = "
+                + COLUMN_SYNC_COUNTER + " + 1; UPDATE " + TABLE_NAME + " SET " + COLUMN_UUID + " = ifnull(new."
+                + COLUMN_UUID + ", " + SQL_NEW_UUID + "), " + COLUMN_SYNC_SEQ + " = (SELECT " + COLUMN_SYNC_COUNTER
+                + " FROM " + META_TABLE_NAME + ") WHERE " + _ID + " = new." + _ID + "; END;";
+
+        public static final String SQL_CREATE_SYNC_INSERT_TRIGGER = "CREATE TRIGGER pets_sync_insert AFTER INSERT ON "
+                + TABLE_NAME + SQL_MARK_LOCAL_CHANGE;
+
+        /** Only changes to the pet columns count, not the trigger's own update of sync_seq */
+        public static final String SQL_CREATE_SYNC_UPDATE_TRIGGER = "CREATE TRIGGER pets_sync_update AFTER UPDATE OF "
+                + COLUMN_PET_NAME + ", " + COLUMN_BREED_ID + ", " + COLUMN_PET_GENDER + ", " + COLUMN_PET_WEIGHT + ", "
+                + COLUMN_DELETED + " ON " + TABLE_NAME + SQL_MARK_LOCAL_CHANGE;
+
+        /**
+         * Purges at most ? tombstones, keeping those whose deletion has not reached the server.
+         * Before the first sync nothing needs to reach it. 
+         */
+        public static final String SQL_PURGE_PUSHED_DELETED = "DELETE FROM " + TABLE_NAME + " WHERE " + _ID
+                + " IN (SELECT " + _ID + " FROM " + TABLE_NAME + " WHERE " + COLUMN_DELETED + " = 1 AND "
+                + COLUMN_SYNC_SEQ + " <= (SELECT CASE WHEN " + COLUMN_SYNC_PUSHED + " < 0 THEN " + COLUMN_SYNC_COUNTER
+                + " ELSE " + COLUMN_SYNC_PUSHED + " END FROM " + META_TABLE_NAME + ") LIMIT ?)";
+
+        public static final String SQL_SELECT_SYNC_PUSHED = "SELECT " + COLUMN_SYNC_PUSHED + " FROM " + META_TABLE_NAME;
+
+        /** Device, last local change acknowledged and last server change applied */
+        public static final String SQL_SELECT_SYNC_STATE = "SELECT " + COLUMN_SYNC_DEVICE + ", " + COLUMN_SYNC_PUSHED
+                + ", " + COLUMN_SYNC_PULLED + " FROM " + META_TABLE_NAME;
+
+        /** At most ? pets changed after sync_seq ?, those deleted in either way flagged */
+        public static final String SQL_SELECT_SYNC_PENDING = "SELECT " + COLUMN_UUID + ", " + COLUMN_PET_NAME + ", "
+                + COLUMN_PET_BREED + ", " + COLUMN_PET_GENDER + ", " + COLUMN_PET_WEIGHT + ", NOT " + SQL_LIVE + ", "
+                + COLUMN_SYNC_SEQ + " FROM " + TABLE_NAME + " LEFT JOIN " + BREEDS_TABLE_NAME + " ON "
+                + BREEDS_TABLE_NAME + "." + COLUMN_BREED_ID + " = " + TABLE_NAME + "." + COLUMN_BREED_ID
+                + " WHERE " + COLUMN_SYNC_SEQ + " > ? ORDER BY " + COLUMN_SYNC_SEQ + " LIMIT ?";
+
+        public static final String SQL_SELECT_BY_UUID = "SELECT " + _ID + ", " + COLUMN_SYNC_SEQ + " FROM "
+                + TABLE_NAME + " WHERE " + COLUMN_UUID + " = ?";
+
+        public static final String SQL_BEGIN_REMOTE = "UPDATE " + META_TABLE_NAME + " SET " + COLUMN_SYNC_REMOTE + " = 1;";
+
+        /** Ends applying remote changes, recording the local and server changes exchanged */
+        public static final String SQL_END_REMOTE = "UPDATE " + META_TABLE_NAME + " SET " + COLUMN_SYNC_REMOTE
+                + " = 0, " + COLUMN_SYNC_PUSHED + " = max(" + COLUMN_SYNC_PUSHED + ", ?, 0), " + COLUMN_SYNC_PULLED
+                + " = max(" + COLUMN_SYNC_PULLED + ", ?);";
+
+        // Row versions, added in database version 11. A trigger bumps the version of a pet on
+        // every change to its columns, whoever writes it, so a conditional update can match the
+        // version in its WHERE clause. The view exposes it to queries.
+        public static final String SQL_ADD_VERSION = "ALTER TABLE " + TABLE_NAME + " ADD COLUMN "
+                + COLUMN_PET_VERSION + " INTEGER NOT NULL DEFAULT 1;";
+
+        public static final String SQL_CREATE_VERSION_TRIGGER = "CREATE TRIGGER pets_version_update AFTER UPDATE OF "
+                + COLUMN_PET_NAME + ", " + COLUMN_BREED_ID + ", " + COLUMN_PET_GENDER + ", " + COLUMN_PET_WEIGHT + ", "
+                + COLUMN_DELETED + " ON " + TABLE_NAME + " BEGIN UPDATE " + TABLE_NAME + " SET " + COLUMN_PET_VERSION
+                + " = " + COLUMN_PET_VERSION + " + 1 WHERE " + _ID + " = new." + _ID + "; END;";
+
+        public static final String SQL_CREATE_VERSIONED_VIEW = SQL_CREATE_LIVE_VIEW.replaceFirst(" FROM ",
+                ", " + TABLE_NAME + "." + COLUMN_PET_VERSION + " AS " + COLUMN_PET_VERSION + " FROM ");
+
+        /** Version of a live pet given its _ID */
+        public static final String SQL_SELECT_VERSION = "SELECT " + COLUMN_PET_VERSION + " FROM " + TABLE_NAME
+                + " WHERE " + _ID + " = ? AND " + SQL_LIVE;
+
+        /** Columns of {@link #CHANGES_URI}, and the default projection of a query on it */
+        public static final String[] CHANGES_COLUMNS = {
+                COLUMN_CHANGE_SEQ, COLUMN_CHANGE_OP, _ID, COLUMN_PET_NAME, COLUMN_PET_BREED,
+                COLUMN_PET_GENDER, COLUMN_PET_WEIGHT };
+
+        /** Columns the selection and sort order of a query on {@link #STATS_URI} may refer to */
+        public static final String[] STATS_COLUMNS = {
+                COLUMN_PET_BREED, COLUMN_COUNT, COLUMN_TOTAL_WEIGHT, COLUMN_AVERAGE_WEIGHT };
+
+        /** Columns the selection of a query, update or delete on {@link #CONTENT_URI} may refer to */
+        public static final String[] FILTERABLE_COLUMNS = {
+                _ID, COLUMN_PET_NAME, COLUMN_PET_BREED, COLUMN_PET_GENDER, COLUMN_PET_WEIGHT };
+
+        /** Columns a query on {@link #CONTENT_URI} may be sorted by, including paged queries */
+        public static final String[] SORTABLE_COLUMNS = {
+                _ID, COLUMN_PET_NAME, COLUMN_PET_BREED, COLUMN_PET_GENDER, COLUMN_PET_WEIGHT };
+
+        /**
+         * Query parameters for paging through {@link #CONTENT_URI}. Pages are read with keyset
+         * (seek) pagination: a page starts right after the sort key and _ID of the last row of
+         * the previous page, so every page costs the same whatever its position in the list.
+         * Use {@link #buildPageUri} to build page URIs. A paged query may also carry a
+         * selection, but is always sorted by its sort parameter.
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+        public static final String QUERY_PARAMETER_SORT = "sort";
+        public static final String QUERY_PARAMETER_AFTER_KEY = "after_key";
+        public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+
+        /**
+         * Build the URI of a page of at most {@code limit} pets sorted by {@code sortColumn}
+         * and then _ID. Pass the sort key and _ID of the last row of the previous page, or a
+         * negative afterId for the first page. A null afterKey means the previous row had no
+         * value for the sort column.
+         */
+        public static Uri buildPageUri(String sortColumn, String afterKey, long afterId, int limit) {
+            Uri.Builder builder = CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .appendQueryParameter(QUERY_PARAMETER_SORT, sortColumn);
+            if (afterId >= 0) {
+                builder.appendQueryParameter(QUERY_PARAMETER_AFTER_ID, String.valueOf(afterId));
+                if (afterKey != null)
+                    builder.appendQueryParameter(QUERY_PARAMETER_AFTER_KEY, afterKey);
+            }
+            return builder.build();
+        }
+
+        /**
+         * Query parameter of an update of a single pet holding the version the pet must still
+         * have. If it has another, nothing is updated and the update throws a
+         * {@link PetConflictException} (an IllegalStateException, when the caller is in another
+         * process). Use {@link #buildVersionedUri} to build the URI.
+         */
+        public static final String QUERY_PARAMETER_EXPECTED_VERSION = "expected_version";
+
+        /**
+         * Build the URI that updates the pet with the given _ID only while it has the given version.
+         */
+        public static Uri buildVersionedUri(long id, long expectedVersion) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_EXPECTED_VERSION, String.valueOf(expectedVersion))
+                    .build();
+        }
+
         // Gender Constants
         public static final int GENDER_UNKNOWN = 0;
         public static final int GENDER_MALE = 1;
@@ -1,8 +1,10 @@
 package com.example.android.pets.data;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 
 import com.example.android.pets.CatalogActivity;
 import com.example.android.pets.EditorActivity;
@@ -16,19 +18,204 @@ import static com.example.android.pets.data.PetContract.PetEntry.SQL_CREATE_ENTR
 public class PetDbHelper extends SQLiteOpenHelper {
 
     public static final String DATABASE_NAME = "shelter.db";
-    public  static final int DATABASE_VERSION = 1;
+    public  static final int DATABASE_VERSION = 11;
+
+    /**
+     * Pages the write-ahead log may grow to before a commit checkpoints it back into the
+     * database. Larger values batch more commits per checkpoint but make readers scan a longer
+     * log.
+     */
+    private static final int WAL_AUTOCHECKPOINT_PAGES = 1000;
+
+    /** Bytes of write-ahead log kept on disk after a checkpoint */
+    private static final long WAL_SIZE_LIMIT = 4 * 1024 * 1024;
+
+    private final boolean mWriteAheadLogging;
 
     public PetDbHelper(Context context){
-        super(context,DATABASE_NAME,null,DATABASE_VERSION);
+        this(context,DATABASE_NAME,true);
+    }
+
+    /**
+     * Open the database with the given file name, with or without write-ahead logging. Used by
+     * benchmarks that compare journal modes on a scratch database.
+     */
+    public PetDbHelper(Context context, String name, boolean writeAheadLogging){
+        super(context,name,null,DATABASE_VERSION);
+        mWriteAheadLogging = writeAheadLogging;
+        // With write-ahead logging, readers get their own connections from the pool and are
+        // no longer blocked by a writer, nor block it. The platform sizes that pool.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+            setWriteAheadLoggingEnabled(writeAheadLogging);
     }
 
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        configure(db);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        // onConfigure() is only called from Jelly Bean on
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            if (mWriteAheadLogging)
+                db.enableWriteAheadLogging();
+            configure(db);
+        }
+    }
+
+    /**
+     * Tune the connection that writes to the database. In WAL mode a commit only needs the log
+     * to be synced at checkpoints to stay consistent after a crash, so NORMAL sync is enough.
+     */
+    private void configure(SQLiteDatabase db) {
+        if (!mWriteAheadLogging)
+            return;
+        pragma(db, "PRAGMA synchronous=NORMAL");
+        pragma(db, "PRAGMA wal_autocheckpoint=" + WAL_AUTOCHECKPOINT_PAGES);
+        pragma(db, "PRAGMA journal_size_limit=" + WAL_SIZE_LIMIT);
+    }
+
+    /**
+     * Run a PRAGMA that may return rows, which execSQL() does not allow. Return the number of
+     * rows, reading them all, since some pragmas only do their work as their rows are stepped.
+     */
+    static int pragma(SQLiteDatabase db, String sql) {
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Create the version 1 schema and then run every upgrade step, so new and upgraded
+     * databases always end up with the same schema.
+     */
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_ENTRIES);
+        onUpgrade(db, 1, DATABASE_VERSION);
     }
 
     @Override
-    public void onUpgrade(SQLiteDatabase db, int i, int i1) {
-        //db.execSQL(SQL_DELETE_ENTRIES);
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            // Version 2: indexes for filtered and sorted queries
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_NAME_INDEX);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_BREED_INDEX);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_GENDER_WEIGHT_INDEX);
+        }
+        if (oldVersion < 3) {
+            // Version 3: full-text index over names and breeds, kept in sync by triggers
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_FTS);
+            db.execSQL(PetContract.PetEntry.SQL_FILL_FTS);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_FTS_INSERT_TRIGGER);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_FTS_UPDATE_TRIGGER);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_FTS_DELETE_TRIGGER);
+        }
+        if (oldVersion < 4) {
+            // Version 4: pet counts by gender and weight totals by breed, kept by triggers
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_GENDER_COUNTS);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_BREED_STATS);
+            db.execSQL(PetContract.PetEntry.SQL_FILL_GENDER_COUNTS);
+            db.execSQL(PetContract.PetEntry.SQL_FILL_BREED_STATS);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_STATS_INSERT_TRIGGER);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_STATS_UPDATE_TRIGGER);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_STATS_DELETE_TRIGGER);
+        }
+        if (oldVersion < 5) {
+            // Version 5: progress of resumable imports
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_IMPORT_PROGRESS);
+        }
+        if (oldVersion < 6) {
+            // Version 6: breeds move into a dictionary. SQLite cannot change a column in place,
+            // so the pets table is rebuilt with breed_id, keeping every _ID. Dropping the old
+            // table drops its indexes and triggers, which are recreated for the new columns.
+            // onUpgrade() runs in a transaction, so a failure leaves the old schema intact.
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_BREEDS);
+            db.execSQL(PetContract.PetEntry.SQL_FILL_BREEDS);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_REBUILT_ENTRIES);
+            db.execSQL(PetContract.PetEntry.SQL_FILL_REBUILT_ENTRIES);
+            db.execSQL(PetContract.PetEntry.SQL_CLEAR_REBUILT_SEQUENCE);
+            db.execSQL(PetContract.PetEntry.SQL_COPY_REBUILT_SEQUENCE);
+            db.execSQL(PetContract.PetEntry.SQL_DROP_ENTRIES);
+            db.execSQL(PetContract.PetEntry.SQL_RENAME_REBUILT_ENTRIES);
+
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_NAME_INDEX);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_BREED_ID_INDEX);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_GENDER_WEIGHT_INDEX);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_VIEW);
+
+            db.execSQL(PetContract.PetEntry.SQL_DROP_BREED_STATS);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_BREED_ID_STATS);
+            db.execSQL(PetContract.PetEntry.SQL_FILL_BREED_ID_STATS);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_BREED_ID_STATS_INSERT_TRIGGER);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_BREED_ID_STATS_UPDATE_TRIGGER);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_BREED_ID_STATS_DELETE_TRIGGER);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_BREED_ID_FTS_INSERT_TRIGGER);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_BREED_ID_FTS_UPDATE_TRIGGER);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_FTS_DELETE_TRIGGER);
+        }
+        if (oldVersion < 7) {
+            // Version 7: generation of the pet data, bumped by triggers on every change
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_META);
+            db.execSQL(PetContract.PetEntry.SQL_FILL_META);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_GENERATION_INSERT_TRIGGER);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_GENERATION_UPDATE_TRIGGER);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_GENERATION_DELETE_TRIGGER);
+        }
+        if (oldVersion < 8) {
+            // Version 8: soft deletes. Adding columns with a default does not rewrite the table;
+            // the view and the triggers that must skip tombstones are recreated.
+            db.execSQL(PetContract.PetEntry.SQL_ADD_DELETED);
+            db.execSQL(PetContract.PetEntry.SQL_ADD_DELETED_THROUGH_ID);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_DELETED_INDEX);
+            db.execSQL(PetContract.PetEntry.SQL_DROP_VIEW);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_LIVE_VIEW);
+            db.execSQL(PetContract.PetEntry.SQL_DROP_STATS_UPDATE_TRIGGER);
+            db.execSQL(PetContract.PetEntry.SQL_DROP_STATS_DELETE_TRIGGER);
+            db.execSQL(PetContract.PetEntry.SQL_DROP_GENERATION_DELETE_TRIGGER);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_LIVE_STATS_UPDATE_OLD_TRIGGER);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_LIVE_STATS_UPDATE_NEW_TRIGGER);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_LIVE_STATS_DELETE_TRIGGER);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_LIVE_GENERATION_DELETE_TRIGGER);
+        }
+        if (oldVersion < 9) {
+            // Version 9: changelog of every change to a pet, written by triggers
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_CHANGES);
+            db.execSQL(PetContract.PetEntry.SQL_FILL_CHANGES);
+            db.execSQL(PetContract.PetEntry.SQL_ADD_CHANGES_TRUNCATED_THROUGH);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_CHANGES_INSERT_TRIGGER);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_CHANGES_UPDATE_TRIGGER);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_CHANGES_TOMBSTONE_TRIGGER);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_CHANGES_DELETE_TRIGGER);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_CHANGES_DELETE_THROUGH_TRIGGER);
+        }
+        if (oldVersion < 10) {
+            // Version 10: uuids and sync sequence numbers, so only changed pets are synced.
+            // The uuids are filled before the triggers exist, so they do not count as changes.
+            db.execSQL(PetContract.PetEntry.SQL_ADD_UUID);
+            db.execSQL(PetContract.PetEntry.SQL_ADD_SYNC_SEQ);
+            db.execSQL(PetContract.PetEntry.SQL_FILL_UUIDS);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_UUID_INDEX);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_SYNC_SEQ_INDEX);
+            db.execSQL(PetContract.PetEntry.SQL_ADD_SYNC_COUNTER);
+            db.execSQL(PetContract.PetEntry.SQL_ADD_SYNC_PUSHED);
+            db.execSQL(PetContract.PetEntry.SQL_ADD_SYNC_PULLED);
+            db.execSQL(PetContract.PetEntry.SQL_ADD_SYNC_REMOTE);
+            db.execSQL(PetContract.PetEntry.SQL_ADD_SYNC_DEVICE);
+            db.execSQL(PetContract.PetEntry.SQL_FILL_SYNC_STATE);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_SYNC_INSERT_TRIGGER);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_SYNC_UPDATE_TRIGGER);
+        }
+        if (oldVersion < 11) {
+            // Version 11: row versions for conditional updates, bumped by a trigger
+            db.execSQL(PetContract.PetEntry.SQL_ADD_VERSION);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_VERSION_TRIGGER);
+            db.execSQL(PetContract.PetEntry.SQL_DROP_VIEW);
+            db.execSQL(PetContract.PetEntry.SQL_CREATE_VERSIONED_VIEW);
+        }
     }
 }
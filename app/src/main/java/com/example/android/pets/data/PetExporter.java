@@ -0,0 +1,140 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProvider;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Writes every pet to a pipe as CSV or newline-delimited JSON, for the export URI of
+ * {@link PetProvider}.
+ *
+ * Pets are read in keyset pages of {@link #PAGE_SIZE} rows ordered by _ID, and each page is
+ * flushed to the pipe before the next one is read. A single cursor over the whole table would
+ * count every row before returning the first, so paging is what lets a reader start early and
+ * keeps memory constant. Pets written while the export runs show up if their _ID is past the
+ * current page.
+ */
+final class PetExporter implements ContentProvider.PipeDataWriter<String> {
+
+    private static final String LOG_TAG = PetExporter.class.getSimpleName();
+
+    /** Rows read per query */
+    static final int PAGE_SIZE = 500;
+
+    private static final String[] COLUMNS = {
+            PetContract.PetEntry._ID,
+            PetContract.PetEntry.COLUMN_PET_NAME,
+            PetContract.PetEntry.COLUMN_PET_BREED,
+            PetContract.PetEntry.COLUMN_PET_GENDER,
+            PetContract.PetEntry.COLUMN_PET_WEIGHT };
+
+    private static final String PAGE_SQL = "SELECT " + PetContract.PetEntry._ID + ", "
+            + PetContract.PetEntry.COLUMN_PET_NAME + ", " + PetContract.PetEntry.COLUMN_PET_BREED + ", "
+            + PetContract.PetEntry.COLUMN_PET_GENDER + ", " + PetContract.PetEntry.COLUMN_PET_WEIGHT
+            + " FROM " + PetContract.PetEntry.VIEW_NAME + " WHERE " + PetContract.PetEntry._ID
+            + ">? ORDER BY " + PetContract.PetEntry._ID + " LIMIT " + PAGE_SIZE;
+
+    private final PetDbHelper mDbHelper;
+
+    PetExporter(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Write the export in the format of the given MIME type, one of the export types of
+     * {@link PetContract.PetEntry}. Runs on the thread openPipeHelper() starts.
+     */
+    @Override
+    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType, Bundle opts, String format) {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new ParcelFileDescriptor.AutoCloseOutputStream(output), Charset.forName("UTF-8")));
+        try {
+            boolean json = PetContract.PetEntry.MIME_TYPE_NDJSON.equals(format);
+            if (!json)
+                writeCsvRow(writer, COLUMNS);
+            SQLiteDatabase db = mDbHelper.getReadableDatabase();
+            String[] args = {"-1"};
+            String[] values = new String[COLUMNS.length];
+            int rows;
+            do {
+                rows = 0;
+                Cursor cursor = db.rawQuery(PAGE_SQL, args);
+                try {
+                    while (cursor.moveToNext()) {
+                        if (json) {
+                            writeJsonRow(writer, cursor);
+                        } else {
+                            for (int i = 0; i < values.length; i++)
+                                values[i] = cursor.getString(i);
+                            writeCsvRow(writer, values);
+                        }
+                        args[0] = cursor.getString(0);
+                        rows++;
+                    }
+                } finally {
+                    cursor.close();
+                }
+                // Hand the page to the reader before querying the next one
+                writer.flush();
+            } while (rows == PAGE_SIZE);
+        } catch (IOException e) {
+            // The reader closed its end of the pipe
+            Log.w(LOG_TAG, "Export of " + uri + " stopped", e);
+        } finally {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to close export of " + uri, e);
+            }
+        }
+    }
+
+    /**
+     * Write one CSV record, quoting the values that need it as RFC 4180 says. Null values are
+     * written as empty fields.
+     */
+    private static void writeCsvRow(Writer writer, String[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0)
+                writer.write(',');
+            String value = values[i];
+            if (value == null)
+                continue;
+            if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+                writer.write(value);
+            } else {
+                writer.write('"');
+                writer.write(value.replace("\"", "\"\""));
+                writer.write('"');
+            }
+        }
+        writer.write("\r\n");
+    }
+
+    /**
+     * Write one pet as a JSON object on its own line.
+     */
+    private static void writeJsonRow(Writer writer, Cursor cursor) throws IOException {
+        // JsonWriter writes straight through to the writer, and closing it would close the pipe
+        JsonWriter json = new JsonWriter(writer);
+        json.beginObject();
+        json.name(PetContract.PetEntry._ID).value(cursor.getLong(0));
+        json.name(PetContract.PetEntry.COLUMN_PET_NAME).value(cursor.getString(1));
+        json.name(PetContract.PetEntry.COLUMN_PET_BREED).value(cursor.getString(2));
+        json.name(PetContract.PetEntry.COLUMN_PET_GENDER).value(cursor.getInt(3));
+        json.name(PetContract.PetEntry.COLUMN_PET_WEIGHT).value(cursor.getInt(4));
+        json.endObject();
+        writer.write('\n');
+    }
+}
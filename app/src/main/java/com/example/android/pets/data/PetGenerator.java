@@ -0,0 +1,186 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+
+import java.util.Arrays;
+
+/**
+ * Generates realistic synthetic pets, the same ones for the same seed.
+ *
+ * Pet number {@code index} only depends on the seed and the index, so any range of a table of
+ * millions of pets can be generated on its own, in any order. Names and breeds follow a Zipf
+ * distribution over lists of common ones, so a few are very frequent and most are rare, as in
+ * a real shelter; some pets have no breed. Weights are spread around the typical weight of the
+ * breed, and every gender and weight is valid for {@link PetProvider}.
+ */
+public final class PetGenerator {
+
+    private static final String[] NAMES = {
+            "Bella", "Max", "Luna", "Charlie", "Lucy", "Cooper", "Daisy", "Buddy", "Milo", "Bailey",
+            "Coco", "Rocky", "Lola", "Teddy", "Sadie", "Tucker", "Molly", "Bear", "Stella", "Duke",
+            "Oliver", "Leo", "Chloe", "Zeus", "Penny", "Toby", "Maggie", "Jack", "Nala", "Loki",
+            "Simba", "Ruby", "Oscar", "Rosie", "Bentley", "Zoe", "Winston", "Lily", "Jax", "Gracie",
+            "Murphy", "Roxy", "Louie", "Sophie", "Bruno", "Pepper", "Diesel", "Ginger", "Gus", "Willow",
+            "Sam", "Kiki", "Shadow", "Mia", "Tiger", "Smokey", "Oreo", "Ziggy", "Pumpkin", "Toto",
+            "Biscuit", "Hazel", "Finn", "Olive", "Marley", "Honey", "Rex", "Mocha", "Apollo", "Cleo",
+            "Benji", "Piper", "Hank", "Ivy", "Otis", "Pearl", "Thor", "Misty", "Bandit", "Peanut" };
+
+    /** Breeds, most common first, with their typical weight in kg */
+    private static final String[] BREEDS = {
+            "Domestic Shorthair", "Labrador Retriever", "Mixed", "German Shepherd", "Golden Retriever",
+            "Domestic Longhair", "French Bulldog", "Pit Bull Terrier", "Chihuahua", "Beagle",
+            "Siamese", "Bulldog", "Poodle", "Dachshund", "Maine Coon",
+            "Rottweiler", "Yorkshire Terrier", "Boxer", "Siberian Husky", "Shih Tzu",
+            "Persian", "Border Collie", "Cocker Spaniel", "Pug", "Ragdoll",
+            "Jack Russell Terrier", "Bengal", "British Shorthair", "Great Dane", "Terrier",
+            "Australian Shepherd", "Doberman Pinscher", "Sphynx", "Greyhound", "Maltese" };
+    private static final int[] BREED_WEIGHTS = {
+            4, 32, 15, 34, 30,
+            5, 11, 25, 2, 10,
+            4, 23, 25, 9, 7,
+            45, 3, 29, 23, 6,
+            5, 18, 13, 8, 6,
+            7, 5, 5, 60, 8,
+            23, 36, 4, 30, 3 };
+
+    /** Typical weight of pets without a breed */
+    private static final int UNKNOWN_BREED_WEIGHT = 15;
+
+    /** Per mille of pets without a breed, and of each gender */
+    private static final int NO_BREED_PER_MILLE = 80;
+    private static final int MALE_PER_MILLE = 480;
+    private static final int FEMALE_PER_MILLE = 470;
+
+    /** Spread of the weights around the typical weight of the breed, as a fraction of it */
+    private static final double WEIGHT_DEVIATION = 0.2;
+
+    private static final double[] NAME_CUMULATIVE = zipf(NAMES.length, 1.0);
+    private static final double[] BREED_CUMULATIVE = zipf(BREEDS.length, 1.1);
+
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private final long mSeed;
+    private long mState;
+
+    private String mName;
+    private String mBreed;
+    private int mGender;
+    private int mWeight;
+
+    public PetGenerator(long seed) {
+        mSeed = seed;
+    }
+
+    /**
+     * Make pet number {@code index} the current pet.
+     */
+    public PetGenerator generate(long index) {
+        mState = mix(mSeed + index * GOLDEN_GAMMA);
+        mName = NAMES[pick(NAME_CUMULATIVE, nextDouble())];
+        int weight;
+        if (nextInt(1000) < NO_BREED_PER_MILLE) {
+            mBreed = null;
+            weight = UNKNOWN_BREED_WEIGHT;
+        } else {
+            int breed = pick(BREED_CUMULATIVE, nextDouble());
+            mBreed = BREEDS[breed];
+            weight = BREED_WEIGHTS[breed];
+        }
+        int gender = nextInt(1000);
+        mGender = gender < MALE_PER_MILLE ? PetContract.PetEntry.GENDER_MALE
+                : gender < MALE_PER_MILLE + FEMALE_PER_MILLE ? PetContract.PetEntry.GENDER_FEMALE
+                : PetContract.PetEntry.GENDER_UNKNOWN;
+        mWeight = (int) Math.max(1, Math.round(weight * (1 + WEIGHT_DEVIATION * nextGaussian())));
+        return this;
+    }
+
+    public String name() {
+        return mName;
+    }
+
+    public String breed() {
+        return mBreed;
+    }
+
+    public int gender() {
+        return mGender;
+    }
+
+    public int weight() {
+        return mWeight;
+    }
+
+    /**
+     * Return the current pet as values for {@link PetProvider#insert}.
+     */
+    public ContentValues toValues() {
+        ContentValues values = new ContentValues();
+        values.put(PetContract.PetEntry.COLUMN_PET_NAME, mName);
+        values.put(PetContract.PetEntry.COLUMN_PET_BREED, mBreed);
+        values.put(PetContract.PetEntry.COLUMN_PET_GENDER, mGender);
+        values.put(PetContract.PetEntry.COLUMN_PET_WEIGHT, mWeight);
+        return values;
+    }
+
+    /**
+     * Append {@code count} new pets, starting with pet number {@code first}, to the writer.
+     */
+    public void pack(PetPacker.Writer writer, long first, int count) {
+        for (long index = first; index < first + count; index++) {
+            generate(index);
+            writer.add(mName, mBreed, mGender, mWeight);
+        }
+    }
+
+    /**
+     * SplitMix64: the next value of the current pet's sequence.
+     */
+    private long nextLong() {
+        mState += GOLDEN_GAMMA;
+        return mix(mState);
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /** Uniform in [0, 1) */
+    private double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    private int nextInt(int bound) {
+        return (int) ((nextLong() >>> 1) % bound);
+    }
+
+    /** Standard normal, by the Box-Muller transform */
+    private double nextGaussian() {
+        double u = 1 - nextDouble();
+        return Math.sqrt(-2 * Math.log(u)) * Math.cos(2 * Math.PI * nextDouble());
+    }
+
+    /**
+     * Return the cumulative probabilities of ranks 1 to n, rank r being drawn in proportion to
+     * 1 / r^exponent.
+     */
+    private static double[] zipf(int n, double exponent) {
+        double[] cumulative = new double[n];
+        double sum = 0;
+        for (int rank = 1; rank <= n; rank++) {
+            sum += 1 / Math.pow(rank, exponent);
+            cumulative[rank - 1] = sum;
+        }
+        for (int i = 0; i < n; i++)
+            cumulative[i] /= sum;
+        return cumulative;
+    }
+
+    private static int pick(double[] cumulative, double uniform) {
+        int index = Arrays.binarySearch(cumulative, uniform);
+        if (index < 0)
+            index = -index - 1;
+        return Math.min(index, cumulative.length - 1);
+    }
+}
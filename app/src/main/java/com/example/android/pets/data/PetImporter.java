@@ -0,0 +1,391 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Imports pets from CSV (with a header row, as exported by {@link PetExporter}) or from JSON,
+ * either newline-delimited or one array of objects.
+ *
+ * The file is parsed one record at a time on a background thread, which hands chunks of
+ * {@link #CHUNK_SIZE} validated pets to the importing thread through a short queue, so the next
+ * chunk is parsed while the previous one is written. Each chunk is inserted in one transaction
+ * together with the import's progress, keyed by its source. An import that is interrupted
+ * resumes after the last committed chunk when it is run again with the same source.
+ *
+ * Pets are checked with the rules of {@link PetProvider#validatePet}; invalid records are
+ * skipped and counted as rejected.
+ */
+public final class PetImporter {
+
+    private static final String LOG_TAG = PetImporter.class.getSimpleName();
+
+    /** Pets inserted per transaction */
+    public static final int CHUNK_SIZE = 500;
+
+    /** Parsed chunks waiting to be written, bounding the memory the parser can use */
+    private static final int QUEUED_CHUNKS = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Receives the progress of an import after each committed chunk, on the importing thread.
+     */
+    public interface ProgressListener {
+        /**
+         * @param position number of records of the file consumed so far
+         * @param imported number of pets inserted so far
+         * @param rejected number of records skipped as invalid so far
+         */
+        void onProgress(long position, long imported, long rejected);
+    }
+
+    private final ContentResolver mResolver;
+
+    public PetImporter(Context context) {
+        mResolver = context.getContentResolver();
+    }
+
+    /**
+     * Import the pets of the file at the given URI, resuming a previous import of the same URI.
+     * Return the number of pets imported, including those of earlier attempts. Must not be
+     * called on the main thread.
+     */
+    public long importFrom(Uri source, String mimeType, ProgressListener listener)
+            throws IOException, InterruptedException {
+        InputStream in = mResolver.openInputStream(source);
+        if (in == null)
+            throw new FileNotFoundException("Cannot open " + source);
+        return importFrom(in, source.toString(), mimeType, listener);
+    }
+
+    /**
+     * Import the pets of the given file, resuming a previous import with the same key. The file
+     * descriptor is closed when the import ends.
+     */
+    public long importFrom(ParcelFileDescriptor source, String key, String mimeType, ProgressListener listener)
+            throws IOException, InterruptedException {
+        return importFrom(new ParcelFileDescriptor.AutoCloseInputStream(source), key, mimeType, listener);
+    }
+
+    /**
+     * Import the pets of the given stream, which is closed when the import ends. {@code key}
+     * names the source for resuming; {@code mimeType} is {@link PetContract.PetEntry#MIME_TYPE_CSV}
+     * for CSV, anything else is read as JSON.
+     */
+    public long importFrom(InputStream in, String key, String mimeType, ProgressListener listener)
+            throws IOException, InterruptedException {
+        long skip = 0;
+        long imported = 0;
+        long rejected = 0;
+        Bundle progress = mResolver.call(PetContract.PetEntry.CONTENT_URI, PetContract.METHOD_IMPORT_PROGRESS, key, null);
+        if (progress != null) {
+            skip = progress.getLong(PetContract.EXTRA_POSITION);
+            imported = progress.getLong(PetContract.EXTRA_IMPORTED);
+            rejected = progress.getLong(PetContract.EXTRA_REJECTED);
+            Log.i(LOG_TAG, "Resuming import of " + key + " after record " + skip);
+        }
+
+        Reader reader = new BufferedReader(new InputStreamReader(in, UTF_8));
+        RecordReader records = PetContract.PetEntry.MIME_TYPE_CSV.equals(mimeType)
+                ? new CsvRecordReader(reader) : new JsonRecordReader(reader);
+        BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(QUEUED_CHUNKS);
+        ExecutorService parser = Executors.newSingleThreadExecutor();
+        try {
+            parser.execute(new Parser(records, skip, queue));
+            while (true) {
+                Chunk chunk = queue.take();
+                if (chunk.error != null)
+                    throw chunk.error;
+                if (chunk.count > 0 || chunk.rejected > 0) {
+                    Bundle extras = new Bundle();
+                    extras.putParcelableArray(PetContract.EXTRA_ROWS, Arrays.copyOf(chunk.rows, chunk.count));
+                    extras.putLong(PetContract.EXTRA_POSITION, chunk.position);
+                    extras.putLong(PetContract.EXTRA_REJECTED, chunk.rejected);
+                    Bundle result = mResolver.call(PetContract.PetEntry.CONTENT_URI,
+                            PetContract.METHOD_IMPORT_CHUNK, key, extras);
+                    imported += result.getLong(PetContract.EXTRA_IMPORTED);
+                    rejected += result.getLong(PetContract.EXTRA_REJECTED);
+                    if (listener != null)
+                        listener.onProgress(chunk.position, imported, rejected);
+                }
+                if (chunk.last)
+                    break;
+            }
+            mResolver.call(PetContract.PetEntry.CONTENT_URI, PetContract.METHOD_FINISH_IMPORT, key, null);
+        } finally {
+            parser.shutdownNow();
+            reader.close();
+        }
+        return imported;
+    }
+
+    /** A run of parsed records handed from the parser to the importing thread */
+    private static final class Chunk {
+        final ContentValues[] rows = new ContentValues[CHUNK_SIZE];
+        int count;
+        long rejected;
+        long position;
+        boolean last;
+        IOException error;
+    }
+
+    /**
+     * Parses records into chunks until the end of the file, skipping the records a previous
+     * attempt already imported.
+     */
+    private static final class Parser implements Runnable {
+
+        private final RecordReader mRecords;
+        private final long mSkip;
+        private final BlockingQueue<Chunk> mQueue;
+
+        Parser(RecordReader records, long skip, BlockingQueue<Chunk> queue) {
+            mRecords = records;
+            mSkip = skip;
+            mQueue = queue;
+        }
+
+        @Override
+        public void run() {
+            Chunk failed = new Chunk();
+            try {
+                parse();
+                return;
+            } catch (IOException e) {
+                failed.error = e;
+            } catch (RuntimeException e) {
+                failed.error = new IOException("Invalid import file", e);
+            } catch (InterruptedException e) {
+                // The import was abandoned
+                return;
+            }
+            try {
+                mQueue.put(failed);
+            } catch (InterruptedException e) {
+                // The import was abandoned
+            }
+        }
+
+        private void parse() throws IOException, InterruptedException {
+            long position = 0;
+            Chunk chunk = new Chunk();
+            ContentValues values;
+            while ((values = mRecords.next()) != null) {
+                position++;
+                if (position <= mSkip)
+                    continue;
+                String error = PetProvider.validatePet(values);
+                if (error == null) {
+                    chunk.rows[chunk.count++] = values;
+                } else {
+                    Log.w(LOG_TAG, error + " in record " + position);
+                    chunk.rejected++;
+                }
+                if (chunk.count == CHUNK_SIZE) {
+                    chunk.position = position;
+                    mQueue.put(chunk);
+                    chunk = new Chunk();
+                }
+            }
+            chunk.position = position;
+            chunk.last = true;
+            mQueue.put(chunk);
+        }
+    }
+
+    /** Reads one pet per call, or null at the end of the file */
+    private interface RecordReader {
+        ContentValues next() throws IOException;
+    }
+
+    /**
+     * Reads RFC 4180 CSV. The header row names the columns; unknown columns are ignored and
+     * empty fields are left out of the pet's values.
+     */
+    private static final class CsvRecordReader implements RecordReader {
+
+        private final Reader mReader;
+        private final List<String> mFields = new ArrayList<>();
+        private final StringBuilder mField = new StringBuilder();
+        private Map<String, Integer> mHeader;
+
+        CsvRecordReader(Reader reader) {
+            mReader = reader;
+        }
+
+        @Override
+        public ContentValues next() throws IOException {
+            if (mHeader == null) {
+                if (!readRecord())
+                    return null;
+                mHeader = new HashMap<>();
+                for (int i = 0; i < mFields.size(); i++)
+                    mHeader.put(mFields.get(i).trim(), i);
+            }
+            if (!readRecord())
+                return null;
+            ContentValues values = new ContentValues();
+            putString(values, PetContract.PetEntry.COLUMN_PET_NAME);
+            putString(values, PetContract.PetEntry.COLUMN_PET_BREED);
+            putInteger(values, PetContract.PetEntry.COLUMN_PET_GENDER);
+            putInteger(values, PetContract.PetEntry.COLUMN_PET_WEIGHT);
+            return values;
+        }
+
+        private String field(String column) {
+            Integer index = mHeader.get(column);
+            if (index == null || index >= mFields.size())
+                return null;
+            String value = mFields.get(index);
+            return value.isEmpty() ? null : value;
+        }
+
+        private void putString(ContentValues values, String column) {
+            String value = field(column);
+            if (value != null)
+                values.put(column, value);
+        }
+
+        private void putInteger(ContentValues values, String column) {
+            String value = field(column);
+            if (value == null)
+                return;
+            try {
+                values.put(column, Integer.parseInt(value.trim()));
+            } catch (NumberFormatException e) {
+                // Left out, so the record fails validation
+            }
+        }
+
+        /**
+         * Read the fields of the next non-empty record. Return false at the end of the file.
+         */
+        private boolean readRecord() throws IOException {
+            mFields.clear();
+            mField.setLength(0);
+            boolean quoted = false;
+            boolean empty = true;
+            int c;
+            while ((c = mReader.read()) != -1) {
+                if (quoted) {
+                    if (c != '"') {
+                        mField.append((char) c);
+                        continue;
+                    }
+                    mReader.mark(1);
+                    int next = mReader.read();
+                    if (next == '"') {
+                        mField.append('"');
+                    } else {
+                        quoted = false;
+                        if (next != -1)
+                            mReader.reset();
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                    empty = false;
+                } else if (c == ',') {
+                    mFields.add(mField.toString());
+                    mField.setLength(0);
+                    empty = false;
+                } else if (c == '\n' || c == '\r') {
+                    if (empty && mField.length() == 0)
+                        continue;
+                    break;
+                } else {
+                    mField.append((char) c);
+                    empty = false;
+                }
+            }
+            if (empty && mField.length() == 0)
+                return false;
+            mFields.add(mField.toString());
+            return true;
+        }
+    }
+
+    /**
+     * Reads pets from newline-delimited JSON objects or from one array of objects. Unknown
+     * names are skipped; numbers may also be given as strings.
+     */
+    private static final class JsonRecordReader implements RecordReader {
+
+        private final JsonReader mReader;
+        private boolean mStarted;
+        private boolean mInArray;
+
+        JsonRecordReader(Reader reader) {
+            mReader = new JsonReader(reader);
+            // Lenient parsing reads several top-level values, one per line
+            mReader.setLenient(true);
+        }
+
+        @Override
+        public ContentValues next() throws IOException {
+            if (!mStarted) {
+                mStarted = true;
+                if (mReader.peek() == JsonToken.BEGIN_ARRAY) {
+                    mReader.beginArray();
+                    mInArray = true;
+                }
+            }
+            if (mInArray ? !mReader.hasNext() : mReader.peek() == JsonToken.END_DOCUMENT)
+                return null;
+
+            ContentValues values = new ContentValues();
+            mReader.beginObject();
+            while (mReader.hasNext()) {
+                String name = mReader.nextName();
+                if (mReader.peek() == JsonToken.NULL) {
+                    mReader.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case PetContract.PetEntry.COLUMN_PET_NAME:
+                    case PetContract.PetEntry.COLUMN_PET_BREED:
+                        values.put(name, mReader.nextString());
+                        break;
+                    case PetContract.PetEntry.COLUMN_PET_GENDER:
+                    case PetContract.PetEntry.COLUMN_PET_WEIGHT:
+                        String value = mReader.nextString();
+                        try {
+                            values.put(name, Integer.parseInt(value.trim()));
+                        } catch (NumberFormatException e) {
+                            // Left out, so the record fails validation
+                        }
+                        break;
+                    default:
+                        mReader.skipValue();
+                        break;
+                }
+            }
+            mReader.endObject();
+            return values;
+        }
+    }
+}
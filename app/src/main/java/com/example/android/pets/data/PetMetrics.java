@@ -0,0 +1,235 @@
+package com.example.android.pets.data;
+
+import android.os.Bundle;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Call counts, row totals and latency histograms of the entry points of {@link PetProvider},
+ * kept per operation and per URI.
+ *
+ * Each (operation, URI) pair owns one {@link AtomicLongArray}, allocated the first time the
+ * pair is recorded, holding its counters followed by a log-linear latency histogram: every
+ * power of two of nanoseconds is split into {@link #SUB_BUCKETS} equal buckets, so a latency
+ * is known to within about 3% of its value, up to {@link #MAX_NANOS}. Recording is a handful
+ * of atomic adds, without locks or allocation, so metrics stay on in production.
+ */
+final class PetMetrics {
+
+    /** Operations recorded, in the order of {@link #OPERATION_NAMES} */
+    static final int QUERY = 0;
+    static final int INSERT = 1;
+    static final int UPDATE = 2;
+    static final int DELETE = 3;
+    static final int BULK_INSERT = 4;
+    static final int APPLY_BATCH = 5;
+    static final int OPEN_FILE = 6;
+    static final int CALL = 7;
+
+    private static final String[] OPERATION_NAMES = {
+            "query", "insert", "update", "delete", "bulk_insert", "apply_batch", "open_file", "call" };
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Latencies are clamped to this, about 18 minutes */
+    static final long MAX_NANOS = (1L << 40) - 1;
+
+    private static final int BUCKETS = bucketIndex(MAX_NANOS) + 1;
+
+    // Layout of the array of each (operation, URI) pair
+    private static final int COUNT = 0;
+    private static final int ERRORS = 1;
+    private static final int ROWS = 2;
+    private static final int TOTAL_NANOS = 3;
+    private static final int MAX = 4;
+    private static final int FIRST_BUCKET = 5;
+
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+    private static final String[] PERCENTILE_KEYS = {
+            PetContract.EXTRA_METRIC_P50_MICROS, PetContract.EXTRA_METRIC_P90_MICROS,
+            PetContract.EXTRA_METRIC_P99_MICROS, PetContract.EXTRA_METRIC_P999_MICROS };
+
+    private final String[] mUriNames;
+    private final AtomicReferenceArray<AtomicLongArray> mStats;
+
+    /**
+     * @param uriNames names of the URI slots; recording a slot past the end counts as "other"
+     */
+    PetMetrics(String... uriNames) {
+        mUriNames = Arrays.copyOf(uriNames, uriNames.length + 1);
+        mUriNames[uriNames.length] = "other";
+        mStats = new AtomicReferenceArray<>(OPERATION_NAMES.length * mUriNames.length);
+    }
+
+    /**
+     * Record one call of the given operation on the given URI slot, which started at
+     * {@code startNanos} as given by {@link System#nanoTime()} and returned or changed
+     * {@code rows} rows.
+     */
+    void record(int operation, int uriSlot, long startNanos, long rows, boolean failed) {
+        long nanos = Math.min(Math.max(System.nanoTime() - startNanos, 0), MAX_NANOS);
+        if (uriSlot < 0 || uriSlot >= mUriNames.length)
+            uriSlot = mUriNames.length - 1;
+        int key = operation * mUriNames.length + uriSlot;
+        AtomicLongArray stats = mStats.get(key);
+        if (stats == null) {
+            mStats.compareAndSet(key, null, new AtomicLongArray(FIRST_BUCKET + BUCKETS));
+            stats = mStats.get(key);
+        }
+
+        stats.incrementAndGet(COUNT);
+        if (failed)
+            stats.incrementAndGet(ERRORS);
+        if (rows > 0)
+            stats.addAndGet(ROWS, rows);
+        stats.addAndGet(TOTAL_NANOS, nanos);
+        long max;
+        while (nanos > (max = stats.get(MAX)) && !stats.compareAndSet(MAX, max, nanos)) {
+            // Another thread raised the maximum; compare again
+        }
+        stats.incrementAndGet(FIRST_BUCKET + bucketIndex(nanos));
+    }
+
+    /**
+     * Return one Bundle per recorded (operation, URI) pair, keyed "operation:uri". Each holds
+     * the counters, latency percentiles and the non-empty buckets of the histogram. Counters
+     * recorded while the snapshot is taken may be partly included.
+     */
+    Bundle snapshot() {
+        Bundle snapshot = new Bundle();
+        for (int key = 0; key < mStats.length(); key++) {
+            AtomicLongArray stats = mStats.get(key);
+            if (stats != null && stats.get(COUNT) > 0)
+                snapshot.putBundle(keyName(key), snapshot(stats));
+        }
+        return snapshot;
+    }
+
+    /**
+     * Zero every counter and histogram.
+     */
+    void reset() {
+        for (int key = 0; key < mStats.length(); key++) {
+            AtomicLongArray stats = mStats.get(key);
+            if (stats == null)
+                continue;
+            for (int i = 0; i < stats.length(); i++)
+                stats.set(i, 0);
+        }
+    }
+
+    /**
+     * Write a line per recorded (operation, URI) pair, for dumpsys.
+     */
+    void dump(PrintWriter writer) {
+        for (int key = 0; key < mStats.length(); key++) {
+            AtomicLongArray stats = mStats.get(key);
+            if (stats == null || stats.get(COUNT) == 0)
+                continue;
+            Bundle metrics = snapshot(stats);
+            writer.print(keyName(key));
+            for (String name : new String[]{ PetContract.EXTRA_METRIC_COUNT, PetContract.EXTRA_METRIC_ERRORS,
+                    PetContract.EXTRA_METRIC_ROWS, PetContract.EXTRA_METRIC_MEAN_MICROS }) {
+                writer.print(' ');
+                writer.print(name);
+                writer.print('=');
+                writer.print(metrics.getLong(name));
+            }
+            for (String name : PERCENTILE_KEYS) {
+                writer.print(' ');
+                writer.print(name);
+                writer.print('=');
+                writer.print(metrics.getLong(name));
+            }
+            writer.print(' ');
+            writer.print(PetContract.EXTRA_METRIC_MAX_MICROS);
+            writer.print('=');
+            writer.println(metrics.getLong(PetContract.EXTRA_METRIC_MAX_MICROS));
+        }
+    }
+
+    private String keyName(int key) {
+        return OPERATION_NAMES[key / mUriNames.length] + ":" + mUriNames[key % mUriNames.length];
+    }
+
+    /**
+     * Return the "operation:uri" name the given operation on the given URI slot is reported as.
+     */
+    String name(int operation, int uriSlot) {
+        if (uriSlot < 0 || uriSlot >= mUriNames.length)
+            uriSlot = mUriNames.length - 1;
+        return keyName(operation * mUriNames.length + uriSlot);
+    }
+
+    private static Bundle snapshot(AtomicLongArray stats) {
+        long[] buckets = new long[BUCKETS];
+        long histogramCount = 0;
+        int used = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = stats.get(FIRST_BUCKET + i);
+            histogramCount += buckets[i];
+            if (buckets[i] > 0)
+                used++;
+        }
+        long count = stats.get(COUNT);
+        long max = stats.get(MAX);
+
+        Bundle metrics = new Bundle();
+        metrics.putLong(PetContract.EXTRA_METRIC_COUNT, count);
+        metrics.putLong(PetContract.EXTRA_METRIC_ERRORS, stats.get(ERRORS));
+        metrics.putLong(PetContract.EXTRA_METRIC_ROWS, stats.get(ROWS));
+        metrics.putLong(PetContract.EXTRA_METRIC_MEAN_MICROS, count == 0 ? 0 : stats.get(TOTAL_NANOS) / count / 1000);
+        metrics.putLong(PetContract.EXTRA_METRIC_MAX_MICROS, max / 1000);
+
+        for (int p = 0; p < PERCENTILES.length; p++) {
+            // The highest latency of the bucket holding the percentile, but never above the maximum
+            long rank = (long) Math.ceil(histogramCount * PERCENTILES[p] / 100);
+            long seen = 0;
+            long value = 0;
+            for (int i = 0; i < BUCKETS && histogramCount > 0; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    value = Math.min(bucketUpperBound(i), max);
+                    break;
+                }
+            }
+            metrics.putLong(PERCENTILE_KEYS[p], value / 1000);
+        }
+
+        // Pairs of bucket upper bound in nanoseconds and count, for rebuilding the histogram
+        long[] histogram = new long[used * 2];
+        int next = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (buckets[i] > 0) {
+                histogram[next++] = bucketUpperBound(i);
+                histogram[next++] = buckets[i];
+            }
+        }
+        metrics.putLongArray(PetContract.EXTRA_METRIC_HISTOGRAM, histogram);
+        return metrics;
+    }
+
+    /**
+     * Return the bucket of the given latency: values below {@link #SUB_BUCKETS} have a bucket
+     * each, and each power of two above is split into {@link #SUB_BUCKETS} buckets.
+     */
+    static int bucketIndex(long nanos) {
+        if (nanos < SUB_BUCKETS)
+            return (int) nanos;
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((nanos >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,187 @@
+package com.example.android.pets.data;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Packs pet records into a byte array for the packed methods of {@link PetProvider}, which
+ * skip ContentValues on writes and cursors on reads.
+ *
+ * The format is big-endian: a version byte and the record count as an int, then per record
+ * the _ID as a long (0 for a new pet), the name and the breed as an int byte length (-1 for
+ * null) followed by their UTF-8 bytes, the gender as a byte and the weight as an int.
+ */
+public final class PetPacker {
+
+    static final byte VERSION = 1;
+
+    private static final int HEADER_BYTES = 5;
+
+    /** Size of a record whose name and breed are null */
+    private static final int MIN_RECORD_BYTES = 8 + 4 + 4 + 1 + 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private PetPacker() {
+    }
+
+    /**
+     * Appends records and returns them as one packed array.
+     */
+    public static final class Writer {
+
+        private byte[] mBytes;
+        private ByteBuffer mBuffer;
+        private int mCount;
+
+        public Writer() {
+            this(1024);
+        }
+
+        public Writer(int initialBytes) {
+            mBytes = new byte[Math.max(initialBytes, HEADER_BYTES)];
+            mBuffer = ByteBuffer.wrap(mBytes);
+            mBuffer.put(VERSION).putInt(0);
+        }
+
+        /**
+         * Append a new pet.
+         */
+        public Writer add(String name, String breed, int gender, int weight) {
+            return add(0, name, breed, gender, weight);
+        }
+
+        /**
+         * Append the pet with the given _ID, or a new pet if the _ID is 0.
+         */
+        public Writer add(long id, String name, String breed, int gender, int weight) {
+            byte[] nameBytes = name == null ? null : name.getBytes(UTF_8);
+            byte[] breedBytes = breed == null ? null : breed.getBytes(UTF_8);
+            ensureCapacity(8 + 4 + length(nameBytes) + 4 + length(breedBytes) + 1 + 4);
+            mBuffer.putLong(id);
+            putBytes(nameBytes);
+            putBytes(breedBytes);
+            mBuffer.put((byte) gender);
+            mBuffer.putInt(weight);
+            mCount++;
+            return this;
+        }
+
+        public int count() {
+            return mCount;
+        }
+
+        public byte[] toByteArray() {
+            mBuffer.putInt(1, mCount);
+            return Arrays.copyOf(mBytes, mBuffer.position());
+        }
+
+        private void putBytes(byte[] bytes) {
+            if (bytes == null) {
+                mBuffer.putInt(-1);
+            } else {
+                mBuffer.putInt(bytes.length);
+                mBuffer.put(bytes);
+            }
+        }
+
+        private void ensureCapacity(int bytes) {
+            if (mBuffer.remaining() >= bytes)
+                return;
+            int position = mBuffer.position();
+            mBytes = Arrays.copyOf(mBytes, Math.max(mBytes.length * 2, position + bytes));
+            mBuffer = ByteBuffer.wrap(mBytes);
+            mBuffer.position(position);
+        }
+
+        private static int length(byte[] bytes) {
+            return bytes == null ? 0 : bytes.length;
+        }
+    }
+
+    /**
+     * Reads the records of a packed array one at a time. A malformed array throws
+     * IllegalArgumentException.
+     */
+    public static final class Reader {
+
+        private final ByteBuffer mBuffer;
+        private final int mCount;
+        private int mRead;
+
+        private long mId;
+        private String mName;
+        private String mBreed;
+        private int mGender;
+        private int mWeight;
+
+        public Reader(byte[] packed) {
+            mBuffer = ByteBuffer.wrap(packed);
+            try {
+                if (mBuffer.get() != VERSION)
+                    throw new IllegalArgumentException("Unknown packed pets version " + packed[0]);
+                mCount = mBuffer.getInt();
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Packed pets too short");
+            }
+            if (mCount < 0 || mCount > (packed.length - HEADER_BYTES) / MIN_RECORD_BYTES)
+                throw new IllegalArgumentException("Invalid packed pets count " + mCount);
+        }
+
+        public int count() {
+            return mCount;
+        }
+
+        /**
+         * Move to the next record. Return false after the last one.
+         */
+        public boolean next() {
+            if (mRead == mCount)
+                return false;
+            try {
+                mId = mBuffer.getLong();
+                mName = getString();
+                mBreed = getString();
+                mGender = mBuffer.get();
+                mWeight = mBuffer.getInt();
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Packed pets end in record " + mRead);
+            }
+            mRead++;
+            return true;
+        }
+
+        public long id() {
+            return mId;
+        }
+
+        public String name() {
+            return mName;
+        }
+
+        public String breed() {
+            return mBreed;
+        }
+
+        public int gender() {
+            return mGender;
+        }
+
+        public int weight() {
+            return mWeight;
+        }
+
+        private String getString() {
+            int length = mBuffer.getInt();
+            if (length < 0)
+                return null;
+            if (length > mBuffer.remaining())
+                throw new BufferUnderflowException();
+            String value = new String(mBuffer.array(), mBuffer.position(), length, UTF_8);
+            mBuffer.position(mBuffer.position() + length);
+            return value;
+        }
+    }
+}
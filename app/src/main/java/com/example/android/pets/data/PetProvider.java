@@ -1,18 +1,43 @@
 package com.example.android.pets.data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ClipDescription;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.example.android.pets.EditorActivity;
 
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 /**
  * Created by Himanshu on 20/03/2017.
  */
@@ -26,6 +51,54 @@ public class PetProvider extends ContentProvider {
     public static final String LOG_TAG = PetProvider.class.getSimpleName();
     private PetDbHelper mDbHelper;
 
+    /** Compiled statements of the single-row paths, for the current database object */
+    private volatile PetStatementCache mStatements;
+
+    /** Collects change notifications and dispatches them in bursts */
+    private PetChangeNotifier mNotifier;
+
+    /** Recently read pet rows, answering PET_ID queries from memory */
+    private final PetRowCache mRowCache = new PetRowCache(PetRowCache.DEFAULT_MAX_BYTES);
+
+    /** Times a write re-reads its rows when other writes keep patching the snapshot first */
+    private static final int SNAPSHOT_PATCH_ATTEMPTS = 3;
+
+    /**
+     * Column-wise copy of the pets answering unfiltered list and page queries, patched after
+     * every committed write. The generation is bumped by every write, so a snapshot built while
+     * a write committed is used once but not kept.
+     */
+    private final Object mSnapshotLock = new Object();
+    private PetSnapshot mSnapshot;
+    private long mSnapshotGeneration;
+
+    /**
+     * State of the bulkInsert() or applyBatch() call running on a thread. While a batch is
+     * running all writes share one transaction and the cached compiled statements, and change
+     * notifications and snapshot patches are held back until the batch commits.
+     */
+    private static final class Batch {
+        int depth;
+        final Set<Long> changedIds = new HashSet<>();
+        boolean collectionChanged;
+        boolean rejected;
+    }
+
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<>();
+
+    /** Whitelists for the selection and sort order of queries on the pets table */
+    private static final Set<String> FILTERABLE_COLUMNS =
+            new HashSet<>(Arrays.asList(PetContract.PetEntry.FILTERABLE_COLUMNS));
+    private static final Set<String> SORTABLE_COLUMNS =
+            new HashSet<>(Arrays.asList(PetContract.PetEntry.SORTABLE_COLUMNS));
+    private static final Set<String> SELECTION_KEYWORDS = new HashSet<>(Arrays.asList(
+            "AND", "OR", "NOT", "IS", "NULL", "IN", "LIKE", "GLOB", "BETWEEN", "ESCAPE", "COLLATE", "NOCASE"));
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+    private static final Pattern SEARCH_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern SORT_TERM = Pattern.compile(
+            "\\s*([A-Za-z_][A-Za-z0-9_]*)(?:\\s+COLLATE\\s+NOCASE)?(?:\\s+(?:ASC|DESC))?\\s*",
+            Pattern.CASE_INSENSITIVE);
 
     /** URI matcher code for the content URI for the pets table */
     private static final int PETS = 100;
@@ -33,6 +106,91 @@ public class PetProvider extends ContentProvider {
     /** URI matcher code for the content URI for a single pet in the pets table */
     private static final int PET_ID = 101;
 
+    /** URI matcher code for the content URI to search pets by name and breed */
+    private static final int SEARCH = 102;
+
+    /** URI matcher codes for the content URIs of the pet count and the breed statistics */
+    private static final int COUNT = 103;
+    private static final int STATS = 104;
+
+    /** URI matcher code for the content URI that streams every pet */
+    private static final int EXPORT = 105;
+
+    /** URI matcher code for the content URI of the changelog */
+    private static final int CHANGES = 106;
+
+    /** Names of the URI matcher codes in the metrics, indexed by code minus {@link #PETS} */
+    private static final String[] URI_NAMES = { "pets", "pet_id", "search", "count", "stats", "export", "changes" };
+
+    /** Call counts and latency histograms of every entry point */
+    private final PetMetrics mMetrics = new PetMetrics(URI_NAMES);
+
+    /** Opt-in log of slow queries, updates and deletes with their query plans */
+    private final PetSlowLog mSlowLog = new PetSlowLog(mMetrics);
+
+    /** Purges tombstones and old changes in the background */
+    private PetCompactor mCompactor;
+
+    /** Stream types of the export URI, the first being the default */
+    private static final String[] EXPORT_TYPES = {
+            PetContract.PetEntry.MIME_TYPE_CSV, PetContract.PetEntry.MIME_TYPE_NDJSON };
+
+    /**
+     * Single-row table of pet counts summed from the per-gender summary, and per-breed
+     * statistics with their average. Both only read the small summary tables.
+     */
+    private static final String COUNT_TABLE = "(SELECT ifnull(sum(" + PetContract.PetEntry.COLUMN_COUNT + "), 0) AS "
+            + PetContract.PetEntry.COLUMN_COUNT + ", "
+            + genderCount(PetContract.PetEntry.GENDER_MALE, PetContract.PetEntry.COLUMN_MALE_COUNT) + ", "
+            + genderCount(PetContract.PetEntry.GENDER_FEMALE, PetContract.PetEntry.COLUMN_FEMALE_COUNT) + ", "
+            + genderCount(PetContract.PetEntry.GENDER_UNKNOWN, PetContract.PetEntry.COLUMN_UNKNOWN_GENDER_COUNT)
+            + " FROM " + PetContract.PetEntry.GENDER_COUNTS_TABLE_NAME + ")";
+    private static final String STATS_TABLE = "(SELECT ifnull(" + PetContract.PetEntry.BREEDS_TABLE_NAME + "."
+            + PetContract.PetEntry.COLUMN_PET_BREED + ", '') AS " + PetContract.PetEntry.COLUMN_PET_BREED + ", "
+            + PetContract.PetEntry.COLUMN_COUNT + ", " + PetContract.PetEntry.COLUMN_TOTAL_WEIGHT + ", CAST("
+            + PetContract.PetEntry.COLUMN_TOTAL_WEIGHT + " AS REAL) / " + PetContract.PetEntry.COLUMN_COUNT + " AS "
+            + PetContract.PetEntry.COLUMN_AVERAGE_WEIGHT + " FROM " + PetContract.PetEntry.BREED_STATS_TABLE_NAME
+            + " LEFT JOIN " + PetContract.PetEntry.BREEDS_TABLE_NAME + " USING (" + PetContract.PetEntry.COLUMN_BREED_ID + "))";
+
+    /**
+     * Changelog rows with the current columns of their pets, null once a pet is deleted. The
+     * pets are joined directly rather than through the view, which SQLite would materialize
+     * whole on the right of a LEFT JOIN.
+     */
+    private static final String CHANGES_TABLE = "(SELECT " + PetContract.PetEntry.COLUMN_CHANGE_SEQ + ", "
+            + PetContract.PetEntry.COLUMN_CHANGE_OP + ", " + PetContract.PetEntry.COLUMN_CHANGE_PET_ID + " AS "
+            + PetContract.PetEntry._ID + ", " + PetContract.PetEntry.COLUMN_PET_NAME + ", "
+            + PetContract.PetEntry.COLUMN_PET_BREED + ", " + PetContract.PetEntry.COLUMN_PET_GENDER + ", "
+            + PetContract.PetEntry.COLUMN_PET_WEIGHT + " FROM " + PetContract.PetEntry.CHANGES_TABLE_NAME
+            + " LEFT JOIN " + PetContract.PetEntry.TABLE_NAME + " ON " + PetContract.PetEntry.TABLE_NAME + "."
+            + PetContract.PetEntry._ID + " = " + PetContract.PetEntry.COLUMN_CHANGE_PET_ID + " AND "
+            + PetContract.PetEntry.SQL_LIVE + " LEFT JOIN " + PetContract.PetEntry.BREEDS_TABLE_NAME + " ON "
+            + PetContract.PetEntry.BREEDS_TABLE_NAME + "." + PetContract.PetEntry.COLUMN_BREED_ID + " = "
+            + PetContract.PetEntry.TABLE_NAME + "." + PetContract.PetEntry.COLUMN_BREED_ID + ")";
+
+    /**
+     * Changes after the first argument, as long as the changelog still holds every change after
+     * it. Checking in the same statement reads both from one snapshot of the database.
+     */
+    private static final String CHANGES_SELECTION = PetContract.PetEntry.COLUMN_CHANGE_SEQ + " > ? AND CAST(? AS INTEGER) >= (SELECT "
+            + PetContract.PetEntry.COLUMN_CHANGES_TRUNCATED_THROUGH + " FROM " + PetContract.PetEntry.META_TABLE_NAME + ")";
+
+    /** Page of a packed query when there is no snapshot, in the column order of PetPacker */
+    private static final String PACKED_PAGE_SQL = "SELECT " + PetContract.PetEntry._ID + ", "
+            + PetContract.PetEntry.COLUMN_PET_NAME + ", " + PetContract.PetEntry.COLUMN_PET_BREED + ", "
+            + PetContract.PetEntry.COLUMN_PET_GENDER + ", " + PetContract.PetEntry.COLUMN_PET_WEIGHT + " FROM "
+            + PetContract.PetEntry.VIEW_NAME + " WHERE " + PetContract.PetEntry._ID + ">? ORDER BY "
+            + PetContract.PetEntry._ID + " LIMIT ?";
+
+    /** Columns of the count and stats URIs, which their projections are checked against */
+    private static final Map<String, String> COUNT_PROJECTION_MAP = projectionMap(
+            PetContract.PetEntry.COLUMN_COUNT, PetContract.PetEntry.COLUMN_MALE_COUNT,
+            PetContract.PetEntry.COLUMN_FEMALE_COUNT, PetContract.PetEntry.COLUMN_UNKNOWN_GENDER_COUNT);
+    private static final Map<String, String> STATS_PROJECTION_MAP = projectionMap(PetContract.PetEntry.STATS_COLUMNS);
+    private static final Map<String, String> CHANGES_PROJECTION_MAP = projectionMap(PetContract.PetEntry.CHANGES_COLUMNS);
+    private static final Set<String> STATS_COLUMNS =
+            new HashSet<>(Arrays.asList(PetContract.PetEntry.STATS_COLUMNS));
+
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      * The input passed into the constructor represents the code to return for the root URI.
@@ -58,6 +216,19 @@ public class PetProvider extends ContentProvider {
          * "content://com.example.app.provider/table3 doesn't.
          */
         sUriMatcher.addURI(String.valueOf(PetContract.CONTENT_AUTHORITY), PetContract.PATH_PETS+"/#", PET_ID);
+
+        // Sets the code for full-text search over pet names and breeds
+        sUriMatcher.addURI(String.valueOf(PetContract.CONTENT_AUTHORITY), PetContract.PATH_PETS+"/"+PetContract.PATH_SEARCH, SEARCH);
+
+        // Sets the codes for the pet count and the breed statistics
+        sUriMatcher.addURI(String.valueOf(PetContract.CONTENT_AUTHORITY), PetContract.PATH_PETS+"/"+PetContract.PATH_COUNT, COUNT);
+        sUriMatcher.addURI(String.valueOf(PetContract.CONTENT_AUTHORITY), PetContract.PATH_PETS+"/"+PetContract.PATH_STATS, STATS);
+
+        // Sets the code for the export stream
+        sUriMatcher.addURI(String.valueOf(PetContract.CONTENT_AUTHORITY), PetContract.PATH_PETS+"/"+PetContract.PATH_EXPORT, EXPORT);
+
+        // Sets the code for the changelog
+        sUriMatcher.addURI(String.valueOf(PetContract.CONTENT_AUTHORITY), PetContract.PATH_PETS+"/"+PetContract.PATH_CHANGES, CHANGES);
     }
 
     /**
@@ -68,9 +239,29 @@ public class PetProvider extends ContentProvider {
         // Create and initialize a PetDbHelper object to gain access to the pets database.
         // The variable is a global variable, so it can be referenced from other ContentProvider methods.
         mDbHelper = new PetDbHelper(getContext());
+        mNotifier = new PetChangeNotifier(getContext().getContentResolver());
+        // Also purges tombstones a previous process left behind
+        mCompactor = new PetCompactor(mDbHelper);
+        mCompactor.schedule();
         return true;
     }
 
+    /**
+     * Dispatch pending notifications and close the database. Only called by tools that create
+     * their own provider instance, such as the benchmarks.
+     */
+    @Override
+    public void shutdown() {
+        mNotifier.quit();
+        mCompactor.quit();
+        synchronized (this) {
+            if (mStatements != null)
+                mStatements.close();
+            mStatements = null;
+        }
+        mDbHelper.close();
+    }
+
     /**
      * Perform the query for the given URI. Use the given projection, selection, selection arguments, and sort order.
      */
@@ -78,25 +269,91 @@ public class PetProvider extends ContentProvider {
     @Override
     public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection,
                         @Nullable String[] selectionArgs, @Nullable String sortOrder)
+    {
+        long start = System.nanoTime();
+        Cursor cursor = null;
+        mSlowLog.begin();
+        try {
+            cursor = queryUri(uri, projection, selection, selectionArgs, sortOrder);
+            return cursor;
+        } finally {
+            int slot = uriSlot(uri);
+            int rows = cursor == null ? 0 : knownCount(cursor);
+            mMetrics.record(PetMetrics.QUERY, slot, start, rows, cursor == null);
+            mSlowLog.end(PetMetrics.QUERY, slot, start, rows, mDbHelper);
+        }
+    }
+
+    /**
+     * Return the number of rows of a cursor held in memory, such as those of the snapshot and
+     * the row cache, or -1 for a SQLite cursor, whose count would run the query and fill its
+     * window here rather than when the caller reads it.
+     */
+    private static int knownCount(Cursor cursor) {
+        return cursor instanceof PetSnapshotCursor || cursor instanceof MatrixCursor ? cursor.getCount() : -1;
+    }
+
+    private Cursor queryUri(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder)
     {
 
         // Get readable database
         SQLiteDatabase db = mDbHelper.getReadableDatabase();
         // This cursor will hold the result of the query
         Cursor cursor;
+        SQLiteQueryBuilder builder;
 
         switch(sUriMatcher.match(uri)) {
             case PETS:
-                // Query the complete table
+                checkSelection(selection);
+                if (uri.getQueryParameter(PetContract.PetEntry.QUERY_PARAMETER_LIMIT) != null) {
+                    // Read one page of the matching rows
+                    cursor = queryPage(db, uri, projection, selection, selectionArgs);
+                    break;
+                }
+                checkSortOrder(sortOrder);
+                if (selection == null && isIdOrder(sortOrder) && PetSnapshot.containsAll(projection)) {
+                    // Every pet in _ID order can come straight from the snapshot
+                    PetSnapshot snapshot = snapshot(db);
+                    if (snapshot != null) {
+                        cursor = snapshot.toCursor(0, snapshot.size, projection);
+                        break;
+                    }
+                }
+                // Query the rows matching the selection, in the requested order
                 // The cursor could contain multiple rows
-                cursor = db.query(PetContract.PetEntry.TABLE_NAME, projection, null, null, null, null, null);
+                traceQuery(PetContract.PetEntry.VIEW_NAME, projection, selection, selectionArgs, sortOrder, null);
+                cursor = db.query(PetContract.PetEntry.VIEW_NAME, projection, selection, selectionArgs, null, null, sortOrder);
                 break;
             case PET_ID:
-                // Extract the ID from the uri and return that particular row
-                selection = PetContract.PetEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                cursor = db.query(PetContract.PetEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, null);
+                // Return the row whose ID is the last segment of the uri
+                cursor = queryPet(db, uri, projection);
+                break;
+            case SEARCH:
+                cursor = search(db, uri, projection);
                 break;
+            case COUNT:
+                builder = summaryQuery(COUNT_TABLE, COUNT_PROJECTION_MAP);
+                if (mSlowLog.isTracing())
+                    mSlowLog.trace(builder.buildQuery(projection, null, null, null, null, null), null);
+                cursor = builder.query(db, projection, null, null, null, null, null);
+                // Any pet change can change the count, so watch the whole pets URI
+                cursor.setNotificationUri(getContext().getContentResolver(), PetContract.PetEntry.CONTENT_URI);
+                return cursor;
+            case STATS:
+                checkSelection(selection, STATS_COLUMNS);
+                checkSortOrder(sortOrder, STATS_COLUMNS);
+                builder = summaryQuery(STATS_TABLE, STATS_PROJECTION_MAP);
+                if (sortOrder == null)
+                    sortOrder = PetContract.PetEntry.COLUMN_PET_BREED;
+                if (mSlowLog.isTracing())
+                    mSlowLog.trace(builder.buildQuery(projection, selection, null, null, sortOrder, null), selectionArgs);
+                cursor = builder.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+                cursor.setNotificationUri(getContext().getContentResolver(), PetContract.PetEntry.CONTENT_URI);
+                return cursor;
+            case CHANGES:
+                cursor = queryChanges(db, uri, projection);
+                cursor.setNotificationUri(getContext().getContentResolver(), PetContract.PetEntry.CONTENT_URI);
+                return cursor;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI" + uri);
         }
@@ -109,6 +366,416 @@ public class PetProvider extends ContentProvider {
         return cursor;
     }
 
+    /**
+     * Query one page of pets described by the paging parameters of the given URI. The page
+     * seeks past the sort key and _ID of the previous page's last row instead of using OFFSET,
+     * so SQLite never reads the rows of the pages before it.
+     */
+    private Cursor queryPage(SQLiteDatabase db, Uri uri, String[] projection,
+                             String selection, String[] selectionArgs) {
+        String limit = uri.getQueryParameter(PetContract.PetEntry.QUERY_PARAMETER_LIMIT);
+        try {
+            if (Integer.parseInt(limit) <= 0)
+                throw new IllegalArgumentException("Page limit must be positive " + uri);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid page limit " + uri);
+        }
+
+        String sortColumn = uri.getQueryParameter(PetContract.PetEntry.QUERY_PARAMETER_SORT);
+        if (sortColumn == null)
+            sortColumn = PetContract.PetEntry._ID;
+        if (!SORTABLE_COLUMNS.contains(sortColumn))
+            throw new IllegalArgumentException("Cannot sort pages by " + sortColumn);
+
+        String keySelection = null;
+        String[] keyArgs = null;
+        String afterId = uri.getQueryParameter(PetContract.PetEntry.QUERY_PARAMETER_AFTER_ID);
+        if (afterId != null) {
+            try {
+                afterId = String.valueOf(Long.parseLong(afterId));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid page start " + uri);
+            }
+            String afterKey = uri.getQueryParameter(PetContract.PetEntry.QUERY_PARAMETER_AFTER_KEY);
+            if (sortColumn.equals(PetContract.PetEntry._ID)) {
+                keySelection = PetContract.PetEntry._ID + ">?";
+                keyArgs = new String[]{afterId};
+            } else if (afterKey == null) {
+                // NULLs sort first, so after a NULL key come the remaining NULLs and then every
+                // non-NULL key
+                keySelection = "(" + sortColumn + " IS NOT NULL OR " + PetContract.PetEntry._ID + ">?)";
+                keyArgs = new String[]{afterId};
+            } else {
+                keySelection = "(" + sortColumn + ">? OR (" + sortColumn + "=? AND "
+                        + PetContract.PetEntry._ID + ">?))";
+                keyArgs = new String[]{afterKey, afterKey, afterId};
+            }
+        }
+
+        if (selection == null && sortColumn.equals(PetContract.PetEntry._ID) && PetSnapshot.containsAll(projection)) {
+            PetSnapshot snapshot = snapshot(db);
+            if (snapshot != null) {
+                int start = afterId == null ? 0 : snapshot.indexAfter(Long.parseLong(afterId));
+                return snapshot.toCursor(start, Integer.parseInt(limit), projection);
+            }
+        }
+
+        if (keySelection != null) {
+            selection = selection == null ? keySelection : "(" + selection + ") AND " + keySelection;
+            selectionArgs = selectionArgs == null ? keyArgs : concat(selectionArgs, keyArgs);
+        }
+
+        String orderBy = sortColumn.equals(PetContract.PetEntry._ID)
+                ? PetContract.PetEntry._ID
+                : sortColumn + ", " + PetContract.PetEntry._ID;
+        traceQuery(PetContract.PetEntry.VIEW_NAME, projection, selection, selectionArgs, orderBy, limit);
+        return db.query(PetContract.PetEntry.VIEW_NAME, projection, selection, selectionArgs,
+                null, null, orderBy, limit);
+    }
+
+    private static boolean isIdOrder(String sortOrder) {
+        if (sortOrder == null)
+            return true;
+        String order = sortOrder.trim();
+        return order.equalsIgnoreCase(PetContract.PetEntry._ID)
+                || order.equalsIgnoreCase(PetContract.PetEntry._ID + " ASC");
+    }
+
+    /**
+     * Return the snapshot of every pet, building it if needed, or null if there are too many
+     * pets to keep one.
+     */
+    private PetSnapshot snapshot(SQLiteDatabase db) {
+        long generation;
+        synchronized (mSnapshotLock) {
+            if (mSnapshot != null)
+                return mSnapshot;
+            generation = mSnapshotGeneration;
+        }
+
+        Cursor count = db.rawQuery("SELECT sum(" + PetContract.PetEntry.COLUMN_COUNT + ") FROM "
+                + PetContract.PetEntry.GENDER_COUNTS_TABLE_NAME, null);
+        try {
+            if (count.moveToFirst() && count.getLong(0) > PetSnapshot.MAX_ROWS)
+                return null;
+        } finally {
+            count.close();
+        }
+
+        PetSnapshot snapshot;
+        Cursor rows = db.query(PetContract.PetEntry.VIEW_NAME, PetSnapshot.COLUMNS, null, null,
+                null, null, PetContract.PetEntry._ID);
+        try {
+            snapshot = PetSnapshot.build(rows);
+        } finally {
+            rows.close();
+        }
+        synchronized (mSnapshotLock) {
+            if (generation == mSnapshotGeneration && mSnapshot == null)
+                mSnapshot = snapshot;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Re-read the given pets, once their changes are committed, into a new snapshot. The rows
+     * are read without holding the snapshot lock, so list queries are not held up; if another
+     * write moved the snapshot on meanwhile, they are read again, since they may be older than
+     * its rows.
+     */
+    private void patchSnapshot(Set<Long> changedIds) {
+        long[] ids = new long[changedIds.size()];
+        StringBuilder idList = new StringBuilder();
+        int i = 0;
+        for (long id : changedIds) {
+            ids[i++] = id;
+            idList.append(idList.length() == 0 ? "" : ",").append(id);
+        }
+        Arrays.sort(ids);
+
+        for (int attempt = 0; attempt < SNAPSHOT_PATCH_ATTEMPTS; attempt++) {
+            PetSnapshot snapshot;
+            long generation;
+            synchronized (mSnapshotLock) {
+                generation = ++mSnapshotGeneration;
+                snapshot = mSnapshot;
+            }
+            if (snapshot == null)
+                return;
+
+            Cursor rows = mDbHelper.getWritableDatabase().query(PetContract.PetEntry.VIEW_NAME,
+                    PetSnapshot.COLUMNS, PetContract.PetEntry._ID + " IN (" + idList + ")", null,
+                    null, null, PetContract.PetEntry._ID);
+            try {
+                // Fill the cursor window before taking the lock
+                rows.getCount();
+                synchronized (mSnapshotLock) {
+                    if (generation != mSnapshotGeneration || snapshot != mSnapshot)
+                        continue;
+                    mSnapshot = snapshot.patch(ids, rows);
+                    if (mSnapshot.size > PetSnapshot.MAX_ROWS)
+                        mSnapshot = null;
+                    return;
+                }
+            } finally {
+                rows.close();
+            }
+        }
+        invalidateSnapshot();
+    }
+
+    private void invalidateSnapshot() {
+        synchronized (mSnapshotLock) {
+            mSnapshotGeneration++;
+            mSnapshot = null;
+        }
+    }
+
+    /**
+     * Query the pet whose ID is the last segment of the uri, which the matcher has already
+     * checked is a number. Whole rows are served from and added to the row cache; projections
+     * with columns the cache does not hold go to the database.
+     */
+    private Cursor queryPet(SQLiteDatabase db, Uri uri, String[] projection) {
+        String[] idArgs = new String[]{uri.getLastPathSegment()};
+        if (!PetRowCache.containsAll(projection)) {
+            String sql = statements(db).selectByIdSql(projection);
+            if (mSlowLog.isTracing())
+                mSlowLog.trace(sql, idArgs);
+            return db.rawQuery(sql, idArgs);
+        }
+
+        long id = ContentUris.parseId(uri);
+        PetRowCache.Row row = mRowCache.get(id);
+        if (row == null) {
+            long generation = mRowCache.generation();
+            String sql = statements(db).selectByIdSql(PetRowCache.COLUMNS);
+            if (mSlowLog.isTracing())
+                mSlowLog.trace(sql, idArgs);
+            Cursor cursor = db.rawQuery(sql, idArgs);
+            try {
+                if (!cursor.moveToFirst())
+                    return new MatrixCursor(projection == null ? PetRowCache.COLUMNS : projection, 0);
+                row = PetRowCache.readRow(cursor);
+            } finally {
+                cursor.close();
+            }
+            mRowCache.put(id, row, generation);
+        }
+        return PetRowCache.toCursor(row, projection);
+    }
+
+    /**
+     * Return the changes after the sequence number given by the URI, or a single resync row if
+     * the changelog no longer holds all of them.
+     */
+    private Cursor queryChanges(SQLiteDatabase db, Uri uri, String[] projection) {
+        long since;
+        int limit = PetContract.PetEntry.CHANGES_MAX_ROWS;
+        try {
+            String value = uri.getQueryParameter(PetContract.PetEntry.QUERY_PARAMETER_SINCE);
+            since = value == null ? 0 : Long.parseLong(value);
+            value = uri.getQueryParameter(PetContract.PetEntry.QUERY_PARAMETER_LIMIT);
+            if (value != null)
+                limit = Math.min(limit, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid changes parameters " + uri);
+        }
+        if (since < 0 || limit <= 0)
+            throw new IllegalArgumentException("Invalid changes parameters " + uri);
+
+        SQLiteQueryBuilder builder = summaryQuery(CHANGES_TABLE, CHANGES_PROJECTION_MAP);
+        String[] args = {String.valueOf(since), String.valueOf(since)};
+        if (mSlowLog.isTracing()) {
+            mSlowLog.trace(builder.buildQuery(projection, CHANGES_SELECTION, null, null,
+                    PetContract.PetEntry.COLUMN_CHANGE_SEQ, String.valueOf(limit)), args);
+        }
+        Cursor cursor = builder.query(db, projection, CHANGES_SELECTION, args, null, null,
+                PetContract.PetEntry.COLUMN_CHANGE_SEQ, String.valueOf(limit));
+        // Filling the window now keeps every row from the snapshot the gap was checked in
+        if (cursor.getCount() > 0)
+            return cursor;
+
+        long truncatedThrough;
+        long last;
+        Cursor bounds = db.rawQuery(PetContract.PetEntry.SQL_SELECT_CHANGES_BOUNDS, null);
+        try {
+            bounds.moveToFirst();
+            truncatedThrough = bounds.getLong(0);
+            last = bounds.getLong(1);
+        } finally {
+            bounds.close();
+        }
+        if (since >= truncatedThrough)
+            return cursor;
+
+        cursor.close();
+        String[] columns = projection == null ? PetContract.PetEntry.CHANGES_COLUMNS : projection;
+        Object[] row = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equals(PetContract.PetEntry.COLUMN_CHANGE_SEQ))
+                row[i] = Math.max(last, truncatedThrough);
+            else if (columns[i].equals(PetContract.PetEntry.COLUMN_CHANGE_OP))
+                row[i] = PetContract.PetEntry.CHANGE_RESYNC;
+        }
+        MatrixCursor resync = new MatrixCursor(columns, 1);
+        resync.addRow(row);
+        return resync;
+    }
+
+    /**
+     * Search pet names and breeds through the full-text index. Every word of the search text is
+     * matched as a prefix, and pets with more matching words come first.
+     */
+    private Cursor search(SQLiteDatabase db, Uri uri, String[] projection) {
+        String text = uri.getQueryParameter(PetContract.PetEntry.QUERY_PARAMETER_SEARCH);
+        StringBuilder match = new StringBuilder();
+        if (text != null) {
+            for (String word : SEARCH_SEPARATOR.split(text.toLowerCase(Locale.US))) {
+                if (word.length() > 0)
+                    match.append(match.length() == 0 ? "" : " ").append(word).append('*');
+            }
+        }
+        if (projection == null)
+            projection = PetContract.PetEntry.FILTERABLE_COLUMNS;
+        if (match.length() == 0)
+            return new MatrixCursor(projection, 0);
+
+        StringBuilder sql = new StringBuilder("SELECT ");
+        for (int i = 0; i < projection.length; i++) {
+            if (!FILTERABLE_COLUMNS.contains(projection[i]))
+                throw new IllegalArgumentException("Cannot search for column " + projection[i]);
+            sql.append(i == 0 ? "" : ", ").append(PetContract.PetEntry.VIEW_NAME).append('.')
+                    .append(projection[i]).append(" AS ").append(projection[i]);
+        }
+        // offsets() lists four numbers per matching word, so its length ranks the matches
+        sql.append(" FROM ").append(PetContract.PetEntry.VIEW_NAME)
+                .append(" JOIN (SELECT docid, length(offsets(").append(PetContract.PetEntry.FTS_TABLE_NAME)
+                .append(")) AS rank FROM ").append(PetContract.PetEntry.FTS_TABLE_NAME)
+                .append(" WHERE ").append(PetContract.PetEntry.FTS_TABLE_NAME).append(" MATCH ?) AS matches ON ")
+                .append(PetContract.PetEntry.VIEW_NAME).append('.').append(PetContract.PetEntry._ID)
+                .append(" = matches.docid ORDER BY matches.rank DESC, ")
+                .append(PetContract.PetEntry.VIEW_NAME).append('.').append(PetContract.PetEntry.COLUMN_PET_NAME);
+
+        String limit = uri.getQueryParameter(PetContract.PetEntry.QUERY_PARAMETER_LIMIT);
+        if (limit != null) {
+            try {
+                sql.append(" LIMIT ").append(Integer.parseInt(limit));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid search limit " + uri);
+            }
+        }
+        String[] args = {match.toString()};
+        if (mSlowLog.isTracing())
+            mSlowLog.trace(sql.toString(), args);
+        return db.rawQuery(sql.toString(), args);
+    }
+
+    /**
+     * Report a query on the pets view to the slow log, if it is tracing this operation.
+     */
+    private void traceQuery(String table, String[] projection, String selection, String[] selectionArgs,
+                            String orderBy, String limit) {
+        if (mSlowLog.isTracing()) {
+            mSlowLog.trace(SQLiteQueryBuilder.buildQueryString(false, table, projection, selection,
+                    null, null, orderBy, limit), selectionArgs);
+        }
+    }
+
+    /**
+     * Report an update with the given values, or a soft delete if they are null, of the pets
+     * table rows matching the given selection to the slow log, if it is tracing this operation.
+     */
+    private void traceWrite(ContentValues values, String where, String[] whereArgs) {
+        if (!mSlowLog.isTracing())
+            return;
+        StringBuilder sql = new StringBuilder("UPDATE ").append(PetContract.PetEntry.TABLE_NAME);
+        if (values == null)
+            sql.append(" SET ").append(PetContract.PetEntry.COLUMN_DELETED).append("=1");
+        ArrayList<String> args = new ArrayList<>();
+        if (values != null) {
+            for (String key : values.keySet()) {
+                // The breed is written as its ID; the plan does not depend on the value
+                sql.append(args.isEmpty() ? " SET " : ", ")
+                        .append(key.equals(PetContract.PetEntry.COLUMN_PET_BREED) ? PetContract.PetEntry.COLUMN_BREED_ID : key)
+                        .append("=?");
+                args.add(values.getAsString(key));
+            }
+        }
+        if (where != null)
+            sql.append(" WHERE ").append(where);
+        if (whereArgs != null)
+            args.addAll(Arrays.asList(whereArgs));
+        mSlowLog.trace(sql.toString(), args.toArray(new String[args.size()]));
+    }
+
+    /**
+     * Return a query builder over one of the summary tables that rejects any column outside
+     * the given projection map.
+     */
+    private static SQLiteQueryBuilder summaryQuery(String table, Map<String, String> projectionMap) {
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(table);
+        builder.setProjectionMap(projectionMap);
+        builder.setStrict(true);
+        return builder;
+    }
+
+    private static Map<String, String> projectionMap(String... columns) {
+        Map<String, String> map = new LinkedHashMap<>();
+        for (String column : columns)
+            map.put(column, column);
+        return map;
+    }
+
+    private static String genderCount(int gender, String column) {
+        return "ifnull(sum(CASE " + PetContract.PetEntry.COLUMN_PET_GENDER + " WHEN " + gender + " THEN "
+                + PetContract.PetEntry.COLUMN_COUNT + " END), 0) AS " + column;
+    }
+
+    private static String[] concat(String[] first, String[] second) {
+        String[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    /**
+     * Check that the given selection only refers to filterable pet columns. String literals
+     * are skipped, and the only other words allowed are SQL operators.
+     */
+    private static void checkSelection(String selection) {
+        checkSelection(selection, FILTERABLE_COLUMNS);
+    }
+
+    private static void checkSelection(String selection, Set<String> columns) {
+        if (selection == null)
+            return;
+        Matcher matcher = IDENTIFIER.matcher(STRING_LITERAL.matcher(selection).replaceAll("''"));
+        while (matcher.find()) {
+            String word = matcher.group();
+            if (!columns.contains(word) && !SELECTION_KEYWORDS.contains(word.toUpperCase(Locale.US)))
+                throw new IllegalArgumentException("Cannot filter pets by " + word);
+        }
+    }
+
+    /**
+     * Check that every term of the given sort order is a sortable pet column, optionally
+     * followed by COLLATE NOCASE and a direction.
+     */
+    private static void checkSortOrder(String sortOrder) {
+        checkSortOrder(sortOrder, SORTABLE_COLUMNS);
+    }
+
+    private static void checkSortOrder(String sortOrder, Set<String> columns) {
+        if (sortOrder == null)
+            return;
+        for (String term : sortOrder.split(",")) {
+            Matcher matcher = SORT_TERM.matcher(term);
+            if (!matcher.matches() || !columns.contains(matcher.group(1)))
+                throw new IllegalArgumentException("Cannot sort pets by " + term.trim());
+        }
+    }
+
     /**
      * Returns the MIME type of data for the content URI.
      */
@@ -123,6 +790,16 @@ public class PetProvider extends ContentProvider {
                 return PetContract.PetEntry.CONTENT_LIST_TYPE;
             case PET_ID:
                 return PetContract.PetEntry.CONTENT_ITEM_TYPE;
+            case SEARCH:
+                return PetContract.PetEntry.CONTENT_LIST_TYPE;
+            case COUNT:
+                return PetContract.PetEntry.CONTENT_COUNT_TYPE;
+            case STATS:
+                return PetContract.PetEntry.CONTENT_STATS_TYPE;
+            case EXPORT:
+                return EXPORT_TYPES[0];
+            case CHANGES:
+                return PetContract.PetEntry.CONTENT_CHANGES_TYPE;
             default:
                 throw new IllegalArgumentException("Unknown Uri "+uri+" with match "+match);
         }
@@ -134,6 +811,18 @@ public class PetProvider extends ContentProvider {
     @Nullable
     @Override
     public Uri insert(@NonNull Uri uri, @Nullable ContentValues contentValues)
+    {
+        long start = System.nanoTime();
+        Uri newUri = null;
+        try {
+            newUri = insertUri(uri, contentValues);
+            return newUri;
+        } finally {
+            mMetrics.record(PetMetrics.INSERT, uriSlot(uri), start, newUri == null ? 0 : 1, newUri == null);
+        }
+    }
+
+    private Uri insertUri(Uri uri, ContentValues contentValues)
     {
         switch (sUriMatcher.match(uri))
         {
@@ -151,43 +840,93 @@ public class PetProvider extends ContentProvider {
     private Uri insertPet(Uri uri, ContentValues values)
     {
 
-        String name = values.getAsString(PetContract.PetEntry.COLUMN_PET_NAME);
-        if(name == null)
-            return null;
-
-        int gender = values.getAsInteger(PetContract.PetEntry.COLUMN_PET_GENDER);
-        if( !isValidGender(gender))
-            return null;
-
-        int weight;
-        try{
-            weight = values.getAsInteger(PetContract.PetEntry.COLUMN_PET_WEIGHT);
-        }catch (Exception e){
-            Log.e(LOG_TAG,"Please specify valid weight "+e);
+        String error = validatePet(values);
+        if(error != null)
+        {
+            Log.e(LOG_TAG,error+" for "+uri);
+            markRejected();
             return null;
         }
-        if(weight < 0 )
-            return null;
-
 
-        Log.e(LOG_TAG,"name : "+name+" gender : "+gender+" weight : "+weight);
         // Insert a new pet into the pets database table with the given ContentValues
         SQLiteDatabase db = mDbHelper.getWritableDatabase();
-        long id = db.insert(PetContract.PetEntry.TABLE_NAME, null, values);
+        long id = insertRow(db, values);
         if(id == -1)
         {
             Log.e(LOG_TAG,"Failed To insert row for "+uri);
             return null;
         }
 
-        // Notify all listeners that the data has changed for the pet content URI
-        getContext().getContentResolver().notifyChange(uri,null);
+        // Notify all listeners that the data has changed for the new pet's content URI
+        notifyItemChanged(id);
         // Once we know the ID of the new row in the table,
         // return the new URI with the ID appended to the end of it
         return ContentUris.withAppendedId(uri,id);
     }
 
-    private boolean isValidGender(int gender) {
+    /**
+     * Insert the row with a cached compiled statement when the values only hold pet columns,
+     * otherwise with a plain insert. Return the new row ID or -1.
+     */
+    private long insertRow(SQLiteDatabase db, ContentValues values) {
+        int mask = PetStatementCache.columnMask(values);
+        if (mask < 0)
+            return db.insert(PetContract.PetEntry.TABLE_NAME, null, statements(db).toTableValues(values));
+        return statements(db).insert(values, mask);
+    }
+
+    /**
+     * Turn a selection over the columns of the pets view, which may name the breed, into one
+     * that can update or delete rows of the pets table.
+     */
+    private static String tableSelection(String selection) {
+        if (selection == null)
+            return null;
+        return PetContract.PetEntry._ID + " IN (SELECT " + PetContract.PetEntry._ID + " FROM "
+                + PetContract.PetEntry.VIEW_NAME + " WHERE " + selection + ")";
+    }
+
+    /**
+     * Return the statement cache for the given database, replacing the cache if the helper has
+     * opened a new database object since it was built.
+     */
+    private PetStatementCache statements(SQLiteDatabase db) {
+        PetStatementCache statements = mStatements;
+        if (statements == null || !statements.isFor(db)) {
+            synchronized (this) {
+                statements = mStatements;
+                if (statements == null || !statements.isFor(db)) {
+                    if (statements != null)
+                        statements.close();
+                    statements = mStatements = new PetStatementCache(db);
+                }
+            }
+        }
+        return statements;
+    }
+
+    /**
+     * Check that the given values describe a valid new pet. Return null if they do, otherwise
+     * a description of the first problem found.
+     */
+    static String validatePet(ContentValues values) {
+        Integer gender = values.getAsInteger(PetContract.PetEntry.COLUMN_PET_GENDER);
+        Integer weight = values.getAsInteger(PetContract.PetEntry.COLUMN_PET_WEIGHT);
+        return validatePet(values.getAsString(PetContract.PetEntry.COLUMN_PET_NAME),
+                gender == null ? -1 : gender, weight == null ? -1 : weight);
+    }
+
+    static String validatePet(String name, int gender, int weight) {
+        if (name == null)
+            return "Pet requires a name";
+        if (!isValidGender(gender))
+            return "Pet requires valid gender";
+        if (weight < 0)
+            return "Pet requires valid weight";
+        return null;
+    }
+
+    static boolean isValidGender(int gender) {
         return gender == PetContract.PetEntry.GENDER_UNKNOWN ||
                 gender == PetContract.PetEntry.GENDER_MALE ||
                 gender == PetContract.PetEntry.GENDER_FEMALE;
@@ -198,21 +937,47 @@ public class PetProvider extends ContentProvider {
      */
     @Override
     public int delete(@NonNull Uri uri, @Nullable String selection, @Nullable String[] selectionArgs)
+    {
+        long start = System.nanoTime();
+        int rowsDeleted = -1;
+        mSlowLog.begin();
+        try {
+            rowsDeleted = deleteUri(uri, selection, selectionArgs);
+            return rowsDeleted;
+        } finally {
+            int slot = uriSlot(uri);
+            mMetrics.record(PetMetrics.DELETE, slot, start, rowsDeleted, rowsDeleted < 0);
+            mSlowLog.end(PetMetrics.DELETE, slot, start, rowsDeleted, mDbHelper);
+        }
+    }
+
+    private int deleteUri(Uri uri, String selection, String[] selectionArgs)
     {
         SQLiteDatabase db = mDbHelper.getWritableDatabase();
         // Track the number of rows that were deleted
         int rowsDeleted;
-        switch (sUriMatcher.match(uri))
+        int match = sUriMatcher.match(uri);
+        switch (match)
         {
             case PETS:
-                // Delete all rows that match the selection and selection args
-                rowsDeleted = db.delete(PetContract.PetEntry.TABLE_NAME,selection,selectionArgs);
+                // Turn all rows that match the selection and selection args into tombstones
+                checkSelection(selection);
+                if (selection == null) {
+                    rowsDeleted = deleteAll(db);
+                } else {
+                    traceWrite(null, tableSelection(selection), selectionArgs);
+                    ContentValues tombstone = new ContentValues();
+                    tombstone.put(PetContract.PetEntry.COLUMN_DELETED, 1);
+                    rowsDeleted = db.update(PetContract.PetEntry.TABLE_NAME, tombstone, tableSelection(selection), selectionArgs);
+                }
+                mRowCache.invalidateAll();
                 break;
             case PET_ID:
-                // Delete a single row given by the ID in the URI
-                selection = PetContract.PetEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                rowsDeleted = db.delete(PetContract.PetEntry.TABLE_NAME,selection,selectionArgs);
+                // Turn a single row given by the ID in the URI into a tombstone
+                long id = ContentUris.parseId(uri);
+                traceWrite(null, PetContract.PetEntry._ID + "=?", new String[]{String.valueOf(id)});
+                rowsDeleted = statements(db).deleteById(id);
+                mRowCache.invalidate(id);
                 break;
             default:
                 throw new IllegalArgumentException("Cannot delete, unknown URI" + uri);
@@ -220,46 +985,121 @@ public class PetProvider extends ContentProvider {
 
         // If 1 or more rows were deleted, then notify all listeners that the data at the
         // given URI has changed
-        if(rowsDeleted != 0)
-            getContext().getContentResolver().notifyChange(uri,null);
+        if(rowsDeleted != 0) {
+            if (match == PET_ID)
+                notifyItemChanged(ContentUris.parseId(uri));
+            else
+                notifyCollectionChanged();
+        }
 
         return rowsDeleted;
     }
 
+    /**
+     * Delete every pet in constant time, by marking every _ID handed out so far as deleted and
+     * clearing the summaries the triggers would otherwise update pet by pet, unless pets have
+     * been synced. Return the number of pets deleted.
+     */
+    private int deleteAll(SQLiteDatabase db) {
+        if (mSlowLog.isTracing())
+            mSlowLog.trace(PetContract.PetEntry.SQL_SOFT_DELETE_ALL, null);
+        db.beginTransactionNonExclusive();
+        try {
+            int count = (int) DatabaseUtils.longForQuery(db, PetContract.PetEntry.SQL_COUNT_LIVE, null);
+            if (count > 0 && DatabaseUtils.longForQuery(db, PetContract.PetEntry.SQL_SELECT_SYNC_PUSHED, null) >= 0) {
+                // Once pets are synced the server must hear of every deletion, so each pet
+                // becomes a tombstone of its own that the sync triggers mark
+                ContentValues tombstone = new ContentValues();
+                tombstone.put(PetContract.PetEntry.COLUMN_DELETED, 1);
+                db.update(PetContract.PetEntry.TABLE_NAME, tombstone, PetContract.PetEntry.SQL_LIVE, null);
+            } else if (count > 0) {
+                db.execSQL(PetContract.PetEntry.SQL_SOFT_DELETE_ALL);
+                db.execSQL(PetContract.PetEntry.SQL_CLEAR_GENDER_COUNTS);
+                db.execSQL(PetContract.PetEntry.SQL_CLEAR_BREED_STATS);
+            }
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     /**
      * Updates the data at the given selection and selection arguments, with the new ContentValues.
      */
     @Override
     public int update(@NonNull Uri uri, @Nullable ContentValues contentValues, @Nullable String selection,
                       @Nullable String[] selectionArgs)
+    {
+        long start = System.nanoTime();
+        int count = -1;
+        mSlowLog.begin();
+        try {
+            count = updateUri(uri, contentValues, selection, selectionArgs);
+            return count;
+        } finally {
+            int slot = uriSlot(uri);
+            mMetrics.record(PetMetrics.UPDATE, slot, start, count, count < 0);
+            mSlowLog.end(PetMetrics.UPDATE, slot, start, count, mDbHelper);
+        }
+    }
+
+    private int updateUri(Uri uri, ContentValues contentValues, String selection, String[] selectionArgs)
     {
         switch (sUriMatcher.match(uri))
         {
             case PETS:
-                return updatePets(uri,contentValues,selection,selectionArgs);
+                checkSelection(selection);
+                if (uri.getQueryParameter(PetContract.PetEntry.QUERY_PARAMETER_EXPECTED_VERSION) != null)
+                    throw new IllegalArgumentException("Only single pets can be updated conditionally " + uri);
+                return updatePets(uri,contentValues,selection,selectionArgs,-1,-1);
             case PET_ID:
                 // For the PET_ID code, extract out the ID from the URI,
-                // so we know which row to update. Selection will be "_id=?" and selection
-                // arguments will be a String array containing the actual ID.
-                selection = PetContract.PetEntry._ID + "=?";
-                selectionArgs = new String[] {String.valueOf(ContentUris.parseId(uri))};
-                return updatePets(uri,contentValues,selection,selectionArgs);
+                // so we know which row to update. The caller's selection is ignored.
+                return updatePets(uri,contentValues,null,null,ContentUris.parseId(uri),expectedVersion(uri));
             default:
                 throw new IllegalArgumentException("Cannot update, unknown URI" + uri);
         }
     }
 
+    /**
+     * Return the version the URI expects the pet to have, or -1 if it expects none.
+     */
+    private static long expectedVersion(Uri uri) {
+        String version = uri.getQueryParameter(PetContract.PetEntry.QUERY_PARAMETER_EXPECTED_VERSION);
+        if (version == null)
+            return -1;
+        try {
+            long expected = Long.parseLong(version);
+            if (expected >= 0)
+                return expected;
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid expected version " + uri);
+    }
+
     /**
      * Update pets in the database with the given content values. Apply the changes to the rows
-     * specified in the selection and selection arguments (which could be 0 or 1 or more pets).
-     * Return the number of rows that were successfully updated.
+     * specified in the selection and selection arguments (which could be 0 or 1 or more pets),
+     * or to the single pet with the given ID when it is not negative.
+     * Return the number of rows that were successfully updated. With an expected version the
+     * pet is only updated if it still has that version, checked in the same statement, so
+     * concurrent writers need no lock; a pet at another version throws a PetConflictException.
      */
-    private int updatePets(Uri uri,ContentValues contentValues, String selection, String[] selectionArgs) {
+    private int updatePets(Uri uri,ContentValues contentValues, String selection, String[] selectionArgs,
+                           long id, long expectedVersion) {
+        if (contentValues.containsKey(PetContract.PetEntry.COLUMN_PET_VERSION)) {
+            markRejected();
+            throw new IllegalArgumentException("Pet version cannot be set");
+        }
+
         // If the {@link PetEntry#COLUMN_PET_NAME} key is present,
         // check that the name value is not null.
         if (contentValues.containsKey(PetContract.PetEntry.COLUMN_PET_NAME)) {
             String name = contentValues.getAsString(PetContract.PetEntry.COLUMN_PET_NAME);
             if (name == null) {
+                markRejected();
                 throw new IllegalArgumentException("Pet requires a name");
             }
         }
@@ -268,7 +1108,8 @@ public class PetProvider extends ContentProvider {
         // check that the gender value is valid.
         if (contentValues.containsKey(PetContract.PetEntry.COLUMN_PET_GENDER)) {
             Integer gender = contentValues.getAsInteger(PetContract.PetEntry.COLUMN_PET_GENDER);
-            if ( !isValidGender(gender)) {
+            if (gender == null || !isValidGender(gender)) {
+                markRejected();
                 throw new IllegalArgumentException("Pet requires valid gender");
             }
         }
@@ -279,14 +1120,18 @@ public class PetProvider extends ContentProvider {
             // Check that the weight is greater than or equal to 0 kg
             Integer weight = contentValues.getAsInteger(PetContract.PetEntry.COLUMN_PET_WEIGHT);
             if (weight != null && weight < 0) {
+                markRejected();
                 throw new IllegalArgumentException("Pet requires valid weight");
             }
         }
 
         // No need to check the breed, any value is valid (including null).
 
-        // If there are no values to update, then don't try to update the database
+        // If there are no values to update, then don't try to update the database, but tell a
+        // caller with a stale version about the conflict all the same
         if (contentValues.size() == 0) {
+            if (expectedVersion >= 0)
+                checkVersion(mDbHelper.getReadableDatabase(), id, expectedVersion);
             return 0;
         }
 
@@ -294,10 +1139,669 @@ public class PetProvider extends ContentProvider {
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
         // Returns the number of database rows affected by the update statement
-        int count = database.update(PetContract.PetEntry.TABLE_NAME, contentValues, selection, selectionArgs);
-        if(count != 0)
-            getContext().getContentResolver().notifyChange(uri,null);
+        int count;
+        int mask = PetStatementCache.columnMask(contentValues);
+        if (expectedVersion >= 0)
+            traceWrite(contentValues, PetContract.PetEntry._ID + "=? AND " + PetContract.PetEntry.COLUMN_PET_VERSION + "=?",
+                    new String[]{String.valueOf(id), String.valueOf(expectedVersion)});
+        else if (id >= 0)
+            traceWrite(contentValues, PetContract.PetEntry._ID + "=?", new String[]{String.valueOf(id)});
+        else
+            traceWrite(contentValues, tableSelection(selection), selectionArgs);
+        if (expectedVersion >= 0)
+            count = database.update(PetContract.PetEntry.TABLE_NAME, statements(database).toTableValues(contentValues),
+                    PetContract.PetEntry._ID + "=? AND " + PetContract.PetEntry.COLUMN_PET_VERSION + "=? AND "
+                            + PetContract.PetEntry.SQL_LIVE,
+                    new String[]{String.valueOf(id), String.valueOf(expectedVersion)});
+        else if (id >= 0 && mask >= 0)
+            count = statements(database).updateById(id, contentValues, mask);
+        else if (id >= 0)
+            count = database.update(PetContract.PetEntry.TABLE_NAME, statements(database).toTableValues(contentValues),
+                    PetContract.PetEntry._ID + "=? AND " + PetContract.PetEntry.SQL_LIVE, new String[]{String.valueOf(id)});
+        else
+            count = database.update(PetContract.PetEntry.TABLE_NAME, statements(database).toTableValues(contentValues),
+                    tableSelection(selection), selectionArgs);
+
+        if (id >= 0)
+            mRowCache.invalidate(id);
+        else
+            mRowCache.invalidateAll();
+        if(count != 0) {
+            if (id >= 0)
+                notifyItemChanged(id);
+            else
+                notifyCollectionChanged();
+        } else if (expectedVersion >= 0) {
+            checkVersion(database, id, expectedVersion);
+        }
         return count;
     }
 
+    /**
+     * Throw a {@link PetConflictException} if the pet with the given ID exists at another
+     * version. A pet that is gone updates nothing as usual.
+     */
+    private static void checkVersion(SQLiteDatabase db, long id, long expectedVersion) {
+        Cursor cursor = db.rawQuery(PetContract.PetEntry.SQL_SELECT_VERSION, new String[]{String.valueOf(id)});
+        try {
+            if (cursor.moveToFirst() && cursor.getLong(0) != expectedVersion)
+                throw new PetConflictException(id, expectedVersion, cursor.getLong(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Insert all the given pets in one transaction. Rows that fail validation are logged and
+     * skipped without aborting the rest of the batch. Return the number of rows inserted.
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values)
+    {
+        long start = System.nanoTime();
+        int inserted = -1;
+        try {
+            inserted = bulkInsertUri(uri, values);
+            return inserted;
+        } finally {
+            mMetrics.record(PetMetrics.BULK_INSERT, uriSlot(uri), start, inserted, inserted < 0);
+        }
+    }
+
+    private int bulkInsertUri(Uri uri, ContentValues[] values)
+    {
+        if (sUriMatcher.match(uri) != PETS)
+            throw new IllegalArgumentException("Cannot insert, unknown URI" + uri);
+
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        Batch batch = beginBatch(db);
+        int inserted = 0;
+        try {
+            for (int i = 0; i < values.length; i++) {
+                if (insertPet(uri, values[i]) != null)
+                    inserted++;
+                else
+                    Log.w(LOG_TAG, "Row " + i + " of bulk insert was not inserted");
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            endBatch(db, batch);
+        }
+        return inserted;
+    }
+
+    /**
+     * Apply all the given operations in one transaction. An operation whose values fail
+     * validation gets a result with a count of 0 instead of aborting the batch; any other
+     * failure rolls back the whole batch.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException
+    {
+        // Each operation is also recorded on its own URI
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            ContentProviderResult[] results = applyOperations(operations);
+            failed = false;
+            return results;
+        } finally {
+            mMetrics.record(PetMetrics.APPLY_BATCH, -1, start, operations.size(), failed);
+        }
+    }
+
+    private ContentProviderResult[] applyOperations(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException
+    {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        Batch batch = beginBatch(db);
+        try {
+            ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+            for (int i = 0; i < results.length; i++) {
+                batch.rejected = false;
+                try {
+                    results[i] = operations.get(i).apply(this, results, i);
+                } catch (OperationApplicationException | IllegalArgumentException e) {
+                    if (!batch.rejected)
+                        throw e;
+                    Log.w(LOG_TAG, "Operation " + i + " of batch rejected: " + e.getMessage());
+                    results[i] = new ContentProviderResult(0);
+                }
+            }
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            endBatch(db, batch);
+        }
+    }
+
+    /**
+     * Start a batch on the current thread, or join the one already running.
+     */
+    private Batch beginBatch(SQLiteDatabase db) {
+        // Readers on other connections can carry on while a write-ahead logged batch runs
+        db.beginTransactionNonExclusive();
+        Batch batch = mBatch.get();
+        if (batch == null) {
+            batch = new Batch();
+            mBatch.set(batch);
+        }
+        batch.depth++;
+        return batch;
+    }
+
+    /**
+     * End the transaction of the given batch. When the outermost batch ends, dispatch the
+     * notifications for everything it changed at once.
+     */
+    private void endBatch(SQLiteDatabase db, Batch batch) {
+        db.endTransaction();
+        if (--batch.depth > 0)
+            return;
+
+        mBatch.remove();
+        if (batch.collectionChanged || !batch.changedIds.isEmpty()) {
+            // Rows read while the batch was uncommitted may have been cached with old values
+            mRowCache.invalidateAll();
+            if (batch.collectionChanged) {
+                invalidateSnapshot();
+                mNotifier.collectionChanged();
+            } else {
+                patchSnapshot(batch.changedIds);
+                for (long id : batch.changedIds)
+                    mNotifier.itemChanged(id);
+            }
+            mNotifier.flush();
+            mCompactor.schedule();
+        }
+    }
+
+    /**
+     * Return the stream types of the export URI that match the filter.
+     */
+    @Nullable
+    @Override
+    public String[] getStreamTypes(@NonNull Uri uri, @NonNull String mimeTypeFilter)
+    {
+        if (sUriMatcher.match(uri) != EXPORT)
+            return null;
+        ArrayList<String> types = new ArrayList<>();
+        for (String type : EXPORT_TYPES) {
+            if (ClipDescription.compareMimeTypes(type, mimeTypeFilter))
+                types.add(type);
+        }
+        return types.isEmpty() ? null : types.toArray(new String[types.size()]);
+    }
+
+    /**
+     * Stream the export URI in the first of its types that matches the filter.
+     */
+    @Nullable
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(@NonNull Uri uri, @NonNull String mimeTypeFilter,
+                                                  @Nullable Bundle opts) throws FileNotFoundException
+    {
+        if (sUriMatcher.match(uri) != EXPORT)
+            return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+        String[] types = getStreamTypes(uri, mimeTypeFilter);
+        if (types == null)
+            throw new FileNotFoundException("Cannot export pets as " + mimeTypeFilter);
+        return new AssetFileDescriptor(openExport(uri, types[0], opts), 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+    }
+
+    /**
+     * Stream the export URI as CSV.
+     */
+    @Nullable
+    @Override
+    public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode) throws FileNotFoundException
+    {
+        if (sUriMatcher.match(uri) != EXPORT)
+            throw new FileNotFoundException("Cannot open " + uri);
+        if (!"r".equals(mode))
+            throw new FileNotFoundException("Pets can only be exported for reading, not " + mode);
+        return openExport(uri, EXPORT_TYPES[0], null);
+    }
+
+    private ParcelFileDescriptor openExport(Uri uri, String mimeType, Bundle opts) throws FileNotFoundException {
+        // Only opening the pipe is timed; the export itself runs on the pipe's thread
+        long start = System.nanoTime();
+        ParcelFileDescriptor pipe = null;
+        try {
+            pipe = openPipeHelper(uri, mimeType, opts, mimeType, new PetExporter(mDbHelper));
+            return pipe;
+        } finally {
+            mMetrics.record(PetMetrics.OPEN_FILE, EXPORT - PETS, start, 0, pipe == null);
+        }
+    }
+
+    /**
+     * Answer the provider methods listed in {@link PetContract}.
+     */
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras)
+    {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Bundle result = callMethod(method, arg, extras);
+            failed = false;
+            return result;
+        } finally {
+            mMetrics.record(PetMetrics.CALL, -1, start, 0, failed);
+        }
+    }
+
+    private Bundle callMethod(String method, String arg, Bundle extras)
+    {
+        switch (method)
+        {
+            case PetContract.METHOD_CONFIGURE_ROW_CACHE:
+                if (extras == null)
+                    throw new IllegalArgumentException("Missing row cache configuration");
+                mRowCache.configure(extras.getInt(PetContract.EXTRA_MAX_BYTES, PetRowCache.DEFAULT_MAX_BYTES),
+                        extras.getBoolean(PetContract.EXTRA_RECORD_STATS, true));
+                return null;
+            case PetContract.METHOD_CACHE_STATS:
+                return cacheStats();
+            case PetContract.METHOD_WRITE_PACKED:
+                byte[] packed = extras == null ? null : extras.getByteArray(PetContract.EXTRA_PACKED);
+                if (packed == null)
+                    throw new IllegalArgumentException("Missing packed pets");
+                return writePacked(packed);
+            case PetContract.METHOD_QUERY_PACKED:
+                return queryPacked(extras);
+            case PetContract.METHOD_CONFIGURE_SLOW_LOG:
+                if (extras == null || !extras.containsKey(PetContract.EXTRA_THRESHOLD_MILLIS))
+                    throw new IllegalArgumentException("Missing slow log threshold");
+                mSlowLog.configure(extras.getLong(PetContract.EXTRA_THRESHOLD_MILLIS));
+                return null;
+            case PetContract.METHOD_SLOW_LOG:
+                Bundle log = new Bundle();
+                log.putParcelableArrayList(PetContract.EXTRA_ENTRIES,
+                        mSlowLog.entries(extras != null && extras.getBoolean(PetContract.EXTRA_RESET)));
+                return log;
+            case PetContract.METHOD_DATA_GENERATION:
+                Bundle generation = new Bundle();
+                generation.putLong(PetContract.EXTRA_GENERATION, DatabaseUtils.longForQuery(
+                        mDbHelper.getReadableDatabase(), PetContract.PetEntry.SQL_SELECT_GENERATION, null));
+                return generation;
+            case PetContract.METHOD_COMPACT:
+                return mCompactor.compactNow();
+            case PetContract.METHOD_SYNC_PENDING:
+                return syncPending(extras);
+            case PetContract.METHOD_SYNC_APPLY:
+                if (extras == null || !extras.containsKey(PetContract.EXTRA_SYNC_SEQ)
+                        || !extras.containsKey(PetContract.EXTRA_SYNC_PULLED))
+                    throw new IllegalArgumentException("Missing sync position");
+                return syncApply(extras);
+            case PetContract.METHOD_METRICS:
+                Bundle metrics = mMetrics.snapshot();
+                if (extras != null && extras.getBoolean(PetContract.EXTRA_RESET))
+                    mMetrics.reset();
+                return metrics;
+            case PetContract.METHOD_IMPORT_CHUNK:
+                if (arg == null || extras == null)
+                    throw new IllegalArgumentException("Missing import chunk");
+                return importChunk(arg, extras);
+            case PetContract.METHOD_IMPORT_PROGRESS:
+                if (arg == null)
+                    throw new IllegalArgumentException("Missing import source");
+                return importProgress(arg);
+            case PetContract.METHOD_FINISH_IMPORT:
+                if (arg == null)
+                    throw new IllegalArgumentException("Missing import source");
+                mDbHelper.getWritableDatabase().delete(PetContract.PetEntry.IMPORT_PROGRESS_TABLE_NAME,
+                        PetContract.PetEntry.COLUMN_IMPORT_SOURCE + "=?", new String[]{arg});
+                return null;
+            default:
+                return super.call(method, arg, extras);
+        }
+    }
+
+    /**
+     * Insert or replace the packed pets in one transaction with the cached statements. Invalid
+     * records are skipped; a malformed array rolls back the whole batch.
+     */
+    private Bundle writePacked(byte[] packed) {
+        PetPacker.Reader reader = new PetPacker.Reader(packed);
+        long[] ids = new long[reader.count()];
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        PetStatementCache statements = statements(db);
+        Batch batch = beginBatch(db);
+        try {
+            for (int i = 0; reader.next(); i++) {
+                String error = validatePet(reader.name(), reader.gender(), reader.weight());
+                if (error != null) {
+                    Log.w(LOG_TAG, error + " in packed record " + i);
+                    ids[i] = -1;
+                } else if (reader.id() == 0) {
+                    ids[i] = statements.insert(reader.name(), reader.breed(), reader.gender(), reader.weight());
+                } else {
+                    int updated = statements.updateById(reader.id(), reader.name(), reader.breed(),
+                            reader.gender(), reader.weight());
+                    ids[i] = updated > 0 ? reader.id() : -1;
+                }
+                if (ids[i] > 0)
+                    notifyItemChanged(ids[i]);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            endBatch(db, batch);
+        }
+        Bundle result = new Bundle();
+        result.putLongArray(PetContract.EXTRA_IDS, ids);
+        return result;
+    }
+
+    /**
+     * Pack one page of pets in _ID order, from the snapshot when there is one.
+     */
+    private Bundle queryPacked(Bundle extras) {
+        long afterId = extras == null ? 0 : extras.getLong(PetContract.EXTRA_AFTER_ID);
+        int limit = extras == null ? PetContract.PACKED_QUERY_MAX_ROWS
+                : extras.getInt(PetContract.EXTRA_LIMIT, PetContract.PACKED_QUERY_MAX_ROWS);
+        if (limit <= 0 || limit > PetContract.PACKED_QUERY_MAX_ROWS)
+            throw new IllegalArgumentException("Invalid packed query limit " + limit);
+
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        PetPacker.Writer writer = new PetPacker.Writer(Math.min(limit, 256) * 48);
+        PetSnapshot snapshot = snapshot(db);
+        if (snapshot != null) {
+            int start = snapshot.indexAfter(afterId);
+            int end = Math.min(snapshot.size, start + limit);
+            for (int i = start; i < end; ) {
+                int index = snapshot.chunkOf(i);
+                PetSnapshot.Chunk chunk = snapshot.chunk(index);
+                int first = snapshot.startOf(index);
+                for (; i < end && i - first < chunk.size; i++) {
+                    int row = i - first;
+                    writer.add(chunk.ids[row], chunk.names[row], chunk.breeds[row], chunk.genders[row], chunk.weights[row]);
+                }
+            }
+        } else {
+            Cursor cursor = db.rawQuery(PACKED_PAGE_SQL, new String[]{String.valueOf(afterId), String.valueOf(limit)});
+            try {
+                while (cursor.moveToNext())
+                    writer.add(cursor.getLong(0), cursor.getString(1), cursor.getString(2), cursor.getInt(3), cursor.getInt(4));
+            } finally {
+                cursor.close();
+            }
+        }
+        Bundle result = new Bundle();
+        result.putByteArray(PetContract.EXTRA_PACKED, writer.toByteArray());
+        return result;
+    }
+
+    /**
+     * Read the pets changed on this device after the given sync sequence number, in the order
+     * they changed, with the sync state the server needs.
+     */
+    private Bundle syncPending(Bundle extras) {
+        int limit = extras == null ? PetContract.SYNC_MAX_ROWS
+                : extras.getInt(PetContract.EXTRA_LIMIT, PetContract.SYNC_MAX_ROWS);
+        if (limit <= 0 || limit > PetContract.SYNC_MAX_ROWS)
+            throw new IllegalArgumentException("Invalid sync limit " + limit);
+
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        Bundle result = new Bundle();
+        long after;
+        Cursor cursor = db.rawQuery(PetContract.PetEntry.SQL_SELECT_SYNC_STATE, null);
+        try {
+            cursor.moveToFirst();
+            result.putString(PetContract.EXTRA_DEVICE, cursor.getString(0));
+            result.putLong(PetContract.EXTRA_SYNC_PULLED, cursor.getLong(2));
+            after = extras != null && extras.containsKey(PetContract.EXTRA_SYNC_SEQ)
+                    ? extras.getLong(PetContract.EXTRA_SYNC_SEQ) : cursor.getLong(1);
+        } finally {
+            cursor.close();
+        }
+
+        cursor = db.rawQuery(PetContract.PetEntry.SQL_SELECT_SYNC_PENDING,
+                new String[]{String.valueOf(after), String.valueOf(limit)});
+        try {
+            ContentValues[] rows = new ContentValues[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ContentValues row = rows[i] = new ContentValues();
+                row.put(PetContract.PetEntry.COLUMN_UUID, cursor.getString(0));
+                if (cursor.getInt(5) != 0) {
+                    row.put(PetContract.PetEntry.COLUMN_DELETED, true);
+                } else {
+                    row.put(PetContract.PetEntry.COLUMN_PET_NAME, cursor.getString(1));
+                    row.put(PetContract.PetEntry.COLUMN_PET_BREED, cursor.getString(2));
+                    row.put(PetContract.PetEntry.COLUMN_PET_GENDER, cursor.getInt(3));
+                    row.put(PetContract.PetEntry.COLUMN_PET_WEIGHT, cursor.getInt(4));
+                }
+                after = cursor.getLong(6);
+            }
+            result.putParcelableArray(PetContract.EXTRA_ROWS, rows);
+            result.putLong(PetContract.EXTRA_SYNC_SEQ, after);
+            return result;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Apply the changes of the sync server and record the sync position, in one transaction
+     * that the sync triggers ignore. Changes to pets that changed here since the server
+     * acknowledged this device's changes, and invalid pets, are counted as rejected.
+     */
+    private Bundle syncApply(Bundle extras) {
+        Parcelable[] rows = extras.getParcelableArray(PetContract.EXTRA_ROWS);
+        if (rows == null)
+            throw new IllegalArgumentException("Missing sync rows");
+        long pushed = extras.getLong(PetContract.EXTRA_SYNC_SEQ);
+
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        PetStatementCache statements = statements(db);
+        Batch batch = beginBatch(db);
+        long applied = 0;
+        try {
+            db.execSQL(PetContract.PetEntry.SQL_BEGIN_REMOTE);
+            for (Parcelable row : rows) {
+                if (applyRemote(db, statements, (ContentValues) row, pushed))
+                    applied++;
+            }
+            db.execSQL(PetContract.PetEntry.SQL_END_REMOTE,
+                    new Object[]{pushed, extras.getLong(PetContract.EXTRA_SYNC_PULLED)});
+            if (applied > 0)
+                notifyCollectionChanged();
+            db.setTransactionSuccessful();
+        } finally {
+            endBatch(db, batch);
+        }
+
+        Bundle result = new Bundle();
+        result.putLong(PetContract.EXTRA_IMPORTED, applied);
+        result.putLong(PetContract.EXTRA_REJECTED, rows.length - applied);
+        return result;
+    }
+
+    /**
+     * Apply one change from the sync server, found by its uuid: delete, revive and update, or
+     * insert the pet. Return false if the pet has a change here the server has not seen yet,
+     * which wins, or the change is invalid.
+     */
+    private boolean applyRemote(SQLiteDatabase db, PetStatementCache statements, ContentValues row, long pushed) {
+        String uuid = row.getAsString(PetContract.PetEntry.COLUMN_UUID);
+        if (uuid == null)
+            throw new IllegalArgumentException("Sync row requires a uuid");
+        long id = 0;
+        Cursor cursor = db.rawQuery(PetContract.PetEntry.SQL_SELECT_BY_UUID, new String[]{uuid});
+        try {
+            if (cursor.moveToFirst()) {
+                if (cursor.getLong(1) > pushed)
+                    return false;
+                id = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (Boolean.TRUE.equals(row.getAsBoolean(PetContract.PetEntry.COLUMN_DELETED))) {
+            if (id != 0)
+                statements.deleteById(id);
+            return true;
+        }
+        String error = validatePet(row);
+        if (error != null) {
+            Log.w(LOG_TAG, error + " in sync row " + uuid);
+            return false;
+        }
+        ContentValues values = statements.toTableValues(row);
+        if (id == 0)
+            return db.insert(PetContract.PetEntry.TABLE_NAME, null, values) != -1;
+        values.remove(PetContract.PetEntry.COLUMN_UUID);
+        values.put(PetContract.PetEntry.COLUMN_DELETED, 0);
+        db.update(PetContract.PetEntry.TABLE_NAME, values, PetContract.PetEntry._ID + "=?",
+                new String[]{String.valueOf(id)});
+        return true;
+    }
+
+    /**
+     * Write the provider metrics, for "adb shell dumpsys activity provider PetProvider".
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args)
+    {
+        mMetrics.dump(writer);
+    }
+
+    /**
+     * Return the metrics slot of the given URI, which is past the named slots for URIs that
+     * do not match.
+     */
+    private static int uriSlot(Uri uri) {
+        return sUriMatcher.match(uri) - PETS;
+    }
+
+    /**
+     * Insert the pets of one import chunk and move the import's progress past it in the same
+     * transaction, so a chunk is either fully imported and recorded or not at all. Pets that
+     * fail validation are counted as rejected.
+     */
+    private Bundle importChunk(String source, Bundle extras) {
+        Parcelable[] rows = extras.getParcelableArray(PetContract.EXTRA_ROWS);
+        if (rows == null)
+            throw new IllegalArgumentException("Missing import rows");
+        long rejected = extras.getLong(PetContract.EXTRA_REJECTED);
+
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        Batch batch = beginBatch(db);
+        long imported = 0;
+        try {
+            for (Parcelable row : rows) {
+                if (insertPet(PetContract.PetEntry.CONTENT_URI, (ContentValues) row) != null)
+                    imported++;
+                else
+                    rejected++;
+            }
+
+            ContentValues progress = new ContentValues();
+            progress.put(PetContract.PetEntry.COLUMN_IMPORT_SOURCE, source);
+            progress.put(PetContract.PetEntry.COLUMN_IMPORT_POSITION, 0);
+            progress.put(PetContract.PetEntry.COLUMN_IMPORT_IMPORTED, 0);
+            progress.put(PetContract.PetEntry.COLUMN_IMPORT_REJECTED, 0);
+            db.insertWithOnConflict(PetContract.PetEntry.IMPORT_PROGRESS_TABLE_NAME, null, progress,
+                    SQLiteDatabase.CONFLICT_IGNORE);
+            db.execSQL("UPDATE " + PetContract.PetEntry.IMPORT_PROGRESS_TABLE_NAME + " SET "
+                    + PetContract.PetEntry.COLUMN_IMPORT_POSITION + "=?, "
+                    + PetContract.PetEntry.COLUMN_IMPORT_IMPORTED + "=" + PetContract.PetEntry.COLUMN_IMPORT_IMPORTED + "+?, "
+                    + PetContract.PetEntry.COLUMN_IMPORT_REJECTED + "=" + PetContract.PetEntry.COLUMN_IMPORT_REJECTED + "+? WHERE "
+                    + PetContract.PetEntry.COLUMN_IMPORT_SOURCE + "=?",
+                    new Object[]{extras.getLong(PetContract.EXTRA_POSITION), imported, rejected, source});
+            db.setTransactionSuccessful();
+        } finally {
+            endBatch(db, batch);
+        }
+
+        Bundle result = new Bundle();
+        result.putLong(PetContract.EXTRA_IMPORTED, imported);
+        result.putLong(PetContract.EXTRA_REJECTED, rejected);
+        return result;
+    }
+
+    private Bundle importProgress(String source) {
+        Cursor cursor = mDbHelper.getReadableDatabase().query(PetContract.PetEntry.IMPORT_PROGRESS_TABLE_NAME,
+                new String[]{PetContract.PetEntry.COLUMN_IMPORT_POSITION, PetContract.PetEntry.COLUMN_IMPORT_IMPORTED,
+                        PetContract.PetEntry.COLUMN_IMPORT_REJECTED},
+                PetContract.PetEntry.COLUMN_IMPORT_SOURCE + "=?", new String[]{source}, null, null, null);
+        try {
+            if (!cursor.moveToFirst())
+                return null;
+            Bundle progress = new Bundle();
+            progress.putLong(PetContract.EXTRA_POSITION, cursor.getLong(0));
+            progress.putLong(PetContract.EXTRA_IMPORTED, cursor.getLong(1));
+            progress.putLong(PetContract.EXTRA_REJECTED, cursor.getLong(2));
+            return progress;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Bundle cacheStats() {
+        Bundle stats = new Bundle();
+        long hits = mRowCache.hitCount();
+        long misses = mRowCache.missCount();
+        stats.putLong(PetContract.EXTRA_ROW_CACHE_HITS, hits);
+        stats.putLong(PetContract.EXTRA_ROW_CACHE_MISSES, misses);
+        stats.putDouble(PetContract.EXTRA_ROW_CACHE_HIT_RATE, hits + misses == 0 ? 0 : (double) hits / (hits + misses));
+        stats.putLong(PetContract.EXTRA_ROW_CACHE_EVICTIONS, mRowCache.evictionCount());
+        stats.putLong(PetContract.EXTRA_ROW_CACHE_SIZE_BYTES, mRowCache.sizeBytes());
+        stats.putLong(PetContract.EXTRA_MAX_BYTES, mRowCache.maxBytes());
+        PetStatementCache statements = mStatements;
+        stats.putLong(PetContract.EXTRA_STATEMENT_CACHE_HITS, statements == null ? 0 : statements.hitCount());
+        stats.putLong(PetContract.EXTRA_STATEMENT_CACHE_MISSES, statements == null ? 0 : statements.missCount());
+        return stats;
+    }
+
+    /**
+     * Patch the snapshot and notify listeners of the pet with the given ID that it has changed,
+     * or record the change for the end of the batch if one is running.
+     */
+    private void notifyItemChanged(long id) {
+        Batch batch = mBatch.get();
+        if (batch == null) {
+            patchSnapshot(Collections.singleton(id));
+            mNotifier.itemChanged(id);
+            mCompactor.schedule();
+        } else if (!batch.collectionChanged) {
+            batch.changedIds.add(id);
+            // The notifier merges its own item notifications, but patching stops paying off
+            if (batch.changedIds.size() > PetSnapshot.MAX_PATCH_ROWS) {
+                batch.collectionChanged = true;
+                batch.changedIds.clear();
+            }
+        }
+    }
+
+    /**
+     * Drop the snapshot and notify listeners of the pets URI that any pet may have changed, or
+     * record the change for the end of the batch if one is running.
+     */
+    private void notifyCollectionChanged() {
+        Batch batch = mBatch.get();
+        if (batch == null) {
+            invalidateSnapshot();
+            mNotifier.collectionChanged();
+            mCompactor.schedule();
+        } else {
+            batch.collectionChanged = true;
+        }
+    }
+
+    /**
+     * Record that the current row was rejected by validation, so a running batch can report it
+     * and carry on.
+     */
+    private void markRejected() {
+        Batch batch = mBatch.get();
+        if (batch != null)
+            batch.rejected = true;
+    }
+
 }
@@ -0,0 +1,183 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.LruCache;
+
+/**
+ * Bounded LRU cache of whole pet rows keyed by _ID, used to answer PET_ID queries without
+ * going to SQLite.
+ *
+ * Every write that may change a cached row must invalidate it after the change is committed.
+ * Invalidation also bumps a generation, and a row read from the database is only cached if no
+ * invalidation happened since the read started, so a slow reader never caches a stale row.
+ */
+final class PetRowCache {
+
+    /** Default memory bound of the cache, in bytes */
+    static final int DEFAULT_MAX_BYTES = 256 * 1024;
+
+    /** Columns of a cached row, in the order of {@link Row#values} */
+    static final String[] COLUMNS = {
+            PetContract.PetEntry._ID,
+            PetContract.PetEntry.COLUMN_PET_NAME,
+            PetContract.PetEntry.COLUMN_PET_BREED,
+            PetContract.PetEntry.COLUMN_PET_GENDER,
+            PetContract.PetEntry.COLUMN_PET_WEIGHT,
+            PetContract.PetEntry.COLUMN_PET_VERSION };
+
+    /** An immutable copy of one pet row */
+    static final class Row {
+        final Object[] values;
+        final int size;
+
+        Row(Object[] values) {
+            this.values = values;
+            int size = 64;
+            for (Object value : values) {
+                if (value instanceof String)
+                    size += 40 + 2 * ((String) value).length();
+                else
+                    size += 16;
+            }
+            this.size = size;
+        }
+    }
+
+    private LruCache<Long, Row> mCache;
+    private int mMaxBytes;
+    private boolean mRecordStats = true;
+    private long mGeneration;
+    private long mHits;
+    private long mMisses;
+
+    PetRowCache(int maxBytes) {
+        configure(maxBytes, true);
+    }
+
+    /**
+     * Set the memory bound, dropping every cached row, and turn hit counting on or off.
+     * A bound of 0 turns the cache off.
+     */
+    synchronized void configure(int maxBytes, boolean recordStats) {
+        mMaxBytes = Math.max(0, maxBytes);
+        mRecordStats = recordStats;
+        mCache = mMaxBytes == 0 ? null : new LruCache<Long, Row>(mMaxBytes) {
+            @Override
+            protected int sizeOf(Long key, Row row) {
+                return row.size;
+            }
+        };
+        mGeneration++;
+        mHits = mMisses = 0;
+    }
+
+    /**
+     * Return the current generation, to pass to {@link #put} once the row has been read.
+     */
+    synchronized long generation() {
+        return mGeneration;
+    }
+
+    synchronized Row get(long id) {
+        Row row = mCache == null ? null : mCache.get(id);
+        if (mRecordStats) {
+            if (row != null)
+                mHits++;
+            else
+                mMisses++;
+        }
+        return row;
+    }
+
+    /**
+     * Cache a row read from the database, unless it was invalidated after {@code generation}.
+     */
+    synchronized void put(long id, Row row, long generation) {
+        if (mCache != null && generation == mGeneration)
+            mCache.put(id, row);
+    }
+
+    synchronized void invalidate(long id) {
+        mGeneration++;
+        if (mCache != null)
+            mCache.remove(id);
+    }
+
+    synchronized void invalidateAll() {
+        mGeneration++;
+        if (mCache != null)
+            mCache.evictAll();
+    }
+
+    synchronized long hitCount() {
+        return mHits;
+    }
+
+    synchronized long missCount() {
+        return mMisses;
+    }
+
+    synchronized int sizeBytes() {
+        return mCache == null ? 0 : mCache.size();
+    }
+
+    synchronized int maxBytes() {
+        return mMaxBytes;
+    }
+
+    synchronized int evictionCount() {
+        return mCache == null ? 0 : mCache.evictionCount();
+    }
+
+    /**
+     * Copy the current row of a cursor over {@link #COLUMNS}.
+     */
+    static Row readRow(Cursor cursor) {
+        Object[] values = new Object[COLUMNS.length];
+        values[0] = cursor.getLong(0);
+        values[1] = cursor.getString(1);
+        values[2] = cursor.getString(2);
+        values[3] = cursor.getInt(3);
+        values[4] = cursor.getInt(4);
+        values[5] = cursor.getLong(5);
+        return new Row(values);
+    }
+
+    /**
+     * Return a cursor holding the given columns of a cached row, or null if a column is not
+     * cached. A null projection returns every column.
+     */
+    static Cursor toCursor(Row row, String[] projection) {
+        if (projection == null)
+            projection = COLUMNS;
+        Object[] values = new Object[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            int column = indexOf(projection[i]);
+            if (column < 0)
+                return null;
+            values[i] = row.values[column];
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        cursor.addRow(values);
+        return cursor;
+    }
+
+    static boolean containsAll(String[] projection) {
+        if (projection == null)
+            return true;
+        for (String column : projection) {
+            if (indexOf(column) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static int indexOf(String column) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(column))
+                return i;
+        }
+        return -1;
+    }
+}
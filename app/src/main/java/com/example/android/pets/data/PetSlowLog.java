@@ -0,0 +1,193 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+
+/**
+ * Opt-in log of the {@link PetProvider} operations that take longer than a threshold, with the
+ * SQL they ran and its query plan, kept in a ring of the most recent {@link #CAPACITY} entries.
+ *
+ * While the log is on, the provider wraps each query, update and delete in {@link #begin} and
+ * {@link #end}, and reports the main statement it runs through {@link #trace}. Only operations
+ * over the threshold pay for EXPLAIN QUERY PLAN. Argument values and string literals are
+ * redacted before they are stored, since they may hold user data.
+ */
+final class PetSlowLog {
+
+    private static final String LOG_TAG = PetSlowLog.class.getSimpleName();
+
+    /** Entries kept; older ones are overwritten */
+    static final int CAPACITY = 64;
+
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+
+    /** Names the operations the same way as the metrics */
+    private final PetMetrics mMetrics;
+
+    /** Threshold in nanoseconds, or -1 while the log is off */
+    private volatile long mThresholdNanos = -1;
+
+    private final Bundle[] mEntries = new Bundle[CAPACITY];
+    private int mNext;
+    private int mSize;
+
+    /** The statement of the operation running on each thread */
+    private final ThreadLocal<Trace> mTrace = new ThreadLocal<Trace>() {
+        @Override
+        protected Trace initialValue() {
+            return new Trace();
+        }
+    };
+
+    private static final class Trace {
+        int depth;
+        String sql;
+        String[] args;
+    }
+
+    PetSlowLog(PetMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Log operations that take at least the given number of milliseconds, or turn the log off
+     * if it is negative.
+     */
+    void configure(long thresholdMillis) {
+        mThresholdNanos = thresholdMillis < 0 ? -1 : thresholdMillis * 1000000;
+    }
+
+    boolean isEnabled() {
+        return mThresholdNanos >= 0;
+    }
+
+    /**
+     * Start tracing an operation on this thread. Nested operations, such as those of a batch,
+     * are logged on their own.
+     */
+    void begin() {
+        if (!isEnabled())
+            return;
+        Trace trace = mTrace.get();
+        trace.depth++;
+        trace.sql = null;
+        trace.args = null;
+    }
+
+    /**
+     * Return true if the statement of the running operation should be reported through
+     * {@link #trace}, so callers only build SQL for the log while it is on.
+     */
+    boolean isTracing() {
+        return isEnabled() && mTrace.get().depth > 0;
+    }
+
+    /**
+     * Report the SQL and arguments of the statement the running operation executes.
+     */
+    void trace(String sql, String[] args) {
+        Trace trace = mTrace.get();
+        if (trace.depth == 0)
+            return;
+        trace.sql = sql;
+        trace.args = args;
+    }
+
+    /**
+     * End the operation started on this thread at {@code startNanos}, one of the operations
+     * of {@link PetMetrics} on the given URI slot, and log it if it was slow. Operations
+     * answered from memory have no SQL and are logged without a plan.
+     */
+    void end(int operation, int uriSlot, long startNanos, long rows, PetDbHelper dbHelper) {
+        Trace trace = mTrace.get();
+        if (trace.depth == 0)
+            return;
+        trace.depth--;
+        String sql = trace.sql;
+        String[] args = trace.args;
+        trace.sql = null;
+        trace.args = null;
+
+        // The log may have been turned off while the operation ran
+        long threshold = mThresholdNanos;
+        long nanos = System.nanoTime() - startNanos;
+        if (threshold < 0 || nanos < threshold)
+            return;
+
+        Bundle entry = new Bundle();
+        entry.putString(PetContract.EXTRA_SLOW_OPERATION, mMetrics.name(operation, uriSlot));
+        entry.putLong(PetContract.EXTRA_SLOW_TIME_MILLIS, System.currentTimeMillis());
+        entry.putLong(PetContract.EXTRA_SLOW_DURATION_MICROS, nanos / 1000);
+        entry.putLong(PetContract.EXTRA_METRIC_ROWS, rows);
+        if (sql != null) {
+            entry.putString(PetContract.EXTRA_SLOW_SQL, STRING_LITERAL.matcher(sql).replaceAll("'?'"));
+            entry.putStringArray(PetContract.EXTRA_SLOW_ARGS, redact(args));
+            entry.putStringArray(PetContract.EXTRA_SLOW_QUERY_PLAN, explain(dbHelper.getWritableDatabase(), sql, args));
+        }
+        Log.w(LOG_TAG, "Slow " + mMetrics.name(operation, uriSlot) + " took " + nanos / 1000 + "us");
+        synchronized (this) {
+            mEntries[mNext] = entry;
+            mNext = (mNext + 1) % CAPACITY;
+            mSize = Math.min(mSize + 1, CAPACITY);
+        }
+    }
+
+    /**
+     * Return the logged entries, oldest first, and clear the log if asked to.
+     */
+    synchronized ArrayList<Bundle> entries(boolean clear) {
+        ArrayList<Bundle> entries = new ArrayList<>(mSize);
+        for (int i = 0; i < mSize; i++)
+            entries.add(mEntries[(mNext - mSize + i + CAPACITY) % CAPACITY]);
+        if (clear) {
+            for (int i = 0; i < CAPACITY; i++)
+                mEntries[i] = null;
+            mSize = 0;
+        }
+        return entries;
+    }
+
+    /**
+     * Return the detail lines of the query plan of the given statement.
+     */
+    private static String[] explain(SQLiteDatabase db, String sql, String[] args) {
+        // The plan does not depend on the values, and rawQuery() cannot bind a null
+        String[] bindArgs = args == null ? null : args.clone();
+        for (int i = 0; bindArgs != null && i < bindArgs.length; i++) {
+            if (bindArgs[i] == null)
+                bindArgs[i] = "";
+        }
+        try {
+            Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, bindArgs);
+            try {
+                String[] plan = new String[cursor.getCount()];
+                int detail = cursor.getColumnIndexOrThrow("detail");
+                for (int i = 0; cursor.moveToNext(); i++)
+                    plan[i] = cursor.getString(detail);
+                return plan;
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLException | IllegalArgumentException e) {
+            return new String[]{"Query plan unavailable: " + e.getMessage()};
+        }
+    }
+
+    /**
+     * Replace argument values by their length, keeping only whether they were null.
+     */
+    private static String[] redact(String[] args) {
+        if (args == null)
+            return new String[0];
+        String[] redacted = new String[args.length];
+        for (int i = 0; i < args.length; i++)
+            redacted[i] = args[i] == null ? "NULL" : "<" + args[i].length() + " chars>";
+        return redacted;
+    }
+}
@@ -0,0 +1,284 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable column-wise copy of every pet, sorted by _ID, that {@link PetProvider} answers
+ * unfiltered list and page queries from.
+ *
+ * The columns are held in primitive arrays, with repeated names and breeds sharing one String,
+ * so a list query only allocates a {@link PetSnapshotCursor} over a range of the rows. The rows
+ * are split into chunks of about {@link #CHUNK_ROWS}. Writes do not change a snapshot:
+ * {@link #patch} returns a new one that shares every chunk except those holding the changed
+ * rows, so a single-row write copies one chunk and cursors over the old snapshot stay
+ * consistent.
+ */
+final class PetSnapshot {
+
+    /** Columns of the snapshot, in the order of the column codes below */
+    static final String[] COLUMNS = {
+            PetContract.PetEntry._ID,
+            PetContract.PetEntry.COLUMN_PET_NAME,
+            PetContract.PetEntry.COLUMN_PET_BREED,
+            PetContract.PetEntry.COLUMN_PET_GENDER,
+            PetContract.PetEntry.COLUMN_PET_WEIGHT };
+
+    static final int ID = 0;
+    static final int NAME = 1;
+    static final int BREED = 2;
+    static final int GENDER = 3;
+    static final int WEIGHT = 4;
+
+    /** Largest table kept in a snapshot; bigger tables are read from SQLite */
+    static final int MAX_ROWS = 100000;
+
+    /** Most rows patched at once; a batch changing more rows drops the snapshot instead */
+    static final int MAX_PATCH_ROWS = 1000;
+
+    /** Rows per chunk of a new snapshot; patched chunks are split once twice as big */
+    static final int CHUNK_ROWS = 1024;
+
+    /** Most distinct strings shared; later ones are kept as they are */
+    static final int MAX_SHARED_STRINGS = 4096;
+
+    /**
+     * Rows of one chunk. The arrays may be longer than {@link #size}, and are never changed
+     * once the chunk is part of a snapshot.
+     */
+    static final class Chunk {
+        final int size;
+        final long[] ids;
+        final String[] names;
+        final String[] breeds;
+        final int[] genders;
+        final int[] weights;
+
+        Chunk(int capacity, int size) {
+            this.size = size;
+            ids = new long[capacity];
+            names = new String[capacity];
+            breeds = new String[capacity];
+            genders = new int[capacity];
+            weights = new int[capacity];
+        }
+
+        private Chunk(Chunk source, int size) {
+            this.size = size;
+            ids = source.ids;
+            names = source.names;
+            breeds = source.breeds;
+            genders = source.genders;
+            weights = source.weights;
+        }
+
+        long lastId() {
+            return ids[size - 1];
+        }
+
+        void copyRows(Chunk source, int from, int to, int count) {
+            System.arraycopy(source.ids, from, ids, to, count);
+            System.arraycopy(source.names, from, names, to, count);
+            System.arraycopy(source.breeds, from, breeds, to, count);
+            System.arraycopy(source.genders, from, genders, to, count);
+            System.arraycopy(source.weights, from, weights, to, count);
+        }
+    }
+
+    final int size;
+
+    private final Chunk[] mChunks;
+
+    /** Index of the first row of each chunk */
+    private final int[] mStarts;
+
+    /** Shared strings, owned by the chain of snapshots patched from one build */
+    private final Map<String, String> mStrings;
+
+    private PetSnapshot(List<Chunk> chunks, Map<String, String> strings) {
+        mChunks = chunks.toArray(new Chunk[chunks.size()]);
+        mStarts = new int[mChunks.length];
+        int start = 0;
+        for (int i = 0; i < mChunks.length; i++) {
+            mStarts[i] = start;
+            start += mChunks[i].size;
+        }
+        size = start;
+        mStrings = strings;
+    }
+
+    /**
+     * Build a snapshot from a cursor over {@link #COLUMNS}, ordered by _ID.
+     */
+    static PetSnapshot build(Cursor cursor) {
+        Map<String, String> strings = new HashMap<>();
+        List<Chunk> chunks = new ArrayList<>(cursor.getCount() / CHUNK_ROWS + 1);
+        Chunk chunk = null;
+        int row = 0;
+        while (cursor.moveToNext()) {
+            if (chunk == null || row == CHUNK_ROWS) {
+                if (chunk != null)
+                    chunks.add(chunk);
+                chunk = new Chunk(CHUNK_ROWS, CHUNK_ROWS);
+                row = 0;
+            }
+            copyRow(chunk, row++, cursor, strings);
+        }
+        if (chunk != null)
+            chunks.add(row == CHUNK_ROWS ? chunk : new Chunk(chunk, row));
+        return new PetSnapshot(chunks, strings);
+    }
+
+    /**
+     * Return a snapshot in which the rows with the given IDs, sorted and distinct, are replaced
+     * by those of a cursor over {@link #COLUMNS} ordered by _ID. IDs missing from the cursor were
+     * deleted. Only the chunks holding those IDs are copied. Must not be called concurrently on
+     * snapshots of the same build.
+     */
+    PetSnapshot patch(long[] changedIds, Cursor rows) {
+        List<Chunk> chunks = new ArrayList<>(mChunks.length + 1);
+        boolean hasRow = rows.moveToFirst();
+        int next = 0;
+        for (int c = 0; c < mChunks.length || (c == 0 && next < changedIds.length); c++) {
+            Chunk chunk = c < mChunks.length ? mChunks[c] : new Chunk(0, 0);
+            // IDs after the last chunk are appended to it
+            boolean last = c >= mChunks.length - 1;
+            int end = next;
+            while (end < changedIds.length && (last || changedIds[end] <= chunk.lastId()))
+                end++;
+            if (end == next) {
+                chunks.add(chunk);
+                continue;
+            }
+
+            Chunk patched = new Chunk(chunk.size + end - next, chunk.size + end - next);
+            int from = 0;
+            int to = 0;
+            for (int i = next; i < end; i++) {
+                long id = changedIds[i];
+                int stop = indexAfter(chunk, id - 1, from);
+                patched.copyRows(chunk, from, to, stop - from);
+                to += stop - from;
+                from = stop < chunk.size && chunk.ids[stop] == id ? stop + 1 : stop;
+                if (hasRow && rows.getLong(ID) == id) {
+                    copyRow(patched, to++, rows, mStrings);
+                    hasRow = rows.moveToNext();
+                }
+            }
+            patched.copyRows(chunk, from, to, chunk.size - from);
+            to += chunk.size - from;
+            next = end;
+
+            if (to > 2 * CHUNK_ROWS) {
+                for (int start = 0; start < to; start += CHUNK_ROWS) {
+                    int count = Math.min(CHUNK_ROWS, to - start);
+                    Chunk part = new Chunk(count, count);
+                    part.copyRows(patched, start, 0, count);
+                    chunks.add(part);
+                }
+            } else if (to > 0) {
+                chunks.add(to == patched.size ? patched : new Chunk(patched, to));
+            }
+        }
+        return new PetSnapshot(chunks, mStrings);
+    }
+
+    /**
+     * Return the index of the first pet whose _ID is greater than the given one.
+     */
+    int indexAfter(long id) {
+        int low = 0;
+        int high = mChunks.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (mChunks[middle].lastId() <= id)
+                low = middle + 1;
+            else
+                high = middle - 1;
+        }
+        return low == mChunks.length ? size : mStarts[low] + indexAfter(mChunks[low], id, 0);
+    }
+
+    private static int indexAfter(Chunk chunk, long id, int from) {
+        int index = Arrays.binarySearch(chunk.ids, from, chunk.size, id);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    /**
+     * Return the index of the chunk holding the given row.
+     */
+    int chunkOf(int row) {
+        int index = Arrays.binarySearch(mStarts, row);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    Chunk chunk(int index) {
+        return mChunks[index];
+    }
+
+    /**
+     * Return the index of the first row of the given chunk.
+     */
+    int startOf(int index) {
+        return mStarts[index];
+    }
+
+    /**
+     * Return a cursor over {@code count} pets from {@code start}, holding the given columns, or
+     * null if a column is not in the snapshot. A null projection returns every column.
+     */
+    Cursor toCursor(int start, int count, String[] projection) {
+        if (projection == null)
+            projection = COLUMNS;
+        int[] columns = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columns[i] = indexOf(projection[i]);
+            if (columns[i] < 0)
+                return null;
+        }
+        return new PetSnapshotCursor(this, start, Math.max(0, Math.min(count, size - start)), projection, columns);
+    }
+
+    static boolean containsAll(String[] projection) {
+        if (projection == null)
+            return true;
+        for (String column : projection) {
+            if (indexOf(column) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static int indexOf(String column) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(column))
+                return i;
+        }
+        return -1;
+    }
+
+    private static void copyRow(Chunk chunk, int row, Cursor cursor, Map<String, String> strings) {
+        chunk.ids[row] = cursor.getLong(ID);
+        chunk.names[row] = share(cursor.getString(NAME), strings);
+        chunk.breeds[row] = share(cursor.getString(BREED), strings);
+        chunk.genders[row] = cursor.getInt(GENDER);
+        chunk.weights[row] = cursor.getInt(WEIGHT);
+    }
+
+    private static String share(String value, Map<String, String> strings) {
+        if (value == null)
+            return null;
+        String shared = strings.get(value);
+        if (shared == null) {
+            if (strings.size() < MAX_SHARED_STRINGS)
+                strings.put(value, value);
+            shared = value;
+        }
+        return shared;
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.android.pets.data;
+
+import android.database.AbstractCursor;
+
+/**
+ * Read-only cursor over a range of the rows of a {@link PetSnapshot}. Numbers are returned
+ * straight from the arrays of the snapshot's chunks; strings are only built for number columns
+ * read with {@link #getString}.
+ */
+final class PetSnapshotCursor extends AbstractCursor {
+
+    private final PetSnapshot mSnapshot;
+    private final int mStart;
+    private final int mCount;
+    private final String[] mColumnNames;
+    private final int[] mColumns;
+
+    /** The chunk of the snapshot last read from, and the row index of its first row */
+    private PetSnapshot.Chunk mChunk;
+    private int mChunkStart;
+
+    PetSnapshotCursor(PetSnapshot snapshot, int start, int count, String[] columnNames, int[] columns) {
+        mSnapshot = snapshot;
+        mStart = start;
+        mCount = count;
+        mColumnNames = columnNames;
+        mColumns = columns;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public int getType(int column) {
+        switch (mColumns[column]) {
+            case PetSnapshot.NAME:
+            case PetSnapshot.BREED:
+                return isNull(column) ? FIELD_TYPE_NULL : FIELD_TYPE_STRING;
+            default:
+                return FIELD_TYPE_INTEGER;
+        }
+    }
+
+    @Override
+    public String getString(int column) {
+        int row = row();
+        switch (mColumns[column]) {
+            case PetSnapshot.ID:
+                return Long.toString(mChunk.ids[row]);
+            case PetSnapshot.NAME:
+                return mChunk.names[row];
+            case PetSnapshot.BREED:
+                return mChunk.breeds[row];
+            case PetSnapshot.GENDER:
+                return Integer.toString(mChunk.genders[row]);
+            default:
+                return Integer.toString(mChunk.weights[row]);
+        }
+    }
+
+    @Override
+    public long getLong(int column) {
+        int row = row();
+        switch (mColumns[column]) {
+            case PetSnapshot.ID:
+                return mChunk.ids[row];
+            case PetSnapshot.GENDER:
+                return mChunk.genders[row];
+            case PetSnapshot.WEIGHT:
+                return mChunk.weights[row];
+            default:
+                // Like SQLite, text that is not a number reads as 0
+                try {
+                    String value = getString(column);
+                    return value == null ? 0 : Long.parseLong(value.trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+        }
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        int row = row();
+        switch (mColumns[column]) {
+            case PetSnapshot.NAME:
+                return mChunk.names[row] == null;
+            case PetSnapshot.BREED:
+                return mChunk.breeds[row] == null;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Return the index of the current row in its chunk, which becomes {@link #mChunk}.
+     */
+    private int row() {
+        checkPosition();
+        int row = mStart + getPosition();
+        if (mChunk == null || row < mChunkStart || row >= mChunkStart + mChunk.size) {
+            int index = mSnapshot.chunkOf(row);
+            mChunk = mSnapshot.chunk(index);
+            mChunkStart = mSnapshot.startOf(index);
+        }
+        return row - mChunkStart;
+    }
+}
@@ -0,0 +1,361 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compiled statements for the single-row paths of {@link PetProvider}, kept for the lifetime of
+ * one database object: insert, update by _ID and soft delete by _ID, plus the SQL of select by
+ * _ID and the lookup of breed IDs in the breed dictionary.
+ *
+ * Inserts and updates get one statement per combination of pet columns they set, so values
+ * are bound straight from the ContentValues without building SQL or argument arrays.
+ *
+ * Statements are not thread-safe, so each thread compiles its own. No lock is held while a
+ * statement executes: a batch holds the primary connection for its whole transaction, and a
+ * thread waiting for that connection inside a Java lock would block the batch's own writes
+ * waiting for the lock.
+ */
+final class PetStatementCache {
+
+    private static final String LOG_TAG = PetStatementCache.class.getSimpleName();
+
+    /** The pet columns a cached statement can set, in binding order */
+    static final String[] COLUMNS = {
+            PetContract.PetEntry.COLUMN_PET_NAME,
+            PetContract.PetEntry.COLUMN_PET_BREED,
+            PetContract.PetEntry.COLUMN_PET_GENDER,
+            PetContract.PetEntry.COLUMN_PET_WEIGHT };
+
+    /** The table columns {@link #COLUMNS} are written to; the breed is stored as its ID */
+    private static final String[] TABLE_COLUMNS = {
+            PetContract.PetEntry.COLUMN_PET_NAME,
+            PetContract.PetEntry.COLUMN_BREED_ID,
+            PetContract.PetEntry.COLUMN_PET_GENDER,
+            PetContract.PetEntry.COLUMN_PET_WEIGHT };
+
+    private static final int BREED = 1;
+
+    /** Mask of a statement setting every column, used by the packed paths */
+    private static final int ALL_COLUMNS = (1 << COLUMNS.length) - 1;
+
+    /** The statements compiled by one thread */
+    private static final class Statements {
+        final SQLiteStatement[] inserts = new SQLiteStatement[1 << COLUMNS.length];
+        final SQLiteStatement[] updatesById = new SQLiteStatement[1 << COLUMNS.length];
+        SQLiteStatement deleteById;
+        SQLiteStatement selectBreedId;
+        SQLiteStatement insertBreed;
+
+        /**
+         * Release the statements. The owning thread may still be executing one, which finishes
+         * first, so the fields are left as they are.
+         */
+        void close() {
+            for (int i = 0; i < inserts.length; i++) {
+                if (inserts[i] != null)
+                    inserts[i].close();
+                if (updatesById[i] != null)
+                    updatesById[i].close();
+            }
+            if (deleteById != null)
+                deleteById.close();
+            if (selectBreedId != null) {
+                selectBreedId.close();
+                insertBreed.close();
+            }
+        }
+    }
+
+    private final SQLiteDatabase mDb;
+
+    private final ThreadLocal<Statements> mLocal = new ThreadLocal<>();
+
+    /** The statements of every thread, guarded by itself, so they can be closed together */
+    private final List<Statements> mAll = new ArrayList<>();
+    private boolean mClosed;
+
+    private String[] mSelectProjection;
+    private String mSelectSql;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    PetStatementCache(SQLiteDatabase db) {
+        mDb = db;
+    }
+
+    /**
+     * Return the statements of the calling thread.
+     */
+    private Statements local() {
+        Statements statements = mLocal.get();
+        if (statements == null) {
+            statements = new Statements();
+            synchronized (mAll) {
+                if (mClosed)
+                    throw new IllegalStateException("Statement cache is closed");
+                mAll.add(statements);
+            }
+            mLocal.set(statements);
+        }
+        return statements;
+    }
+
+    boolean isFor(SQLiteDatabase db) {
+        return mDb == db;
+    }
+
+    /**
+     * Return the bit set of {@link #COLUMNS} present in the given values, or -1 if the values
+     * hold any other key and so cannot use a cached statement.
+     */
+    static int columnMask(ContentValues values) {
+        int mask = 0;
+        int count = 0;
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (values.containsKey(COLUMNS[i])) {
+                mask |= 1 << i;
+                count++;
+            }
+        }
+        return count == values.size() && count > 0 ? mask : -1;
+    }
+
+    /**
+     * Insert a pet with the given values, whose keys are described by {@code mask}. Return the
+     * new row ID, or -1 if the row could not be inserted.
+     */
+    long insert(ContentValues values, int mask) {
+        SQLiteStatement statement = insertStatement(local(), mask);
+        bindValues(statement, values, mask);
+        try {
+            return statement.executeInsert();
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "Error inserting " + values, e);
+            return -1;
+        }
+    }
+
+    /**
+     * Insert a pet with the given values, which the caller has validated. Return the new row
+     * ID, or -1 if the row could not be inserted.
+     */
+    long insert(String name, String breed, int gender, int weight) {
+        SQLiteStatement statement = insertStatement(local(), ALL_COLUMNS);
+        bindPet(statement, name, breed, gender, weight);
+        try {
+            return statement.executeInsert();
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "Error inserting " + name, e);
+            return -1;
+        }
+    }
+
+    private SQLiteStatement insertStatement(Statements statements, int mask) {
+        SQLiteStatement statement = statements.inserts[mask];
+        if (statement == null) {
+            mMisses.incrementAndGet();
+            StringBuilder sql = new StringBuilder("INSERT INTO ").append(PetContract.PetEntry.TABLE_NAME).append(" (");
+            StringBuilder parameters = new StringBuilder();
+            for (int i = 0; i < COLUMNS.length; i++) {
+                if ((mask & (1 << i)) != 0) {
+                    sql.append(parameters.length() == 0 ? "" : ", ").append(TABLE_COLUMNS[i]);
+                    parameters.append(parameters.length() == 0 ? "?" : ", ?");
+                }
+            }
+            sql.append(") VALUES (").append(parameters).append(')');
+            statement = statements.inserts[mask] = mDb.compileStatement(sql.toString());
+        } else {
+            mHits.incrementAndGet();
+        }
+        return statement;
+    }
+
+    /**
+     * Update the pet with the given _ID with the given values, whose keys are described by
+     * {@code mask}. Return the number of rows updated.
+     */
+    int updateById(long id, ContentValues values, int mask) {
+        SQLiteStatement statement = updateByIdStatement(local(), mask);
+        int index = bindValues(statement, values, mask);
+        statement.bindLong(index, id);
+        return statement.executeUpdateDelete();
+    }
+
+    /**
+     * Replace every column of the pet with the given _ID by the given values, which the caller
+     * has validated. Return the number of rows updated.
+     */
+    int updateById(long id, String name, String breed, int gender, int weight) {
+        SQLiteStatement statement = updateByIdStatement(local(), ALL_COLUMNS);
+        statement.bindLong(bindPet(statement, name, breed, gender, weight), id);
+        return statement.executeUpdateDelete();
+    }
+
+    private SQLiteStatement updateByIdStatement(Statements statements, int mask) {
+        SQLiteStatement statement = statements.updatesById[mask];
+        if (statement == null) {
+            mMisses.incrementAndGet();
+            StringBuilder sql = new StringBuilder("UPDATE ").append(PetContract.PetEntry.TABLE_NAME).append(" SET ");
+            boolean first = true;
+            for (int i = 0; i < COLUMNS.length; i++) {
+                if ((mask & (1 << i)) != 0) {
+                    sql.append(first ? "" : ", ").append(TABLE_COLUMNS[i]).append("=?");
+                    first = false;
+                }
+            }
+            sql.append(" WHERE ").append(PetContract.PetEntry._ID).append("=? AND ").append(PetContract.PetEntry.SQL_LIVE);
+            statement = statements.updatesById[mask] = mDb.compileStatement(sql.toString());
+        } else {
+            mHits.incrementAndGet();
+        }
+        return statement;
+    }
+
+    /**
+     * Delete the pet with the given _ID by turning it into a tombstone. Return the number of
+     * pets deleted.
+     */
+    int deleteById(long id) {
+        Statements statements = local();
+        if (statements.deleteById == null) {
+            mMisses.incrementAndGet();
+            statements.deleteById = mDb.compileStatement(PetContract.PetEntry.SQL_SOFT_DELETE_BY_ID);
+        } else {
+            mHits.incrementAndGet();
+        }
+        statements.deleteById.bindLong(1, id);
+        return statements.deleteById.executeUpdateDelete();
+    }
+
+    /**
+     * Return the SQL selecting the given columns of the pet whose _ID is the only argument.
+     * Reusing the same string lets each connection reuse its prepared statement.
+     */
+    synchronized String selectByIdSql(String[] projection) {
+        if (mSelectSql != null && Arrays.equals(projection, mSelectProjection)) {
+            mHits.incrementAndGet();
+            return mSelectSql;
+        }
+        mMisses.incrementAndGet();
+        StringBuilder sql = new StringBuilder("SELECT ");
+        if (projection == null) {
+            sql.append('*');
+        } else {
+            for (int i = 0; i < projection.length; i++)
+                sql.append(i == 0 ? "" : ", ").append(projection[i]);
+        }
+        sql.append(" FROM ").append(PetContract.PetEntry.VIEW_NAME)
+                .append(" WHERE ").append(PetContract.PetEntry._ID).append("=?");
+        mSelectProjection = projection == null ? null : projection.clone();
+        mSelectSql = sql.toString();
+        return mSelectSql;
+    }
+
+    /**
+     * Return the ID of the given breed in the breed dictionary, adding the breed if it is new,
+     * or null for a null breed. The IDs are not cached in memory, since an added breed
+     * disappears again if the caller's transaction rolls back.
+     */
+    Long breedId(String breed) {
+        if (breed == null)
+            return null;
+        Statements statements = local();
+        if (statements.selectBreedId == null) {
+            statements.selectBreedId = mDb.compileStatement("SELECT " + PetContract.PetEntry.COLUMN_BREED_ID + " FROM "
+                    + PetContract.PetEntry.BREEDS_TABLE_NAME + " WHERE " + PetContract.PetEntry.COLUMN_PET_BREED + "=?");
+            statements.insertBreed = mDb.compileStatement("INSERT INTO " + PetContract.PetEntry.BREEDS_TABLE_NAME
+                    + " (" + PetContract.PetEntry.COLUMN_PET_BREED + ") VALUES (?)");
+        }
+        statements.selectBreedId.bindString(1, breed);
+        try {
+            return statements.selectBreedId.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            statements.insertBreed.bindString(1, breed);
+            return statements.insertBreed.executeInsert();
+        }
+    }
+
+    /**
+     * Return the given values with the breed, if present, replaced by its breed ID, for writing
+     * them to the pets table without a cached statement.
+     */
+    ContentValues toTableValues(ContentValues values) {
+        if (!values.containsKey(PetContract.PetEntry.COLUMN_PET_BREED))
+            return values;
+        ContentValues tableValues = new ContentValues(values);
+        tableValues.remove(PetContract.PetEntry.COLUMN_PET_BREED);
+        tableValues.put(PetContract.PetEntry.COLUMN_BREED_ID,
+                breedId(values.getAsString(PetContract.PetEntry.COLUMN_PET_BREED)));
+        return tableValues;
+    }
+
+    long hitCount() {
+        return mHits.get();
+    }
+
+    long missCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * Bind the values of the columns in {@code mask} in order, the breed as its breed ID, and
+     * return the index of the next parameter.
+     */
+    private int bindValues(SQLiteStatement statement, ContentValues values, int mask) {
+        statement.clearBindings();
+        int index = 1;
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if ((mask & (1 << i)) == 0)
+                continue;
+            Object value = values.get(COLUMNS[i]);
+            if (i == BREED && value != null)
+                value = breedId(value.toString());
+            if (value == null)
+                statement.bindNull(index);
+            else if (value instanceof Number)
+                statement.bindLong(index, ((Number) value).longValue());
+            else
+                statement.bindString(index, value.toString());
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Bind every pet column in order, and return the index of the next parameter.
+     */
+    private int bindPet(SQLiteStatement statement, String name, String breed, int gender, int weight) {
+        statement.bindString(1, name);
+        Long breedId = breedId(breed);
+        if (breedId == null)
+            statement.bindNull(2);
+        else
+            statement.bindLong(2, breedId);
+        statement.bindLong(3, gender);
+        statement.bindLong(4, weight);
+        return 5;
+    }
+
+    /**
+     * Release the compiled statements of every thread. Threads must not use the cache after.
+     */
+    void close() {
+        synchronized (mAll) {
+            for (Statements statements : mAll)
+                statements.close();
+            mAll.clear();
+            mClosed = true;
+        }
+    }
+}
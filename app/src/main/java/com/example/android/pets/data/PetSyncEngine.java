@@ -0,0 +1,336 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.os.SystemClock;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Syncs the pets of {@link PetProvider} with a sync server, sending only the pets changed
+ * since the last sync and receiving only those changed on other devices.
+ *
+ * Each round posts up to {@link PetContract#SYNC_MAX_ROWS} local changes, as gzipped JSON, with
+ * the server sequence number this device has applied up to:
+ *
+ *     {"device": "...", "since": 42, "limit": 500, "changes": [
+ *         {"uuid": "...", "name": "...", "breed": "...", "gender": 1, "weight": 7},
+ *         {"uuid": "...", "deleted": true}]}
+ *
+ * The server stores them and answers, gzipped when asked, with the changes of other devices
+ * after "since", in the same form, and the sequence number to ask from next time:
+ *
+ *     {"seq": 57, "more": false, "changes": [...]}
+ *
+ * Those changes are applied in one transaction together with the new sync position, so an
+ * interrupted sync resends or refetches at most one round. A pet changed locally while its
+ * change was on the way keeps the local change, which the next round sends.
+ */
+public final class PetSyncEngine {
+
+    private static final String LOG_TAG = PetSyncEngine.class.getSimpleName();
+
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 30000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String KEY_DEVICE = "device";
+    private static final String KEY_SINCE = "since";
+    private static final String KEY_LIMIT = "limit";
+    private static final String KEY_CHANGES = "changes";
+    private static final String KEY_SEQ = "seq";
+    private static final String KEY_MORE = "more";
+
+    /**
+     * What one {@link #sync()} exchanged. Byte counts are of the HTTP bodies, as sent on the
+     * wire and before compression.
+     */
+    public static final class Result {
+        /** Local changes sent */
+        public long pushed;
+        /** Server changes applied */
+        public long pulled;
+        /** Server changes kept back by a newer local change, or invalid */
+        public long rejected;
+        public int requests;
+        public long bytesSent;
+        public long rawBytesSent;
+        public long bytesReceived;
+        public long rawBytesReceived;
+        public long millis;
+
+        @Override
+        public String toString() {
+            return "pushed " + pushed + ", pulled " + pulled + ", rejected " + rejected + " in " + requests
+                    + " requests, sent " + bytesSent + "/" + rawBytesSent + " bytes, received " + bytesReceived
+                    + "/" + rawBytesReceived + " bytes, " + millis + "ms";
+        }
+    }
+
+    /** Changes of one server answer */
+    private static final class Answer {
+        long seq;
+        boolean more;
+        final List<ContentValues> rows = new ArrayList<>();
+    }
+
+    private final ContentResolver mResolver;
+    private final ContentProvider mProvider;
+    private final URL mServer;
+
+    /**
+     * Sync the pets of the app's provider with the server at the given URL.
+     */
+    public PetSyncEngine(Context context, URL server) {
+        mResolver = context.getContentResolver();
+        mProvider = null;
+        mServer = server;
+    }
+
+    /**
+     * Sync the pets of the given provider instance, which need not be registered. Used by
+     * benchmarks that sync scratch databases.
+     */
+    public PetSyncEngine(ContentProvider provider, URL server) {
+        mResolver = null;
+        mProvider = provider;
+        mServer = server;
+    }
+
+    /**
+     * Exchange changes with the server until neither side has any left. Must not be called on
+     * the main thread.
+     */
+    public Result sync() throws IOException {
+        Result result = new Result();
+        long start = SystemClock.elapsedRealtime();
+        boolean more;
+        do {
+            Bundle pending = call(PetContract.METHOD_SYNC_PENDING, null);
+            Parcelable[] rows = pending.getParcelableArray(PetContract.EXTRA_ROWS);
+            byte[] request = writeRequest(pending.getString(PetContract.EXTRA_DEVICE),
+                    pending.getLong(PetContract.EXTRA_SYNC_PULLED), rows);
+            Answer answer = post(request, result);
+
+            Bundle apply = new Bundle();
+            apply.putParcelableArray(PetContract.EXTRA_ROWS, answer.rows.toArray(new ContentValues[answer.rows.size()]));
+            apply.putLong(PetContract.EXTRA_SYNC_SEQ, pending.getLong(PetContract.EXTRA_SYNC_SEQ));
+            apply.putLong(PetContract.EXTRA_SYNC_PULLED, answer.seq);
+            Bundle applied = call(PetContract.METHOD_SYNC_APPLY, apply);
+
+            result.pushed += rows.length;
+            result.pulled += applied.getLong(PetContract.EXTRA_IMPORTED);
+            result.rejected += applied.getLong(PetContract.EXTRA_REJECTED);
+            more = rows.length == PetContract.SYNC_MAX_ROWS || answer.more;
+        } while (more);
+        result.millis = SystemClock.elapsedRealtime() - start;
+        Log.i(LOG_TAG, "Synced: " + result);
+        return result;
+    }
+
+    private Bundle call(String method, Bundle extras) {
+        Bundle result = mProvider != null ? mProvider.call(method, null, extras)
+                : mResolver.call(PetContract.PetEntry.CONTENT_URI, method, null, extras);
+        if (result == null)
+            throw new IllegalStateException("Pet provider does not answer " + method);
+        return result;
+    }
+
+    /**
+     * Post one gzipped request and read the answer, counting the bytes both ways.
+     */
+    private Answer post(byte[] request, Result result) throws IOException {
+        byte[] body = gzip(request);
+        HttpURLConnection connection = (HttpURLConnection) mServer.openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            // Asking for gzip explicitly turns off transparent decompression, so the compressed
+            // size can be counted
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+
+            int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK)
+                throw new IOException("Sync server answered " + code + " " + connection.getResponseMessage());
+            byte[] answer = readFully(connection.getInputStream());
+            result.requests++;
+            result.bytesSent += body.length;
+            result.rawBytesSent += request.length;
+            result.bytesReceived += answer.length;
+            if ("gzip".equalsIgnoreCase(connection.getContentEncoding()))
+                answer = readFully(new GZIPInputStream(new ByteArrayInputStream(answer)));
+            result.rawBytesReceived += answer.length;
+            return readAnswer(answer);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static byte[] writeRequest(String device, long since, Parcelable[] rows) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 + rows.length * 96);
+        Writer writer = new OutputStreamWriter(bytes, UTF_8);
+        JsonWriter json = new JsonWriter(writer);
+        json.beginObject();
+        json.name(KEY_DEVICE).value(device);
+        json.name(KEY_SINCE).value(since);
+        json.name(KEY_LIMIT).value(PetContract.SYNC_MAX_ROWS);
+        json.name(KEY_CHANGES);
+        writeChanges(json, rows);
+        json.endObject();
+        json.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Write sync rows, as {@link PetContract#METHOD_SYNC_PENDING} returns them, as a JSON array.
+     * The stand-in server writes its answers with this too.
+     */
+    public static void writeChanges(JsonWriter json, Parcelable[] rows) throws IOException {
+        json.beginArray();
+        for (Parcelable parcelable : rows) {
+            ContentValues row = (ContentValues) parcelable;
+            json.beginObject();
+            json.name(PetContract.PetEntry.COLUMN_UUID).value(row.getAsString(PetContract.PetEntry.COLUMN_UUID));
+            if (Boolean.TRUE.equals(row.getAsBoolean(PetContract.PetEntry.COLUMN_DELETED))) {
+                json.name(PetContract.PetEntry.COLUMN_DELETED).value(true);
+            } else {
+                json.name(PetContract.PetEntry.COLUMN_PET_NAME).value(row.getAsString(PetContract.PetEntry.COLUMN_PET_NAME));
+                String breed = row.getAsString(PetContract.PetEntry.COLUMN_PET_BREED);
+                if (breed != null)
+                    json.name(PetContract.PetEntry.COLUMN_PET_BREED).value(breed);
+                json.name(PetContract.PetEntry.COLUMN_PET_GENDER).value(row.getAsInteger(PetContract.PetEntry.COLUMN_PET_GENDER));
+                json.name(PetContract.PetEntry.COLUMN_PET_WEIGHT).value(row.getAsInteger(PetContract.PetEntry.COLUMN_PET_WEIGHT));
+            }
+            json.endObject();
+        }
+        json.endArray();
+    }
+
+    /**
+     * Read a JSON array of changes into sync rows. Unknown names are skipped.
+     */
+    public static List<ContentValues> readChanges(JsonReader json) throws IOException {
+        List<ContentValues> rows = new ArrayList<>();
+        json.beginArray();
+        while (json.hasNext()) {
+            ContentValues row = new ContentValues();
+            json.beginObject();
+            while (json.hasNext()) {
+                String name = json.nextName();
+                if (json.peek() == JsonToken.NULL) {
+                    json.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case PetContract.PetEntry.COLUMN_UUID:
+                    case PetContract.PetEntry.COLUMN_PET_NAME:
+                    case PetContract.PetEntry.COLUMN_PET_BREED:
+                        row.put(name, json.nextString());
+                        break;
+                    case PetContract.PetEntry.COLUMN_PET_GENDER:
+                    case PetContract.PetEntry.COLUMN_PET_WEIGHT:
+                        row.put(name, json.nextInt());
+                        break;
+                    case PetContract.PetEntry.COLUMN_DELETED:
+                        row.put(name, json.nextBoolean());
+                        break;
+                    default:
+                        json.skipValue();
+                        break;
+                }
+            }
+            json.endObject();
+            rows.add(row);
+        }
+        json.endArray();
+        return rows;
+    }
+
+    private static Answer readAnswer(byte[] body) throws IOException {
+        Answer answer = new Answer();
+        JsonReader json = new JsonReader(new InputStreamReader(new ByteArrayInputStream(body), UTF_8));
+        try {
+            json.beginObject();
+            while (json.hasNext()) {
+                switch (json.nextName()) {
+                    case KEY_SEQ:
+                        answer.seq = json.nextLong();
+                        break;
+                    case KEY_MORE:
+                        answer.more = json.nextBoolean();
+                        break;
+                    case KEY_CHANGES:
+                        answer.rows.addAll(readChanges(json));
+                        break;
+                    default:
+                        json.skipValue();
+                        break;
+                }
+            }
+            json.endObject();
+        } finally {
+            json.close();
+        }
+        return answer;
+    }
+
+    /**
+     * Return the given bytes gzipped.
+     */
+    public static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(bytes);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Read the stream to its end and close it.
+     */
+    public static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                out.write(buffer, 0, read);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
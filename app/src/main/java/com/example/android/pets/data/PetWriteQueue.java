@@ -0,0 +1,247 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Applies pet inserts, updates and deletes on a background thread, so the UI never waits for
+ * SQLite. Results are delivered to a {@link Callback} on the main thread.
+ *
+ * Writes queued while an earlier flush is running are applied together by the next flush, as
+ * one {@link ContentResolver#applyBatch} and so one transaction. An update of a pet that already
+ * has an update waiting in the queue is merged into it, with the later values winning, unless
+ * either is conditional on the pet's version. A write never runs before one queued earlier.
+ */
+public final class PetWriteQueue {
+
+    private static final String LOG_TAG = PetWriteQueue.class.getSimpleName();
+
+    /**
+     * Receives the outcome of one queued write on the main thread.
+     */
+    public interface Callback<T> {
+        /**
+         * @param result the URI of the inserted pet, or the number of rows updated or deleted
+         */
+        void onComplete(T result);
+
+        /**
+         * Called instead of {@link #onComplete} when the values were rejected or the write failed.
+         */
+        void onFailure(Exception e);
+    }
+
+    private static PetWriteQueue sInstance;
+
+    private final ContentResolver mResolver;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Writes waiting for the next flush, guarded by this */
+    private List<Write> mPending = new ArrayList<>();
+    /** The waiting update of each pet that later updates can be merged into, guarded by this */
+    private final Map<Long, Write> mPendingUpdates = new HashMap<>();
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private PetWriteQueue(Context context) {
+        mResolver = context.getContentResolver();
+    }
+
+    /**
+     * Return the queue of the application, which outlives the activities that use it so that
+     * their writes finish after they close.
+     */
+    public static synchronized PetWriteQueue get(Context context) {
+        if (sInstance == null)
+            sInstance = new PetWriteQueue(context.getApplicationContext());
+        return sInstance;
+    }
+
+    /**
+     * Queue the insertion of a new pet.
+     */
+    public void insert(ContentValues values, Callback<Uri> callback) {
+        enqueue(new Write(ContentProviderOperation.newInsert(PetContract.PetEntry.CONTENT_URI),
+                -1, new ContentValues(values), callback));
+    }
+
+    /**
+     * Queue an update of the pet with the given ID, merging it into an update of the same pet
+     * that is still waiting.
+     */
+    public void update(long id, ContentValues values, Callback<Integer> callback) {
+        synchronized (this) {
+            Write pending = mPendingUpdates.get(id);
+            if (pending != null) {
+                pending.values.putAll(values);
+                pending.callbacks.add(callback);
+                return;
+            }
+        }
+        enqueue(new Write(ContentProviderOperation.newUpdate(
+                ContentUris.withAppendedId(PetContract.PetEntry.CONTENT_URI, id)), id, new ContentValues(values), callback));
+    }
+
+    /**
+     * Queue an update of the pet with the given ID that only applies while the pet has the given
+     * version, and otherwise fails with a {@link PetConflictException}.
+     */
+    public void update(long id, long expectedVersion, ContentValues values, Callback<Integer> callback) {
+        Write write = new Write(ContentProviderOperation.newUpdate(
+                PetContract.PetEntry.buildVersionedUri(id, expectedVersion)), id, new ContentValues(values), callback);
+        write.conditional = true;
+        enqueue(write);
+    }
+
+    /**
+     * Queue the deletion of the pet with the given ID.
+     */
+    public void delete(long id, Callback<Integer> callback) {
+        enqueue(new Write(ContentProviderOperation.newDelete(
+                ContentUris.withAppendedId(PetContract.PetEntry.CONTENT_URI, id)), id, null, callback));
+    }
+
+    /**
+     * Queue the deletion of every pet.
+     */
+    public void deleteAll(Callback<Integer> callback) {
+        enqueue(new Write(ContentProviderOperation.newDelete(PetContract.PetEntry.CONTENT_URI), -1, null, callback));
+    }
+
+    private synchronized void enqueue(Write write) {
+        if (write.isUpdate() && !write.conditional) {
+            mPendingUpdates.put(write.id, write);
+        } else if (write.values == null || write.conditional) {
+            // Updates queued before a delete or a conditional update must not absorb updates
+            // queued after it
+            if (write.id >= 0)
+                mPendingUpdates.remove(write.id);
+            else
+                mPendingUpdates.clear();
+        }
+        mPending.add(write);
+        // One flush takes everything queued so far, so a second one is only needed once it started
+        if (mPending.size() == 1)
+            mExecutor.execute(mFlush);
+    }
+
+    /**
+     * Apply every waiting write in one batch. Runs on the queue's thread.
+     */
+    private void flush() {
+        List<Write> writes;
+        synchronized (this) {
+            writes = mPending;
+            mPending = new ArrayList<>();
+            mPendingUpdates.clear();
+        }
+        if (writes.isEmpty())
+            return;
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(writes.size());
+        for (Write write : writes)
+            operations.add(write.build());
+        try {
+            ContentProviderResult[] results = mResolver.applyBatch(PetContract.CONTENT_AUTHORITY, operations);
+            for (int i = 0; i < results.length; i++)
+                deliver(writes.get(i), results[i], null);
+        } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+            // The batch rolled back as a whole, so find out which writes fail on their own
+            Log.w(LOG_TAG, "Batch of " + writes.size() + " writes failed, applying them one by one", e);
+            for (int i = 0; i < writes.size(); i++)
+                applyAlone(writes.get(i), operations.get(i));
+        }
+    }
+
+    private void applyAlone(Write write, ContentProviderOperation operation) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(1);
+        operations.add(operation);
+        try {
+            deliver(write, mResolver.applyBatch(PetContract.CONTENT_AUTHORITY, operations)[0], null);
+        } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+            Log.e(LOG_TAG, "Write to " + operation.getUri() + " failed", e);
+            deliver(write, null, e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void deliver(final Write write, ContentProviderResult result, Exception error) {
+        final Object value;
+        if (error == null && write.isInsert()) {
+            // The provider answers rejected values with an empty result instead of a URI
+            value = result.uri;
+            if (value == null)
+                error = new IllegalArgumentException("Pet was not inserted");
+        } else {
+            value = error == null ? result.count : null;
+        }
+        final Exception failure = error;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Callback callback : write.callbacks) {
+                    if (callback == null)
+                        continue;
+                    if (failure == null)
+                        callback.onComplete(value);
+                    else
+                        callback.onFailure(failure);
+                }
+            }
+        });
+    }
+
+    /** One queued write, with the callbacks of every write merged into it */
+    private static final class Write {
+        final ContentProviderOperation.Builder builder;
+        final long id;
+        final ContentValues values;
+        final List<Callback<?>> callbacks = new ArrayList<>(1);
+        /** Whether the update expects a version, so its values must not change */
+        boolean conditional;
+
+        Write(ContentProviderOperation.Builder builder, long id, ContentValues values, Callback<?> callback) {
+            this.builder = builder;
+            this.id = id;
+            this.values = values;
+            callbacks.add(callback);
+        }
+
+        boolean isInsert() {
+            return values != null && id < 0;
+        }
+
+        boolean isUpdate() {
+            return values != null && id >= 0;
+        }
+
+        ContentProviderOperation build() {
+            if (values != null)
+                builder.withValues(values);
+            return builder.build();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import com.example.android.pets.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Patches {@link PetSnapshot}s with random inserts, updates and deletes, and checks each result
+ * against a snapshot built afresh from the same rows, including the chunk layout that list
+ * queries and page lookups rely on.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class PetSnapshotTest {
+
+    @Test
+    public void randomPatchesMatchAFreshBuild() {
+        Random random = new Random(42);
+        TreeMap<Long, Object[]> table = new TreeMap<>();
+        long nextId = 1;
+        for (int i = 0; i < 5000; i++) {
+            long id = nextId++;
+            // Leave gaps, as deleted pets do
+            if (random.nextInt(10) != 0)
+                table.put(id, pet(id, random));
+        }
+        PetSnapshot snapshot = PetSnapshot.build(cursor(table.values()));
+        check(snapshot, table);
+
+        for (int round = 0; round < 500; round++) {
+            TreeSet<Long> changed = new TreeSet<>();
+            int changes = random.nextInt(4) == 0 ? 1 + random.nextInt(PetSnapshot.MAX_PATCH_ROWS) : 1;
+            for (int i = 0; i < changes; i++) {
+                int operation = random.nextInt(3);
+                long id = operation == 0 ? nextId++ : 1 + random.nextInt((int) nextId);
+                if (operation == 2)
+                    table.remove(id);
+                else if (operation == 0 || table.containsKey(id))
+                    table.put(id, pet(id, random));
+                changed.add(id);
+            }
+            snapshot = patch(snapshot, table, changed);
+            check(snapshot, table);
+        }
+    }
+
+    @Test
+    public void appendsPastTheLastChunkSplitIt() {
+        TreeMap<Long, Object[]> table = new TreeMap<>();
+        Random random = new Random(7);
+        for (long id = 1; id <= PetSnapshot.CHUNK_ROWS; id++)
+            table.put(id, pet(id, random));
+        PetSnapshot snapshot = PetSnapshot.build(cursor(table.values()));
+        assertEquals(1, chunkCount(snapshot));
+
+        // Enough appended pets to grow the last chunk past twice its size, in several patches
+        long nextId = PetSnapshot.CHUNK_ROWS + 1;
+        for (int patch = 0; patch < 5; patch++) {
+            TreeSet<Long> changed = new TreeSet<>();
+            for (int i = 0; i < PetSnapshot.MAX_PATCH_ROWS; i++) {
+                long id = nextId++;
+                table.put(id, pet(id, random));
+                changed.add(id);
+            }
+            snapshot = patch(snapshot, table, changed);
+            check(snapshot, table);
+        }
+        assertTrue(chunkCount(snapshot) > 1);
+    }
+
+    @Test
+    public void emptySnapshotTakesInsertsAndDeletes() {
+        TreeMap<Long, Object[]> table = new TreeMap<>();
+        PetSnapshot snapshot = PetSnapshot.build(cursor(table.values()));
+        check(snapshot, table);
+
+        Random random = new Random(3);
+        table.put(3L, pet(3, random));
+        table.put(8L, pet(8, random));
+        snapshot = patch(snapshot, table, Arrays.asList(3L, 8L));
+        check(snapshot, table);
+
+        table.clear();
+        snapshot = patch(snapshot, table, Arrays.asList(3L, 8L));
+        check(snapshot, table);
+        assertEquals(0, chunkCount(snapshot));
+    }
+
+    @Test
+    public void deletingAWholeChunkDropsIt() {
+        TreeMap<Long, Object[]> table = new TreeMap<>();
+        Random random = new Random(5);
+        for (long id = 1; id <= 3 * PetSnapshot.CHUNK_ROWS; id++)
+            table.put(id, pet(id, random));
+        PetSnapshot snapshot = PetSnapshot.build(cursor(table.values()));
+        assertEquals(3, chunkCount(snapshot));
+
+        // The middle chunk, in patches no bigger than a batch may make
+        for (long first = PetSnapshot.CHUNK_ROWS + 1; first <= 2 * PetSnapshot.CHUNK_ROWS; first += 512) {
+            List<Long> changed = new ArrayList<>();
+            for (long id = first; id < first + 512; id++) {
+                table.remove(id);
+                changed.add(id);
+            }
+            snapshot = patch(snapshot, table, changed);
+            check(snapshot, table);
+        }
+        assertEquals(2, chunkCount(snapshot));
+    }
+
+    private static Object[] pet(long id, Random random) {
+        return new Object[]{
+                id,
+                "Pet " + random.nextInt(1000),
+                random.nextInt(4) == 0 ? null : "Breed " + random.nextInt(20),
+                random.nextInt(3),
+                random.nextInt(60) };
+    }
+
+    private static Cursor cursor(Collection<Object[]> rows) {
+        MatrixCursor cursor = new MatrixCursor(PetSnapshot.COLUMNS, rows.size());
+        for (Object[] row : rows)
+            cursor.addRow(row);
+        return cursor;
+    }
+
+    /**
+     * Patch the snapshot with the changed IDs, reading their rows from the table as the
+     * provider reads them from SQLite.
+     */
+    private static PetSnapshot patch(PetSnapshot snapshot, TreeMap<Long, Object[]> table, Collection<Long> changed) {
+        TreeSet<Long> sorted = new TreeSet<>(changed);
+        long[] ids = new long[sorted.size()];
+        List<Object[]> rows = new ArrayList<>();
+        int i = 0;
+        for (long id : sorted) {
+            ids[i++] = id;
+            if (table.containsKey(id))
+                rows.add(table.get(id));
+        }
+        return snapshot.patch(ids, cursor(rows));
+    }
+
+    private static int chunkCount(PetSnapshot snapshot) {
+        return snapshot.size == 0 ? 0 : snapshot.chunkOf(snapshot.size - 1) + 1;
+    }
+
+    /**
+     * Check the snapshot holds the rows of the table, as a fresh build does, and that its
+     * chunks and lookups agree.
+     */
+    private static void check(PetSnapshot snapshot, TreeMap<Long, Object[]> table) {
+        PetSnapshot fresh = PetSnapshot.build(cursor(table.values()));
+        assertEquals(table.size(), snapshot.size);
+        assertEquals(fresh.size, snapshot.size);
+        assertEquals(rows(fresh), rows(snapshot));
+
+        int chunks = chunkCount(snapshot);
+        int start = 0;
+        for (int c = 0; c < chunks; c++) {
+            PetSnapshot.Chunk chunk = snapshot.chunk(c);
+            assertEquals(start, snapshot.startOf(c));
+            assertTrue("Empty chunk " + c, chunk.size > 0);
+            assertTrue("Chunk " + c + " holds " + chunk.size + " rows", chunk.size <= 2 * PetSnapshot.CHUNK_ROWS);
+            assertEquals(c, snapshot.chunkOf(start));
+            assertEquals(c, snapshot.chunkOf(start + chunk.size - 1));
+
+            // Page lookups on either side of the chunk boundaries
+            long firstId = chunk.ids[0];
+            long lastId = chunk.lastId();
+            assertEquals(start, snapshot.indexAfter(firstId - 1));
+            assertEquals(start + 1, snapshot.indexAfter(firstId));
+            assertEquals(start + chunk.size - 1, snapshot.indexAfter(lastId - 1));
+            assertEquals(start + chunk.size, snapshot.indexAfter(lastId));
+            assertEquals(fresh.indexAfter(lastId + 1), snapshot.indexAfter(lastId + 1));
+            start += chunk.size;
+        }
+        assertEquals(snapshot.size, start);
+        assertEquals(0, snapshot.indexAfter(-1));
+        assertEquals(snapshot.size, snapshot.indexAfter(Long.MAX_VALUE));
+    }
+
+    /**
+     * Return every row of the snapshot, read through a cursor as a list query reads it.
+     */
+    private static List<String> rows(PetSnapshot snapshot) {
+        List<String> rows = new ArrayList<>(snapshot.size);
+        Cursor cursor = snapshot.toCursor(0, snapshot.size, null);
+        try {
+            while (cursor.moveToNext()) {
+                rows.add(cursor.getLong(PetSnapshot.ID) + "|" + cursor.getString(PetSnapshot.NAME) + "|"
+                        + cursor.getString(PetSnapshot.BREED) + "|" + cursor.getInt(PetSnapshot.GENDER) + "|"
+                        + cursor.getInt(PetSnapshot.WEIGHT));
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+}
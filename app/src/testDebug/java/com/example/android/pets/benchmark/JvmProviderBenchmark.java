@@ -0,0 +1,53 @@
+package com.example.android.pets.benchmark;
+
+import android.util.JsonWriter;
+
+import com.example.android.pets.BuildConfig;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+
+/**
+ * Runs the provider suite of {@link ProviderBenchmark} on the JVM, under Robolectric and its
+ * desktop SQLite, so it can run on a CI machine without a device. It only runs when the
+ * pets.benchmark.rows system property names the table sizes, which the build sets from
+ * -PbenchmarkRows, and writes its report to the file named by pets.benchmark.report.
+ *
+ * The numbers measure the provider's own code and SQLite's query plans, not a phone's flash or
+ * runtime, so compare them only with other runs on the same machine.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class JvmProviderBenchmark {
+
+    @Test
+    public void run() throws Exception {
+        String rows = System.getProperty("pets.benchmark.rows", "");
+        Assume.assumeTrue("No table sizes given with -PbenchmarkRows", !rows.isEmpty());
+        String[] values = rows.split(",");
+        int[] sizes = new int[values.length];
+        for (int i = 0; i < values.length; i++)
+            sizes[i] = Integer.parseInt(values[i].trim());
+
+        File report = new File(System.getProperty("pets.benchmark.report", "benchmark-provider.json"));
+        File directory = report.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IllegalStateException("Cannot create " + directory);
+        JsonWriter json = new JsonWriter(new OutputStreamWriter(new FileOutputStream(report), "UTF-8"));
+        try {
+            json.setIndent("  ");
+            ProviderBenchmark.run(RuntimeEnvironment.application, sizes, json);
+        } finally {
+            json.close();
+        }
+        System.out.println("Provider benchmark report: " + report.getAbsolutePath());
+    }
+}
@@ -0,0 +1,274 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcelable;
+
+import com.example.android.pets.BuildConfig;
+import com.example.android.pets.benchmark.ScratchContext;
+import com.example.android.pets.benchmark.StandInSyncServer;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Syncs two private {@link PetProvider}s, standing in for two devices, through a
+ * {@link StandInSyncServer}, and applies hand-made server changes to check conflicts and
+ * rollback.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class PetSyncEngineTest {
+
+    private static final String[] PROJECTION = {
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT };
+
+    private ScratchContext mScratchA;
+    private ScratchContext mScratchB;
+    private PetProvider mA;
+    private PetProvider mB;
+    private StandInSyncServer mServer;
+    private PetSyncEngine mSyncA;
+    private PetSyncEngine mSyncB;
+
+    @Before
+    public void setUp() throws Exception {
+        mScratchA = new ScratchContext(RuntimeEnvironment.application, "sync-test-a-");
+        mScratchB = new ScratchContext(RuntimeEnvironment.application, "sync-test-b-");
+        mScratchA.deleteDatabase(PetDbHelper.DATABASE_NAME);
+        mScratchB.deleteDatabase(PetDbHelper.DATABASE_NAME);
+        mA = new PetProvider();
+        mA.attachInfo(mScratchA, null);
+        mB = new PetProvider();
+        mB.attachInfo(mScratchB, null);
+        mServer = new StandInSyncServer();
+        mSyncA = new PetSyncEngine(mA, mServer.url());
+        mSyncB = new PetSyncEngine(mB, mServer.url());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+        mA.shutdown();
+        mB.shutdown();
+        mScratchA.deleteDatabase(PetDbHelper.DATABASE_NAME);
+        mScratchB.deleteDatabase(PetDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void pushAndPullRoundTrip() throws Exception {
+        insert(mA, "Toto", "Terrier", PetEntry.GENDER_MALE, 7);
+        insert(mA, "Binx", null, PetEntry.GENDER_FEMALE, 4);
+
+        PetSyncEngine.Result push = mSyncA.sync();
+        assertEquals(2, push.pushed);
+        assertEquals(0, push.pulled);
+        assertEquals(2, mServer.petCount());
+
+        PetSyncEngine.Result pull = mSyncB.sync();
+        assertEquals(0, pull.pushed);
+        assertEquals(2, pull.pulled);
+        assertEquals(pets(mA), pets(mB));
+
+        // Each change is sent once, and the other device's changes come back to A
+        Uri tom = insert(mB, "Tom", "Persian", PetEntry.GENDER_MALE, 5);
+        update(mB, tom, 6);
+        assertEquals(1, mSyncB.sync().pushed);
+        PetSyncEngine.Result back = mSyncA.sync();
+        assertEquals(0, back.pushed);
+        assertEquals(1, back.pulled);
+        assertEquals(pets(mB), pets(mA));
+        assertEquals(0, pending(mA).length);
+        assertEquals(0, pending(mB).length);
+    }
+
+    @Test
+    public void tombstonesReachTheServerAndComeBack() throws Exception {
+        Uri toto = insert(mA, "Toto", "Terrier", PetEntry.GENDER_MALE, 7);
+        insert(mA, "Binx", null, PetEntry.GENDER_FEMALE, 4);
+        mSyncA.sync();
+        mSyncB.sync();
+        assertEquals(2, pets(mB).size());
+
+        assertEquals(1, mA.delete(toto, null, null));
+        Parcelable[] pending = pending(mA);
+        assertEquals(1, pending.length);
+        assertEquals(Boolean.TRUE, ((ContentValues) pending[0]).getAsBoolean(PetEntry.COLUMN_DELETED));
+
+        assertEquals(1, mSyncA.sync().pushed);
+        // The server keeps the tombstone for devices that have not pulled it yet
+        assertEquals(2, mServer.petCount());
+        assertEquals(0, pending(mA).length);
+
+        PetSyncEngine.Result pull = mSyncB.sync();
+        assertEquals(1, pull.pulled);
+        assertEquals(Collections.singletonList("Binx|null|" + PetEntry.GENDER_FEMALE + "|4"), pets(mB));
+        assertEquals(pets(mA), pets(mB));
+        // Applying it does not count as a change of B's own
+        assertEquals(0, pending(mB).length);
+    }
+
+    @Test
+    public void localChangeWinsOverOlderServerChange() throws Exception {
+        Uri toto = insert(mB, "Toto", "Terrier", PetEntry.GENDER_MALE, 7);
+        Uri binx = insert(mB, "Binx", null, PetEntry.GENDER_FEMALE, 4);
+        mSyncB.sync();
+        String totoUuid = uuid(mB, toto);
+        String binxUuid = uuid(mB, binx);
+
+        // The server's changes were made before it saw B's change to Toto
+        Bundle before = mB.call(PetContract.METHOD_SYNC_PENDING, null, null);
+        update(mB, toto, 9);
+
+        Bundle apply = new Bundle();
+        apply.putParcelableArray(PetContract.EXTRA_ROWS, new ContentValues[]{
+                remote(totoUuid, "Toto", "Terrier", PetEntry.GENDER_MALE, 20),
+                remote(binxUuid, "Binx", "Siamese", PetEntry.GENDER_FEMALE, 5) });
+        apply.putLong(PetContract.EXTRA_SYNC_SEQ, before.getLong(PetContract.EXTRA_SYNC_SEQ));
+        apply.putLong(PetContract.EXTRA_SYNC_PULLED, before.getLong(PetContract.EXTRA_SYNC_PULLED) + 2);
+        Bundle applied = mB.call(PetContract.METHOD_SYNC_APPLY, null, apply);
+        assertEquals(1, applied.getLong(PetContract.EXTRA_IMPORTED));
+        assertEquals(1, applied.getLong(PetContract.EXTRA_REJECTED));
+
+        List<String> pets = new ArrayList<>();
+        pets.add("Binx|Siamese|" + PetEntry.GENDER_FEMALE + "|5");
+        pets.add("Toto|Terrier|" + PetEntry.GENDER_MALE + "|9");
+        assertEquals(pets, pets(mB));
+
+        // Toto's local change is still to be sent, Binx's server change is not
+        Parcelable[] pending = pending(mB);
+        assertEquals(1, pending.length);
+        assertEquals(totoUuid, ((ContentValues) pending[0]).getAsString(PetEntry.COLUMN_UUID));
+        assertEquals(9, (int) ((ContentValues) pending[0]).getAsInteger(PetEntry.COLUMN_PET_WEIGHT));
+    }
+
+    @Test
+    public void failedApplyRollsBackEverything() throws Exception {
+        insert(mB, "Toto", "Terrier", PetEntry.GENDER_MALE, 7);
+        mSyncB.sync();
+        List<String> pets = pets(mB);
+        Bundle before = mB.call(PetContract.METHOD_SYNC_PENDING, null, null);
+
+        // The first change is valid and applied before the second fails
+        Bundle apply = new Bundle();
+        apply.putParcelableArray(PetContract.EXTRA_ROWS, new ContentValues[]{
+                remote("0123456789abcdef0123456789abcdef", "Binx", null, PetEntry.GENDER_FEMALE, 4),
+                remote(null, "Ghost", null, PetEntry.GENDER_UNKNOWN, 1) });
+        apply.putLong(PetContract.EXTRA_SYNC_SEQ, before.getLong(PetContract.EXTRA_SYNC_SEQ));
+        apply.putLong(PetContract.EXTRA_SYNC_PULLED, before.getLong(PetContract.EXTRA_SYNC_PULLED) + 2);
+        try {
+            mB.call(PetContract.METHOD_SYNC_APPLY, null, apply);
+            fail("A sync row without a uuid was applied");
+        } catch (IllegalArgumentException expected) {
+            // The whole transaction is rolled back
+        }
+
+        assertEquals(pets, pets(mB));
+        Bundle after = mB.call(PetContract.METHOD_SYNC_PENDING, null, null);
+        assertEquals(before.getLong(PetContract.EXTRA_SYNC_PULLED), after.getLong(PetContract.EXTRA_SYNC_PULLED));
+        assertEquals(before.getLong(PetContract.EXTRA_SYNC_SEQ), after.getLong(PetContract.EXTRA_SYNC_SEQ));
+
+        // The sync triggers are back on: a local change is pending again
+        insert(mB, "Tom", null, PetEntry.GENDER_MALE, 5);
+        assertEquals(1, pending(mB).length);
+    }
+
+    private static Uri insert(PetProvider provider, String name, String breed, int gender, int weight) {
+        Uri uri = provider.insert(PetEntry.CONTENT_URI, remote(null, name, breed, gender, weight));
+        assertNotNull(uri);
+        return uri;
+    }
+
+    private static void update(PetProvider provider, Uri uri, int weight) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+        assertEquals(1, provider.update(uri, values, null, null));
+    }
+
+    /**
+     * Return the pet columns of a change as the sync server sends them, with the given uuid
+     * unless it is null.
+     */
+    private static ContentValues remote(String uuid, String name, String breed, int gender, int weight) {
+        ContentValues values = new ContentValues();
+        if (uuid != null)
+            values.put(PetEntry.COLUMN_UUID, uuid);
+        values.put(PetEntry.COLUMN_PET_NAME, name);
+        if (breed != null)
+            values.put(PetEntry.COLUMN_PET_BREED, breed);
+        values.put(PetEntry.COLUMN_PET_GENDER, gender);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+        return values;
+    }
+
+    private static Parcelable[] pending(PetProvider provider) {
+        return provider.call(PetContract.METHOD_SYNC_PENDING, null, null).getParcelableArray(PetContract.EXTRA_ROWS);
+    }
+
+    /**
+     * Return the uuid of the given pet, read from its pending sync row.
+     */
+    private static String uuid(PetProvider provider, Uri pet) {
+        String name = name(provider, pet);
+        Bundle extras = new Bundle();
+        extras.putLong(PetContract.EXTRA_SYNC_SEQ, 0);
+        Parcelable[] rows = provider.call(PetContract.METHOD_SYNC_PENDING, null, extras)
+                .getParcelableArray(PetContract.EXTRA_ROWS);
+        for (Parcelable parcelable : rows) {
+            ContentValues row = (ContentValues) parcelable;
+            if (name.equals(row.getAsString(PetEntry.COLUMN_PET_NAME)))
+                return row.getAsString(PetEntry.COLUMN_UUID);
+        }
+        fail("No sync row for pet " + ContentUris.parseId(pet));
+        return null;
+    }
+
+    private static String name(PetProvider provider, Uri pet) {
+        Cursor cursor = provider.query(pet, PROJECTION, null, null, null);
+        try {
+            assertNotNull(cursor);
+            if (!cursor.moveToFirst())
+                fail("No pet " + ContentUris.parseId(pet));
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return the live pets of the provider as sorted strings, since _IDs differ between devices.
+     */
+    private static List<String> pets(PetProvider provider) {
+        List<String> pets = new ArrayList<>();
+        Cursor cursor = provider.query(PetEntry.CONTENT_URI, PROJECTION, null, null, null);
+        try {
+            assertNotNull(cursor);
+            while (cursor.moveToNext())
+                pets.add(cursor.getString(0) + "|" + cursor.getString(1) + "|" + cursor.getInt(2) + "|" + cursor.getInt(3));
+        } finally {
+            cursor.close();
+        }
+        Collections.sort(pets);
+        return pets;
+    }
+}